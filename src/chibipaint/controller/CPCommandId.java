@@ -73,6 +73,8 @@ public enum CPCommandId
   LinearInterpolation,
   ShowGrid,
   GridOptions,
+  LatencyHud,
+  LatencyExport,
   ResetCanvasRotation,
   PalColor,
   PalBrush,
@@ -38,6 +38,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
@@ -389,6 +390,12 @@ public void performCommand (CPCommandId commandId, CPCommandSettings commandSett
     case GridOptions:
       showGridOptionsDialog ();
       break;
+    case LatencyHud:
+      canvas.setShowLatencyHud (((CPCommandSettings.CheckBoxState) commandSettings).checked);
+      break;
+    case LatencyExport:
+      exportLatencyTrace ();
+      break;
     case ResetCanvasRotation:
       canvas.resetRotation ();
       break;
@@ -595,7 +602,6 @@ CPCommonController ()
 {
   Image img = loadImage ("cursor/rotate.png");
   Point hotSpot = new Point (11, 11);
-  CPTables.init ();
   rotateCursor = Toolkit.getDefaultToolkit ().createCustomCursor (img, hotSpot, "Rotate");
   tools = new CPBrushInfo[T_MAX];
   tools[T_PENCIL] = new CPBrushInfo (T_PENCIL, 16, 255, true, false, .05f, false, true,
@@ -984,6 +990,26 @@ void showGridOptionsDialog ()
 
 }
 
+void exportLatencyTrace ()
+{
+  JFileChooser fc = new JFileChooser ();
+  fc.setSelectedFile (new File ("latency.csv"));
+  if (fc.showSaveDialog (getDialogParent ()) != JFileChooser.APPROVE_OPTION)
+    {
+      return;
+    }
+
+  try
+    {
+      CPLatencyTrace.exportCsv (fc.getSelectedFile ());
+    }
+  catch (IOException e)
+    {
+      JOptionPane.showMessageDialog (getDialogParent (), "Couldn't write the file: " + e.getMessage (), "Export Latency Trace",
+                                     JOptionPane.ERROR_MESSAGE);
+    }
+}
+
 public boolean isRunningAsApplet ()
 {
   return this instanceof CPControllerApplet;
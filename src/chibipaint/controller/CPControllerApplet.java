@@ -83,7 +83,9 @@ boolean sendPng ()
   String response = "";
 
   // First creates the PNG data
-  byte[] pngData = getPngData (canvas.img); // FIXME: verify canvas.img is always updated
+  // canvas.img shares its pixels with the fusion, which only has to be up to date
+  artwork.fusionLayers ();
+  byte[] pngData = getPngData (canvas.img);
 
   // The ChibiPaintMod file data
   ByteArrayOutputStream chibiFileStream = new ByteArrayOutputStream (1024);
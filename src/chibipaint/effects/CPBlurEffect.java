@@ -124,6 +124,7 @@ private void boxBlurWithWeights (CPLayer layer, CPSelection selection, int itera
     }
 
   // Post processing
+  int[] tempData = tempBmp.getData ();
   for (int j = 0; j < rectHeight; j++)
     {
       int off = j * rectWidth;
@@ -132,7 +133,7 @@ private void boxBlurWithWeights (CPLayer layer, CPSelection selection, int itera
         {
           int selValue = (int) selection.getData ()[selOff] & 0xFF;
           if (selValue == 0)
-            tempBmp.getData ()[off] = (tempBmp.getData ()[off] & 0xFFFFFF) | (selValue << 24);
+            tempData[off] = (tempData[off] & 0xFFFFFF) | (selValue << 24);
         }
     }
 
@@ -159,19 +160,21 @@ void makeWeightsFromColumn (CPSelection sel, int x, int initialXOffset, int init
 
 void copyColumnToArray (CPColorBmp layer, int x, int len, int[] buffer)
 {
+  int[] data = layer.getData ();
   for (int i = 0; i < len; i++)
     {
       int offset = x + i * layer.getWidth ();
-      buffer[i] = layer.getData ()[offset];
+      buffer[i] = data[offset];
     }
 }
 
 void copyArrayToColumn (CPColorBmp layer, int x, int len, int[] buffer)
 {
+  int[] data = layer.getData ();
   for (int i = 0; i < len; i++)
     {
       int offset = x + i * layer.getWidth ();
-      layer.getData ()[offset] = buffer[i];
+      data[offset] = buffer[i];
     }
 }
 
@@ -179,9 +182,10 @@ void copyArrayToColumn (CPColorBmp layer, int x, int len, int[] buffer)
 void copyArrayToRow (CPColorBmp layer, int y, int len, int[] buffer)
 {
   int offset = y * layer.getWidth ();
+  int[] data = layer.getData ();
   for (int i = 0; i < len; i++, offset++)
     {
-      layer.getData ()[offset] = buffer[i];
+      data[offset] = buffer[i];
     }
 }
 
@@ -56,10 +56,11 @@ int modify (int[] data, int i, int j, int offset)
 
 void modifyByOffset (CPLayer layer, CPSelection selection)
 {
+  int[] data = layer.getData ();
   if (selection.isEmpty ())
     {
       for (int off = 0; off < layer.getWidth () * layer.getHeight (); off++)
-        layer.getData ()[off] = modify (layer.getData (), off);
+        data[off] = modify (data, off);
     }
   else
     {
@@ -70,7 +71,7 @@ void modifyByOffset (CPLayer layer, CPSelection selection)
           off = (j + rect.getTop ()) * layer.getWidth () + rect.getLeft ();
           for (int i = 0; i < rect.getWidth (); i++, off++)
             {
-              layer.getData ()[off] = modify (layer.getData (), selection.getData (), off);
+              data[off] = modify (data, selection.getData (), off);
             }
         }
     }
@@ -78,6 +79,7 @@ void modifyByOffset (CPLayer layer, CPSelection selection)
 
 public void modifyByIndices (CPLayer layer, CPSelection selection)
 {
+  int[] data = layer.getData ();
   if (selection.isEmpty ())
     {
       int off;
@@ -85,7 +87,7 @@ public void modifyByIndices (CPLayer layer, CPSelection selection)
         {
           off = j * layer.getWidth ();
           for (int i = 0; i < layer.getWidth (); i++, off++)
-            layer.getData ()[off] = modify (layer.getData (), i, j, off);
+            data[off] = modify (data, i, j, off);
         }
     }
   else
@@ -97,7 +99,7 @@ public void modifyByIndices (CPLayer layer, CPSelection selection)
           off = (j + rect.getTop ()) * layer.getWidth () + rect.getLeft ();
           for (int i = 0; i < rect.getWidth (); i++, off++)
             {
-              layer.getData ()[off] = modify (layer.getData (), selection.getData (), i, j, off);
+              data[off] = modify (data, selection.getData (), i, j, off);
             }
         }
     }
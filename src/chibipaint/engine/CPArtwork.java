@@ -26,12 +26,17 @@ import chibipaint.effects.CPEffect;
 import chibipaint.engine.CPBrushManager.CPBrushDab;
 import chibipaint.util.CPColorFloat;
 import chibipaint.util.CPEnums;
+import chibipaint.util.CPLatencyTrace;
 import chibipaint.util.CPRect;
+import chibipaint.util.CPRegion;
 
 import java.awt.geom.Point2D;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 //FIXME: BROKEN: use setForegroundColor and setBrush, controller's layerChanged replaced by the ICPArtworkListener mechanism
 
@@ -70,7 +75,7 @@ public void doTransformAction (transformType type, CPEnums.Direction direction)
     }
   CPRect rectAfter = new CPRect (transformHandler.getRectNeededForUpdating ());
   updatingRect.union (rectAfter);
-  invalidateFusion (updatingRect);
+  invalidateFusionOfActiveLayer (updatingRect);
 }
 
 private static final int FLOODFILL_PREVIEW_COLOR = 0xFF000000;
@@ -79,7 +84,7 @@ public void updateOverlayWithFloodfillPreview (Point2D.Float pf, int distance, P
 {
   if (isPointWithin (pf.x, pf.y))
     {
-      tempBuffer.clear ();
+      clearTempBuffer ();
       applyFloodFillToLayer ((int) pf.x, (int) pf.y, distance, FLOODFILL_PREVIEW_COLOR, mindSelection);
       CPRect rect = new CPRect ((int) initialPos.x - 2, (int) initialPos.y - 2, (int) initialPos.x + 2, (int) initialPos.y + 2);
       tempBuffer.drawRectangle (rect, 0xffffffff, true);
@@ -89,8 +94,19 @@ public void updateOverlayWithFloodfillPreview (Point2D.Float pf, int distance, P
     showOverlay = false;
 }
 
+// Before using tempBuffer for anything else than a stroke
+private void clearTempBuffer ()
+{
+  tempBuffer.clear ();
+  tempBufferDirty.union (getSize ());
+}
+
 void applyFloodFillToLayer (int x, int y, int distance, int color, boolean mindSelection)
 {
+  if (isSampleAllLayers ())
+    {
+      fusionLayers ();
+    }
   CPColorBmp.floodFill (x, y, isSampleAllLayers () ? fusion : getActiveLayer (), distance, tempBuffer, color, mindSelection && !curSelection.isEmpty () ? curSelection : null);
 }
 
@@ -98,7 +114,7 @@ public void performFloodFill (float x, float y, int colorDistance)
 {
   undoManager.preserveActiveLayerData ();
 
-  tempBuffer.clear ();
+  clearTempBuffer ();
 
   applyFloodFillToLayer ((int) x, (int) y, colorDistance, curColor | 0xff000000, true);
   tempBuffer.drawItselfOnTarget (getActiveLayer (), 0, 0);
@@ -109,7 +125,7 @@ public void performFloodFill (float x, float y, int colorDistance)
 
 public void performMagicWand (float x, float y, int colorDistance, SelectionTypeOfAppliance selectionTypeOfAppliance)
 {
-  tempBuffer.clear ();
+  clearTempBuffer ();
 
   applyFloodFillToLayer ((int) x, (int) y, colorDistance, 0xFF000000, false);
   CPSelection tempSelection = new CPSelection (width, height);
@@ -178,8 +194,36 @@ private int activeLayerNumber;
 
 private final CPLayer fusion; // fusion is a final view of the image, like which should be saved to png (no overlays like selection or grid here)
 private final CPLayer tempBuffer; // for now used for floodFill, transform.
-private final CPRect fusionArea;
-private final CPRect opacityArea;
+// Part of tempBuffer which may not be transparent, strokes only have to clear that much of it
+private final CPRect tempBufferDirty = new CPRect ();
+private final CPRegion fusionArea;
+
+// Composite cache: the layers below the active one flattened together, and the ones above it
+// when they can be flattened too, so that painting on the active layer costs the same whatever
+// the number of layers. Dirty rects are the parts of the caches that have to be recomputed.
+private static final int COMPOSITE_CACHE_MIN_LAYERS = 3;
+private CPLayer belowCache;
+private CPLayer aboveCache;
+private CPLayer cachedActiveLayer;
+private final CPRegion belowCacheDirty = new CPRegion ();
+private final CPRegion aboveCacheDirty = new CPRegion ();
+
+// Parallel compositing: big areas are split into row bands, each band being blended
+// through the whole layer stack by a worker so that no two threads write the same pixels.
+// Smaller areas (like the ones touched by a single dab) stay on the calling thread.
+private static final int PARALLEL_FUSION_MIN_PIXELS = 256 * 256;
+private static final int PARALLEL_FUSION_BAND_PIXELS = 64 * 1024;
+private static ForkJoinPool fusionPool;
+private boolean parallelFusion = Runtime.getRuntime ().availableProcessors () > 1;
+
+// Stroke overlay: plain paint strokes stay in tempBuffer until they end, fusion blends them over the
+// active layer as if they were a normal layer right above it, and they are merged into it only once.
+// Over is associative, so it looks the same as long as the active layer is normal at full opacity.
+private final boolean strokeOverlayEnabled = !"false".equals (System.getProperty ("chibipaint.strokeOverlay"));
+private boolean strokeOverlay;
+private final CPRegion opacityArea;
+// Rectangle of opacityArea being merged, reused so that merging doesn't allocate
+private final CPRect mergeRect = new CPRect ();
 private final CPTransformHandler transformHandler;
 final CPSelection curSelection;
 
@@ -246,6 +290,7 @@ public void copySelectedMerged (boolean limited)
 {
   if (appletEmulation)
     limited = true;
+  fusionLayers ();
   CPColorBmp copy = new CPColorBmp (width, height);
   copy.copyDataFrom (fusion);
   copy.cutBySelection (curSelection);
@@ -426,6 +471,10 @@ private int[] brushBuffer = null;
 
 private boolean sampleAllLayers = false;
 private boolean lockAlpha = false;
+// Brushes keep 16 bits per channel of the active layer, see CPColorBmp.getDeepData, and layers in
+// normal mode are composited with 16 bits per channel too. It's a setting of the document, saved with
+// it, but undo doesn't restore it and only restores the 8 bit pixels
+private boolean deepColor = false;
 
 private int curColor;
 
@@ -453,20 +502,42 @@ public CPArtwork (int width, int height)
   getLayersVector ().add (defaultLayer);
 
   activeLayer = getLayersVector ().get (0);
-  fusionArea = new CPRect (0, 0, width, height);
-  opacityArea = new CPRect ();
+  fusionArea = new CPRegion (new CPRect (0, 0, width, height));
+  opacityArea = new CPRegion ();
   setActiveLayerNumberWithoutUpdate (0);
 
   // we reserve a double sized buffer to be used as a 16bits per channel buffer
   tempBuffer = new CPLayer (width, height);
+  tempBuffer.clear ();
 
   fusion = new CPLayer (width, height);
 }
 
 public long getDocMemoryUsed ()
 {
-  return (long) getWidth () * getHeight () * 4 * (3 + getLayersVector ().size ())
-          + (clipboard != null ? clipboard.bmp.getWidth () * clipboard.bmp.getHeight () * 4 : 0);
+  long total = fusion.getMemoryUsed () + tempBuffer.getMemoryUsed () + undoManager.getPreservedActiveLayer ().getMemoryUsed ();
+  if (belowCache != null)
+    {
+      total += belowCache.getMemoryUsed () + aboveCache.getMemoryUsed ();
+    }
+  for (CPLayer l : getLayersVector ())
+    {
+      total += l.getMemoryUsed ();
+    }
+  return total + (clipboard != null ? clipboard.bmp.getWidth () * clipboard.bmp.getHeight () * 4 : 0);
+}
+
+// Layers other than the active one are kept in sparse tiled storage, so their memory
+// depends on the painted area only. The active one gets expanded back when painted on.
+void compactInactiveLayers ()
+{
+  for (CPLayer l : getLayersVector ())
+    {
+      if (l != activeLayer)
+        {
+          l.compact ();
+        }
+    }
 }
 
 public CPLayer getDisplayBM ()
@@ -481,52 +552,357 @@ public CPLayer getDisplayBM ()
 
 public void fusionLayers ()
 {
-  if (fusionArea.isEmpty ())
+  fusionLayers (getSize ());
+}
+
+// Only fuses the invalidated parts inside visibleArea, the rest stays pending until it's requested.
+// Anything using the fusion as a whole has to call fusionLayers () first
+public void fusionLayers (CPRect visibleArea)
+{
+  final CPRegion area = fusionArea.getIntersection (visibleArea);
+  if (area.isEmpty ())
+    {
+      return;
+    }
+
+  if (!strokeOverlay)
+    {
+      mergeOpacityBuffer (curColor);
+    }
+  // Prepared here so that worker threads never change the storage of the targets
+  fusion.prepareForBlending ();
+
+  final int layersCount = getLayersVector ().size ();
+  if (deepColor && canFlattenLayers (0, layersCount) && !transformHandler.isTransformActive () && !strokeOverlay)
+    {
+      fusionLayersDeep (area);
+    }
+  else if (layersCount >= COMPOSITE_CACHE_MIN_LAYERS)
+    {
+      fusionLayersCached (area, visibleArea);
+    }
+  else
+    {
+      belowCache = null;
+      aboveCache = null;
+      cachedActiveLayer = null;
+      prepareLayersForReading (0, layersCount, area);
+      runFusionStep (area, new CPFusionStep ()
+      {
+        @Override
+        void run (CPRect area)
+        {
+          fusion.clear (area, 0x00ffffff);
+          fuseLayers (fusion, 0, layersCount, area);
+        }
+      });
+    }
+
+  fusionArea.subtract (visibleArea);
+}
+
+// Only normal blending is done with 16 bits per channel, with other modes the fusion goes back to 8 bits.
+// The composite caches aren't used, they would need deep pixels too
+private void fusionLayersDeep (CPRegion area)
+{
+  belowCache = null;
+  aboveCache = null;
+  cachedActiveLayer = null;
+  fusion.getDeepData ();
+  final int layersCount = getLayersVector ().size ();
+  prepareLayersForReading (0, layersCount, area);
+  runFusionStep (area, new CPFusionStep ()
+  {
+    @Override
+    void run (CPRect area)
+    {
+      fusion.clearDeep (area, 0x00ffffff);
+      for (int i = 0; i < layersCount; i++)
+        {
+          CPLayer l = getLayersVector ().elementAt (i);
+          if (l.isVisible ())
+            {
+              l.fusionWithDeep (fusion, area);
+            }
+        }
+    }
+  });
+}
+
+// fusion = below + active + above, only the active layer is blended every time
+// The caches are only brought up to date inside visibleArea, which contains area
+private void fusionLayersCached (CPRegion area, CPRect visibleArea)
+{
+  final int active = getActiveLayerNum ();
+  final int layersCount = getLayersVector ().size ();
+  if (belowCache == null || cachedActiveLayer != activeLayer)
+    {
+      if (belowCache == null)
+        {
+          belowCache = new CPLayer (width, height);
+          aboveCache = new CPLayer (width, height);
+        }
+      cachedActiveLayer = activeLayer;
+      belowCacheDirty.union (getSize ());
+      aboveCacheDirty.union (getSize ());
+    }
+  belowCache.prepareForBlending ();
+  aboveCache.prepareForBlending ();
+
+  CPRegion belowArea = belowCacheDirty.getIntersection (visibleArea);
+  if (!belowArea.isEmpty ())
+    {
+      prepareLayersForReading (0, active, belowArea);
+      runFusionStep (belowArea, new CPFusionStep ()
+      {
+        @Override
+        void run (CPRect area)
+        {
+          belowCache.clear (area, 0x00ffffff);
+          fuseLayers (belowCache, 0, active, area);
+        }
+      });
+      belowCacheDirty.subtract (visibleArea);
+    }
+
+  final boolean flattenAbove = canFlattenLayers (active + 1, layersCount);
+  CPRegion aboveArea = aboveCacheDirty.getIntersection (visibleArea);
+  if (flattenAbove && !aboveArea.isEmpty ())
+    {
+      prepareLayersForReading (active + 1, layersCount, aboveArea);
+      runFusionStep (aboveArea, new CPFusionStep ()
+      {
+        @Override
+        void run (CPRect area)
+        {
+          aboveCache.clear (area, 0x00ffffff);
+          fuseLayers (aboveCache, active + 1, layersCount, area);
+        }
+      });
+      aboveCacheDirty.subtract (visibleArea);
+    }
+
+  prepareLayersForReading (active, flattenAbove ? active + 1 : layersCount, area);
+  if (flattenAbove)
+    {
+      for (CPRect r : area.getRects ())
+        {
+          aboveCache.prepareForReading (r);
+        }
+    }
+  runFusionStep (area, new CPFusionStep ()
+  {
+    @Override
+    void run (CPRect area)
+    {
+      fusion.copyRectFrom (belowCache, area);
+      fuseLayers (fusion, active, active + 1, area);
+      if (flattenAbove)
+        {
+          aboveCache.fusionWithFullAlpha (fusion, area);
+        }
+      else
+        {
+          fuseLayers (fusion, active + 1, layersCount, area);
+        }
+    }
+  });
+}
+
+// Fusion threads only read layers [from, to) inside region, what they look up is made known beforehand
+private void prepareLayersForReading (int from, int to, CPRegion region)
+{
+  List<CPRect> rects = region.getRects ();
+  for (int i = from; i < to; i++)
     {
+      CPLayer l = getLayersVector ().elementAt (i);
+      if (l.isVisible ())
+        {
+          for (CPRect r : rects)
+            {
+              l.prepareForReading (r);
+            }
+        }
+    }
+}
+
+abstract class CPFusionStep
+{
+  abstract void run (CPRect area);
+}
+
+private void runFusionStep (CPRegion region, CPFusionStep step)
+{
+  for (CPRect rect : region.getRects ())
+    {
+      runFusionStep (rect, step);
+    }
+}
+
+// Runs step on the whole area, in parallel bands if it's worth it
+private void runFusionStep (CPRect area, CPFusionStep step)
+{
+  // Transform preview is drawn through the shared tempBuffer, so it has to stay sequential
+  if (!parallelFusion || transformHandler.isTransformActive ()
+          || (long) area.getWidth () * area.getHeight () < PARALLEL_FUSION_MIN_PIXELS)
+    {
+      step.run (area);
       return;
     }
 
-  mergeOpacityBuffer (curColor);
+  getFusionPool ().invoke (new CPFusionBandTask (step, new CPRect (area)));
+}
+
+private static synchronized ForkJoinPool getFusionPool ()
+{
+  if (fusionPool == null)
+    {
+      fusionPool = new ForkJoinPool ();
+    }
+  return fusionPool;
+}
+
+static class CPFusionBandTask extends RecursiveAction
+{
+  private static final long serialVersionUID = 1L;
+
+  private final CPFusionStep step;
+  private final CPRect area;
+
+  CPFusionBandTask (CPFusionStep step, CPRect area)
+  {
+    this.step = step;
+    this.area = area;
+  }
+
+  @Override
+  protected void compute ()
+  {
+    if (area.getHeight () < 2 || area.getWidth () * area.getHeight () <= PARALLEL_FUSION_BAND_PIXELS)
+      {
+        step.run (area);
+        return;
+      }
+
+    // Splitting on tiles boundaries when possible, so tiles aren't walked twice
+    int middle = (area.top + area.bottom) / 2;
+    int alignedMiddle = middle & ~(CPColorBmp.TILE_SIZE - 1);
+    if (alignedMiddle > area.top)
+      {
+        middle = alignedMiddle;
+      }
+
+    invokeAll (new CPFusionBandTask (step, new CPRect (area.left, area.top, area.right, middle)),
+               new CPFusionBandTask (step, new CPRect (area.left, middle, area.right, area.bottom)));
+  }
+}
+
+public boolean isParallelFusion ()
+{
+  return parallelFusion;
+}
+
+public void setParallelFusion (boolean parallelFusion)
+{
+  this.parallelFusion = parallelFusion;
+}
 
-  fusion.clear (fusionArea, 0x00ffffff);
+// Only normal blending is associative, so only such layers can be blended together beforehand
+private boolean canFlattenLayers (int from, int to)
+{
+  for (int i = from; i < to; i++)
+    {
+      CPLayer l = getLayersVector ().elementAt (i);
+      if (l.isVisible () && l.getBlendMode () != CPLayer.LM_NORMAL)
+        {
+          return false;
+        }
+    }
+  return true;
+}
+
+// Blends layers [from, to) one after another on target inside area
+private void fuseLayers (CPLayer target, int from, int to, CPRect area)
+{
   boolean fullAlpha = true, first = true;
-  int i = 0;
-  for (CPLayer l : getLayersVector ())
+  for (int i = from; i < to; i++)
     {
+      CPLayer l = getLayersVector ().elementAt (i);
       if (!first)
         {
-          fullAlpha = fullAlpha && fusion.hasAlpha (fusionArea);
+          fullAlpha = fullAlpha && target.hasAlpha (area);
         }
 
       if (getActiveLayer () == l && transformHandler.isTransformActive ())
         {
-          tempBuffer.clear ();
+          clearTempBuffer ();
           // tempBuffer.copyDataFrom (l);
-          tempBuffer.copyRectFrom (l, fusionArea);
+          tempBuffer.copyRectFrom (l, area);
           tempBuffer.setAlpha (l.getAlpha ());
           tempBuffer.setBlendMode (l.getBlendMode ());
           transformHandler.drawPreviewOn (tempBuffer);
-          doFusionWith (tempBuffer, fullAlpha);
+          doFusionWith (tempBuffer, target, area, fullAlpha);
         }
       else
-        doFusionWith (l, fullAlpha);
+        doFusionWith (l, target, area, fullAlpha);
+
+      if (getActiveLayer () == l && strokeOverlay && l.isVisible ())
+        {
+          fuseStrokeOverlay (target, area);
+        }
     }
+}
 
-  fusionArea.makeEmpty ();
+// Same as CPBrushToolSimpleBrush.mergeOpacityBuf, but with target below instead of the preserved layer
+private void fuseStrokeOverlay (CPLayer target, CPRect areaArg)
+{
+  CPRect area = new CPRect (tempBufferDirty);
+  area.clip (areaArg);
+  if (area.isEmpty ())
+    {
+      return;
+    }
+
+  int[] opacityData = tempBuffer.getDataUntracked ();
+  int[] data = target.getDataUntracked ();
+  int color = curColor;
+
+  for (int j = area.top; j < area.bottom; j++)
+    {
+      int off = area.left + j * width;
+      for (int i = area.left; i < area.right; i++, off++)
+        {
+          int opacityAlpha = curSelection.cutOpacity (opacityData[off], i, j) / 255;
+          if (opacityAlpha > 0)
+            {
+              int destColor = data[off];
+              int destAlpha = destColor >>> 24;
+              int newAlpha = opacityAlpha + destAlpha * (255 - opacityAlpha) / 255;
+              int realAlpha = 255 * opacityAlpha / newAlpha;
+              int invAlpha = 255 - realAlpha;
+
+              data[off] = newAlpha << 24
+                      | (((color >>> 16 & 0xff) * realAlpha + (destColor >>> 16 & 0xff) * invAlpha) / 255) << 16
+                      | (((color >>> 8 & 0xff) * realAlpha + (destColor >>> 8 & 0xff) * invAlpha) / 255) << 8
+                      | (((color & 0xff) * realAlpha + (destColor & 0xff) * invAlpha) / 255);
+            }
+        }
+    }
+  target.pixelsChanged (area);
 }
 
-private void doFusionWith (CPLayer layer, boolean fullAlpha)
+private void doFusionWith (CPLayer layer, CPLayer target, CPRect area, boolean fullAlpha)
 {
   if (!layer.isVisible ())
     return;
 
   if (fullAlpha)
     {
-      layer.fusionWithFullAlpha (fusion, fusionArea);
+      layer.fusionWithFullAlpha (target, area);
     }
   else
     {
-      layer.fusionWith (fusion, fusionArea);
+      layer.fusionWith (target, area);
     }
 }
 
@@ -574,6 +950,25 @@ public void setLockAlpha (boolean b)
   lockAlpha = b;
 }
 
+public void setDeepColor (boolean b)
+{
+  if (deepColor == b)
+    {
+      return;
+    }
+
+  deepColor = b;
+  if (!deepColor)
+    {
+      for (CPLayer l : getLayersVector ())
+        {
+          l.forgetDeepData ();
+        }
+      fusion.forgetDeepData ();
+    }
+  invalidateFusion ();
+}
+
 public void setForegroundColor (int color)
 {
   curColor = color;
@@ -623,29 +1018,38 @@ void mergeOpacityBuffer (int color)
 {
   if (!opacityArea.isEmpty ())
     {
-
-      for (int j = opacityArea.top; j < opacityArea.bottom; j++)
+      long traceStart = CPLatencyTrace.start ();
+      int[] opacityData = tempBuffer.getData ();
+      CPRect rect = mergeRect;
+      for (int k = 0; k < opacityArea.getRectCount (); k++)
         {
-          int dstOffset = opacityArea.left + j * getWidth ();
-          for (int i = opacityArea.left; i < opacityArea.right; i++, dstOffset++)
+          opacityArea.getRect (k, rect);
+          // The region may have fallen back to its bounds, which cover tiles no dab has reached
+          undoManager.preserveActiveLayerRect (rect);
+          for (int j = rect.top; j < rect.bottom; j++)
             {
-              tempBuffer.getData ()[dstOffset] = curSelection.cutOpacity (tempBuffer.getData ()[dstOffset], i, j);
+              int dstOffset = rect.left + j * getWidth ();
+              for (int i = rect.left; i < rect.right; i++, dstOffset++)
+                {
+                  opacityData[dstOffset] = curSelection.cutOpacity (opacityData[dstOffset], i, j);
+                }
             }
-        }
-      paintingModes[curBrush.paintMode].mergeOpacityBuf (opacityArea, color);
+          paintingModes[curBrush.paintMode].mergeOpacityBuf (rect, color);
 
-      // Allow to eraser lower alpha with 'lock alpha' because it's all more logical and comfortable (look at gimp and other stuff)
-      if (isLockAlpha () && curBrush.paintMode != CPBrushInfo.M_ERASE)
-        {
-          undoManager.restoreActiveLayerAlpha (opacityArea);
-        }
+          // Allow to eraser lower alpha with 'lock alpha' because it's all more logical and comfortable (look at gimp and other stuff)
+          if (isLockAlpha () && curBrush.paintMode != CPBrushInfo.M_ERASE)
+            {
+              undoManager.restoreActiveLayerAlpha (rect);
+            }
 
-      if (false)
-        {
-          tempBuffer.clear (opacityArea, 0);
+          if (false)
+            {
+              tempBuffer.clear (rect, 0);
+            }
         }
 
       opacityArea.makeEmpty ();
+      CPLatencyTrace.add (CPLatencyTrace.Stage.MERGE_OPACITY, traceStart);
     }
 }
 
@@ -666,13 +1070,25 @@ abstract class CPBrushToolBase extends CPBrushTool
 {
 
   private final CPRect undoArea = new CPRect ();
+  // Reused for every dab, nothing is allocated while a stroke goes on
+  private final CPRect strokeContentBounds = new CPRect ();
+  private final CPRect srcRect = new CPRect ();
+  private final CPRect dstRect = new CPRect ();
+  private final CPRect preservedRect = new CPRect ();
 
   @Override
   public void beginStroke (float x, float y, float pressure)
   {
-    undoManager.preserveActiveLayerData ();
-
-    tempBuffer.clear ();
+    // Only the parts the stroke reaches are preserved and cleared, see paintDab
+    undoManager.preserveActiveLayerDataLazily ();
+    // Deep color strokes are merged into the layer as they go, the overlay would be blended in 8 bits
+    strokeOverlay = strokeOverlayEnabled && curBrush.paintMode == CPBrushInfo.M_PAINT && !isLockAlpha ()
+            && getActiveLayer ().getBlendMode () == CPLayer.LM_NORMAL && getActiveLayer ().getAlpha () == 100
+            && !deepColor;
+    getActiveLayer ().getContentBounds (strokeContentBounds);
+
+    tempBuffer.clear (tempBufferDirty, 0);
+    tempBufferDirty.makeEmpty ();
     opacityArea.makeEmpty ();
 
     lastX = x;
@@ -712,10 +1128,22 @@ abstract class CPBrushToolBase extends CPBrushTool
     if (!undoArea.isEmpty ())
       {
         mergeOpacityBuffer (curColor);
+        if (strokeOverlay)
+          {
+            strokeOverlay = false;
+            // What fusion showed may be rounded differently
+            invalidateFusionOfActiveLayer (undoArea);
+          }
+        // The undo covers the tiles between dabs too, they are unchanged so they can be preserved now
+        undoManager.preserveActiveLayerRect (undoArea);
         undoManager.activeLayerDataChange (undoArea);
+        strokeContentBounds.union (undoArea);
         undoArea.makeEmpty ();
       }
+    // Dabs write through getData (), but nothing outside of the stroke has changed
+    getActiveLayer ().setContentBounds (strokeContentBounds);
     brushBuffer = null;
+    strokeOverlay = false;
   }
 
   void paintDab (float xArg, float yArg, float pressure)
@@ -735,8 +1163,8 @@ abstract class CPBrushToolBase extends CPBrushTool
 
   void paintDab (CPBrushDab dab)
   {
-    CPRect srcRect = new CPRect (dab.width, dab.height);
-    CPRect dstRect = new CPRect (dab.width, dab.height);
+    srcRect.setSize (dab.width, dab.height);
+    dstRect.setSize (dab.width, dab.height);
     dstRect.translate (dab.x, dab.y);
 
     clipSourceDest (srcRect, dstRect);
@@ -747,11 +1175,22 @@ abstract class CPBrushToolBase extends CPBrushTool
         return;
       }
 
+    long traceStart = CPLatencyTrace.start ();
+    // Blur reads neighbours of the pixels it changes too. With the stroke overlay nothing changes
+    // before mergeOpacityBuffer, which preserves what it merges
+    if (!strokeOverlay)
+      {
+        preservedRect.setSize (dstRect.getWidth () + 2, dstRect.getHeight () + 2);
+        preservedRect.translate (dstRect.left - 1, dstRect.top - 1);
+        undoManager.preserveActiveLayerRect (preservedRect);
+      }
     undoArea.union (dstRect);
     opacityArea.union (dstRect);
-    invalidateFusion (dstRect);
+    tempBufferDirty.union (dstRect);
+    invalidateFusionOfActiveLayer (dstRect);
 
     paintDabImplementation (srcRect, dstRect, dab);
+    CPLatencyTrace.add (CPLatencyTrace.Stage.PAINT_DAB, traceStart);
   }
 
   abstract void paintDabImplementation (CPRect srcRect, CPRect dstRect, CPBrushDab dab);
@@ -784,8 +1223,15 @@ class CPBrushToolSimpleBrush extends CPBrushToolBase
   @Override
   public void mergeOpacityBuf (CPRect dstRect, int color)
   {
+    if (deepColor)
+      {
+        mergeOpacityBufDeep (dstRect, color);
+        return;
+      }
+
     int[] opacityData = tempBuffer.getData ();
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     for (int j = dstRect.top; j < dstRect.bottom; j++)
       {
@@ -808,12 +1254,39 @@ class CPBrushToolSimpleBrush extends CPBrushToolBase
                         & 0xff00 | (((color & 0xff) * realAlpha + (destColor & 0xff) * invAlpha) / 255) & 0xff;
 
                 newColor |= newLayerAlpha << 24 & 0xff000000;
-                getActiveLayer ().getData ()[dstOffset] = newColor;
+                layerData[dstOffset] = newColor;
               }
           }
       }
   }
 
+  // Opacity buffer has 255 * 255 levels, all of them are used here
+  void mergeOpacityBufDeep (CPRect dstRect, int color)
+  {
+    int[] opacityData = tempBuffer.getData ();
+    long[] undoData = undoManager.getActiveLayerPreservedDeepData ();
+    long[] deepData = getActiveLayer ().getDeepData ();
+    int[] data = getActiveLayer ().getDataUntracked ();
+    long deepColor = CPColorBmp.toDeep (color);
+
+    for (int j = dstRect.top; j < dstRect.bottom; j++)
+      {
+        int dstOffset = dstRect.left + j * getWidth ();
+        for (int i = dstRect.left; i < dstRect.right; i++, dstOffset++)
+          {
+            int opacity = opacityData[dstOffset];
+            if (opacity > 0)
+              {
+                long newColor = CPColorBmp.blendDeep (deepColor, (long) opacity * 65535 / (255 * 255),
+                                                      undoData[dstOffset]);
+                deepData[dstOffset] = newColor;
+                data[dstOffset] = CPColorBmp.fromDeep (newColor);
+              }
+          }
+      }
+    getActiveLayer ().deepPixelsChanged (dstRect);
+  }
+
   void paintOpacity (CPRect srcRect, CPRect dstRect, byte[] brush, int w, int alpha)
   {
     int[] opacityData = tempBuffer.getData ();
@@ -870,8 +1343,15 @@ class CPBrushToolEraser extends CPBrushToolSimpleBrush
   @Override
   public void mergeOpacityBuf (CPRect dstRect, int color)
   {
+    if (deepColor)
+      {
+        mergeOpacityBufDeep (dstRect, color);
+        return;
+      }
+
     int[] opacityData = tempBuffer.getData ();
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     for (int j = dstRect.top; j < dstRect.bottom; j++)
       {
@@ -885,10 +1365,37 @@ class CPBrushToolEraser extends CPBrushToolSimpleBrush
                 int destAlpha = destColor >>> 24;
 
                 int realAlpha = destAlpha * (255 - opacityAlpha) / 255;
-                getActiveLayer ().getData ()[dstOffset] = destColor & 0xffffff | realAlpha << 24;
+                layerData[dstOffset] = destColor & 0xffffff | realAlpha << 24;
+              }
+          }
+      }
+  }
+
+  @Override
+  void mergeOpacityBufDeep (CPRect dstRect, int color)
+  {
+    int[] opacityData = tempBuffer.getData ();
+    long[] undoData = undoManager.getActiveLayerPreservedDeepData ();
+    long[] deepData = getActiveLayer ().getDeepData ();
+    int[] data = getActiveLayer ().getDataUntracked ();
+
+    for (int j = dstRect.top; j < dstRect.bottom; j++)
+      {
+        int dstOffset = dstRect.left + j * getWidth ();
+        for (int i = dstRect.left; i < dstRect.right; i++, dstOffset++)
+          {
+            int opacity = opacityData[dstOffset];
+            if (opacity > 0)
+              {
+                long destColor = undoData[dstOffset];
+                long realAlpha = (destColor >>> 48) * (255 * 255 - opacity) / (255 * 255);
+                long newColor = destColor & 0xffffffffffffL | realAlpha << 48;
+                deepData[dstOffset] = newColor;
+                data[dstOffset] = CPColorBmp.fromDeep (newColor);
               }
           }
       }
+    getActiveLayer ().deepPixelsChanged (dstRect);
   }
 }
 
@@ -900,6 +1407,7 @@ class CPBrushToolDodge extends CPBrushToolSimpleBrush
   {
     int[] opacityData = tempBuffer.getData ();
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     for (int j = dstRect.top; j < dstRect.bottom; j++)
       {
@@ -931,7 +1439,7 @@ class CPBrushToolDodge extends CPBrushToolSimpleBrush
                       }
 
                     int newColor = destColor & 0xff000000 | r << 16 | g << 8 | b;
-                    getActiveLayer ().getData ()[dstOffset] = newColor;
+                    layerData[dstOffset] = newColor;
                   }
               }
           }
@@ -947,6 +1455,7 @@ class CPBrushToolBurn extends CPBrushToolSimpleBrush
   {
     int[] opacityData = tempBuffer.getData ();
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     for (int j = dstRect.top; j < dstRect.bottom; j++)
       {
@@ -983,7 +1492,7 @@ class CPBrushToolBurn extends CPBrushToolSimpleBrush
                       }
 
                     int newColor = destColor & 0xff000000 | r << 16 | g << 8 | b;
-                    getActiveLayer ().getData ()[dstOffset] = newColor;
+                    layerData[dstOffset] = newColor;
                   }
               }
           }
@@ -999,6 +1508,7 @@ class CPBrushToolBlur extends CPBrushToolSimpleBrush
   {
     int[] opacityData = tempBuffer.getData ();
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     for (int j = dstRect.top; j < dstRect.bottom; j++)
       {
@@ -1045,7 +1555,7 @@ class CPBrushToolBlur extends CPBrushToolSimpleBrush
                 r /= sum;
                 g /= sum;
                 b /= sum;
-                getActiveLayer ().getData ()[dstOffset] = a << 24 | r << 16 | g << 8 | b;
+                layerData[dstOffset] = a << 24 | r << 16 | g << 8 | b;
               }
           }
       }
@@ -1060,8 +1570,15 @@ class CPBrushToolDirectBrush extends CPBrushToolSimpleBrush
   @Override
   public void mergeOpacityBuf (CPRect dstRect, int color)
   {
+    if (deepColor)
+      {
+        mergeOpacityBufDeep (dstRect, color);
+        return;
+      }
+
     int[] opacityData = tempBuffer.getData ();
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     for (int j = dstRect.top; j < dstRect.bottom; j++)
       {
@@ -1083,7 +1600,7 @@ class CPBrushToolDirectBrush extends CPBrushToolSimpleBrush
                 int realAlpha = alpha1 * 255 / newAlpha;
                 int invAlpha = 255 - realAlpha;
 
-                getActiveLayer ().getData ()[dstOffset] = newAlpha << 24
+                layerData[dstOffset] = newAlpha << 24
                         | (((color1 >>> 16 & 0xff) * realAlpha + (color2 >>> 16 & 0xff) * invAlpha) / 255) << 16
                         | (((color1 >>> 8 & 0xff) * realAlpha + (color2 >>> 8 & 0xff) * invAlpha) / 255) << 8
                         | (((color1 & 0xff) * realAlpha + (color2 & 0xff) * invAlpha) / 255);
@@ -1091,6 +1608,33 @@ class CPBrushToolDirectBrush extends CPBrushToolSimpleBrush
           }
       }
   }
+
+  // The buffer holds colors here instead of opacity
+  @Override
+  void mergeOpacityBufDeep (CPRect dstRect, int color)
+  {
+    int[] opacityData = tempBuffer.getData ();
+    long[] undoData = undoManager.getActiveLayerPreservedDeepData ();
+    long[] deepData = getActiveLayer ().getDeepData ();
+    int[] data = getActiveLayer ().getDataUntracked ();
+
+    for (int j = dstRect.top; j < dstRect.bottom; j++)
+      {
+        int dstOffset = dstRect.left + j * getWidth ();
+        for (int i = dstRect.left; i < dstRect.right; i++, dstOffset++)
+          {
+            int color1 = opacityData[dstOffset];
+            int alpha1 = color1 >>> 24;
+            if (alpha1 > 0)
+              {
+                long newColor = CPColorBmp.blendDeep (CPColorBmp.toDeep (color1), alpha1 * 257, undoData[dstOffset]);
+                deepData[dstOffset] = newColor;
+                data[dstOffset] = CPColorBmp.fromDeep (newColor);
+              }
+          }
+      }
+    getActiveLayer ().deepPixelsChanged (dstRect);
+  }
 }
 
 class CPBrushToolWatercolor extends CPBrushToolDirectBrush
@@ -1098,13 +1642,30 @@ class CPBrushToolWatercolor extends CPBrushToolDirectBrush
 
   static final int wcMemory = 50;
   static final int wxMaxSampleRadius = 64;
+  static final int wcSampleCount = 33; // taken by sampleColor
+
+  // Ring of the last wcMemory colors, the oldest one at previousSamplesStart
+  final CPColorFloat[] previousSamples = new CPColorFloat[wcMemory];
+  int previousSamplesStart;
+  boolean hasPreviousSamples;
 
-  LinkedList<CPColorFloat> previousSamples;
+  // Scratch colors, so that no objects are allocated per dab
+  final CPColorFloat wcColor = new CPColorFloat ();
+  final CPColorFloat resatColor = new CPColorFloat ();
+  final CPColorFloat bleedColor = new CPColorFloat ();
+
+  CPBrushToolWatercolor ()
+  {
+    for (int i = 0; i < wcMemory; i++)
+      {
+        previousSamples[i] = new CPColorFloat ();
+      }
+  }
 
   @Override
   public void beginStroke (float x, float y, float pressure)
   {
-    previousSamples = null;
+    hasPreviousSamples = false;
 
     super.beginStroke (x, y, pressure);
   }
@@ -1112,43 +1673,48 @@ class CPBrushToolWatercolor extends CPBrushToolDirectBrush
   @Override
   void paintDabImplementation (CPRect srcRect, CPRect dstRect, CPBrushDab dab)
   {
-    if (previousSamples == null)
-      {
-        CPColorFloat startColor = sampleColor ((dstRect.left + dstRect.right) / 2,
-                                               (dstRect.top + dstRect.bottom) / 2, Math.max (1, Math.min (wxMaxSampleRadius,
-                                                                                                          dstRect.getWidth () * 2 / 6)), Math.max (1, Math.min (wxMaxSampleRadius, dstRect
-                .getHeight () * 2 / 6)));
+    int sampleX = (dstRect.left + dstRect.right) / 2;
+    int sampleY = (dstRect.top + dstRect.bottom) / 2;
+    int sampleDx = Math.max (1, Math.min (wxMaxSampleRadius, dstRect.getWidth () * 2 / 6));
+    int sampleDy = Math.max (1, Math.min (wxMaxSampleRadius, dstRect.getHeight () * 2 / 6));
 
-        previousSamples = new LinkedList<CPColorFloat> ();
+    if (!hasPreviousSamples)
+      {
+        sampleColor (sampleX, sampleY, sampleDx, sampleDy, wcColor);
         for (int i = 0; i < wcMemory; i++)
           {
-            previousSamples.addLast (startColor);
+            previousSamples[i].setColor (wcColor);
           }
+        previousSamplesStart = 0;
+        hasPreviousSamples = true;
       }
-    CPColorFloat wcColor = new CPColorFloat (0, 0, 0);
-    for (CPColorFloat sample : previousSamples)
+
+    // Summed from the oldest to the newest, as the floats depend on the order
+    wcColor.r = wcColor.g = wcColor.b = 0f;
+    for (int i = 0; i < wcMemory; i++)
       {
+        CPColorFloat sample = previousSamples[(previousSamplesStart + i) % wcMemory];
         wcColor.r += sample.r;
         wcColor.g += sample.g;
         wcColor.b += sample.b;
       }
-    wcColor.r /= previousSamples.size ();
-    wcColor.g /= previousSamples.size ();
-    wcColor.b /= previousSamples.size ();
+    wcColor.r /= wcMemory;
+    wcColor.g /= wcMemory;
+    wcColor.b /= wcMemory;
 
     // resaturation
-    int color = curColor & 0xffffff;
-    wcColor.mixWith (new CPColorFloat (color), curBrush.resat * curBrush.resat);
+    resatColor.setColor (curColor & 0xffffff);
+    wcColor.mixWith (resatColor, curBrush.resat * curBrush.resat);
 
     int newColor = wcColor.toInt ();
 
     // bleed
-    wcColor.mixWith (sampleColor ((dstRect.left + dstRect.right) / 2, (dstRect.top + dstRect.bottom) / 2, Math
-            .max (1, Math.min (wxMaxSampleRadius, dstRect.getWidth () * 2 / 6)), Math.max (1, Math.min (
-            wxMaxSampleRadius, dstRect.getHeight () * 2 / 6))), curBrush.bleed);
+    sampleColor (sampleX, sampleY, sampleDx, sampleDy, bleedColor);
+    wcColor.mixWith (bleedColor, curBrush.bleed);
 
-    previousSamples.addLast (wcColor);
-    previousSamples.removeFirst ();
+    // The oldest sample is replaced by the new one
+    previousSamples[previousSamplesStart].setColor (wcColor);
+    previousSamplesStart = (previousSamplesStart + 1) % wcMemory;
 
     paintDirect (srcRect, dstRect, dab.brush, dab.width, Math.max (1, dab.alpha / 4), newColor);
     mergeOpacityBuffer (0);
@@ -1201,43 +1767,37 @@ class CPBrushToolWatercolor extends CPBrushToolDirectBrush
       }
   }
 
-  CPColorFloat sampleColor (int x, int y, int dx, int dy)
+  // Stores the average of the samples around (x, y) to average
+  void sampleColor (int x, int y, int dx, int dy, CPColorFloat average)
   {
-    LinkedList<CPColorFloat> samples = new LinkedList<CPColorFloat> ();
-
     CPLayer layerToSample = isSampleAllLayers () ? fusion : getActiveLayer ();
 
-    samples.addLast (new CPColorFloat (layerToSample.getPixel (x, y) & 0xffffff));
+    average.r = average.g = average.b = 0f;
+    addSample (average, layerToSample.getPixel (x, y));
 
     for (float r = 0.25f; r < 1.001f; r += .25f)
       {
-        samples.addLast (new CPColorFloat (layerToSample.getPixel ((int) (x + r * dx), y) & 0xffffff));
-        samples.addLast (new CPColorFloat (layerToSample.getPixel ((int) (x - r * dx), y) & 0xffffff));
-        samples.addLast (new CPColorFloat (layerToSample.getPixel (x, (int) (y + r * dy)) & 0xffffff));
-        samples.addLast (new CPColorFloat (layerToSample.getPixel (x, (int) (y - r * dy)) & 0xffffff));
-
-        samples.addLast (new CPColorFloat (layerToSample.getPixel ((int) (x + r * .7f * dx), (int) (y + r * .7f
-                * dy)) & 0xffffff));
-        samples.addLast (new CPColorFloat (layerToSample.getPixel ((int) (x + r * .7f * dx), (int) (y - r * .7f
-                * dy)) & 0xffffff));
-        samples.addLast (new CPColorFloat (layerToSample.getPixel ((int) (x - r * .7f * dx), (int) (y + r * .7f
-                * dy)) & 0xffffff));
-        samples.addLast (new CPColorFloat (layerToSample.getPixel ((int) (x - r * .7f * dx), (int) (y - r * .7f
-                * dy)) & 0xffffff));
+        addSample (average, layerToSample.getPixel ((int) (x + r * dx), y));
+        addSample (average, layerToSample.getPixel ((int) (x - r * dx), y));
+        addSample (average, layerToSample.getPixel (x, (int) (y + r * dy)));
+        addSample (average, layerToSample.getPixel (x, (int) (y - r * dy)));
+
+        addSample (average, layerToSample.getPixel ((int) (x + r * .7f * dx), (int) (y + r * .7f * dy)));
+        addSample (average, layerToSample.getPixel ((int) (x + r * .7f * dx), (int) (y - r * .7f * dy)));
+        addSample (average, layerToSample.getPixel ((int) (x - r * .7f * dx), (int) (y + r * .7f * dy)));
+        addSample (average, layerToSample.getPixel ((int) (x - r * .7f * dx), (int) (y - r * .7f * dy)));
       }
 
-    CPColorFloat average = new CPColorFloat (0, 0, 0);
-    for (CPColorFloat sample : samples)
-      {
-        average.r += sample.r;
-        average.g += sample.g;
-        average.b += sample.b;
-      }
-    average.r /= samples.size ();
-    average.g /= samples.size ();
-    average.b /= samples.size ();
+    average.r /= wcSampleCount;
+    average.g /= wcSampleCount;
+    average.b /= wcSampleCount;
+  }
 
-    return average;
+  void addSample (CPColorFloat sum, int color)
+  {
+    sum.r += (color >>> 16 & 0xff) / 255f;
+    sum.g += (color >>> 8 & 0xff) / 255f;
+    sum.b += (color & 0xff) / 255f;
   }
 }
 
@@ -1274,6 +1834,7 @@ class CPBrushToolOil extends CPBrushToolDirectBrush
   private void oilAccumBuffer (CPRect srcRect, CPRect dstRect, int[] buffer, int w, int alpha)
   {
     CPLayer layerToSample = isSampleAllLayers () ? fusion : getActiveLayer ();
+    int[] sampleData = layerToSample.getDataUntracked ();
 
     int by = srcRect.top;
     for (int j = dstRect.top; j < dstRect.bottom; j++, by++)
@@ -1282,7 +1843,7 @@ class CPBrushToolOil extends CPBrushToolDirectBrush
         int dstOffset = dstRect.left + j * getWidth ();
         for (int i = dstRect.left; i < dstRect.right; i++, srcOffset++, dstOffset++)
           {
-            int color1 = layerToSample.getData ()[dstOffset];
+            int color1 = sampleData[dstOffset];
             int alpha1 = (color1 >>> 24) * alpha / 255;
             if (alpha1 <= 0)
               {
@@ -1349,6 +1910,7 @@ class CPBrushToolOil extends CPBrushToolDirectBrush
   private void oilPasteBuffer (CPRect srcRect, CPRect dstRect, int[] buffer, byte[] brush, int w, int alpha)
   {
     int[] opacityData = tempBuffer.getData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     int by = srcRect.top;
     for (int j = dstRect.top; j < dstRect.bottom; j++, by++)
@@ -1364,7 +1926,7 @@ class CPBrushToolOil extends CPBrushToolDirectBrush
                 continue;
               }
 
-            int color2 = getActiveLayer ().getData ()[dstOffset];
+            int color2 = layerData[dstOffset];
             int alpha2 = (color2 >>> 24);
 
             int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -1426,6 +1988,7 @@ class CPBrushToolSmudge extends CPBrushToolDirectBrush
   {
 
     CPLayer layerToSample = isSampleAllLayers () ? fusion : getActiveLayer ();
+    int[] sampleData = layerToSample.getDataUntracked ();
 
     int by = srcRect.top;
     for (int j = dstRect.top; j < dstRect.bottom; j++, by++)
@@ -1434,7 +1997,7 @@ class CPBrushToolSmudge extends CPBrushToolDirectBrush
         int dstOffset = dstRect.left + j * getWidth ();
         for (int i = dstRect.left; i < dstRect.right; i++, srcOffset++, dstOffset++)
           {
-            int layerColor = layerToSample.getData ()[dstOffset];
+            int layerColor = sampleData[dstOffset];
             int opacityAlpha = 255 - alpha;
             if (opacityAlpha > 0)
               {
@@ -1531,6 +2094,7 @@ class CPBrushToolSmudge extends CPBrushToolDirectBrush
   private void smudgePasteBuffer (CPRect srcRect, CPRect dstRect, int[] buffer, byte[] brush, int w)
   {
     int[] undoData = undoManager.getActiveLayerPreservedData ();
+    int[] layerData = getActiveLayer ().getData ();
 
     int by = srcRect.top;
     for (int j = dstRect.top; j < dstRect.bottom; j++, by++)
@@ -1557,7 +2121,7 @@ class CPBrushToolSmudge extends CPBrushToolDirectBrush
                         | (((bufferColor & 0xff) * realAlpha + (destColor & 0xff) * invAlpha) / 255)
                         & 0xff;
 
-                getActiveLayer ().getData ()[dstOffset] = newColor;
+                layerData[dstOffset] = newColor;
               }
           }
       }
@@ -1577,6 +2141,7 @@ public void setActiveLayerNumberWithoutUndo (int i)       // warning, use it onl
 
   setActiveLayerNumberWithoutUpdate (i);
   activeLayer = getLayersVector ().get (i);
+  compactInactiveLayers ();
   callListenersLayerChange ();
 }
 
@@ -1746,6 +2311,15 @@ public CPRect getSize ()
 //
 
 public void invalidateFusion (CPRect r)
+{
+  fusionArea.union (r);
+  belowCacheDirty.union (r);
+  aboveCacheDirty.union (r);
+  callListenersUpdateRegion (r);
+}
+
+// Use it when only the active layer has changed, composite caches stay valid then
+void invalidateFusionOfActiveLayer (CPRect r)
 {
   fusionArea.union (r);
   callListenersUpdateRegion (r);
@@ -1832,8 +2406,19 @@ public void mergeDown ()
   if (getLayersVector ().size () > 0 && getActiveLayerNum () > 0)
     {
       undoManager.beforeMergingLayer ();
-      getLayersVector ().elementAt (getActiveLayerNum ()).fusionWithFullAlpha (getLayersVector ().elementAt (getActiveLayerNum () - 1),
-                                                                               new CPRect (getWidth (), getHeight ()));
+      CPLayer layer = getLayersVector ().elementAt (getActiveLayerNum ());
+      CPLayer below = getLayersVector ().elementAt (getActiveLayerNum () - 1);
+      if (deepColor && layer.getBlendMode () == CPLayer.LM_NORMAL)
+        {
+          // The merged layer keeps 16 bits per channel
+          below.prepareForBlending ();
+          below.getDeepData ();
+          layer.fusionWithDeep (below, new CPRect (getWidth (), getHeight ()));
+        }
+      else
+        {
+          layer.fusionWithFullAlpha (below, new CPRect (getWidth (), getHeight ()));
+        }
       getLayersVector ().remove (getActiveLayerNum ());
       setActiveLayerNumberWithoutUndo (getActiveLayerNum () - 1);
 
@@ -1930,7 +2515,11 @@ public void doEffectAction (boolean applyToAllLayers, CPEffect effect)
   if (!applyToAllLayers)
     {
       undoManager.preserveActiveLayerData ();
+      CPRect contentBounds = getActiveLayer ().getContentBounds ();
       effect.doEffectOn (getActiveLayer (), curSelection);
+      // Effects only change the pixels inside the selection
+      contentBounds.union (rect);
+      getActiveLayer ().setContentBounds (contentBounds);
 
       undoManager.activeLayerDataChange (rect);
     }
@@ -1939,9 +2528,14 @@ public void doEffectAction (boolean applyToAllLayers, CPEffect effect)
       undoManager.preserveAllLayersState ();
       for (int i = 0; i < getLayersVector ().size (); i++)
         {
-          effect.doEffectOn (getLayersVector ().elementAt (i), curSelection);
+          CPLayer layer = getLayersVector ().elementAt (i);
+          CPRect contentBounds = layer.getContentBounds ();
+          effect.doEffectOn (layer, curSelection);
+          contentBounds.union (rect);
+          layer.setContentBounds (contentBounds);
         }
       undoManager.allLayersChanged (rect);
+      compactInactiveLayers ();
     }
 
   invalidateFusion ();
@@ -1970,6 +2564,7 @@ public String getDefaultLayerName ()
 
 public boolean hasAlpha ()
 {
+  fusionLayers ();
   return fusion.hasAlpha ();
 }
 
@@ -1995,6 +2590,11 @@ public boolean isLockAlpha ()
   return lockAlpha;
 }
 
+public boolean isDeepColor ()
+{
+  return deepColor;
+}
+
 public boolean isSampleAllLayers ()
 {
   return sampleAllLayers;
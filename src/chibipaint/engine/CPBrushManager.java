@@ -21,22 +21,54 @@
 
 package chibipaint.engine;
 
+import gnu.trove.map.hash.TLongObjectHashMap;
+
 public class CPBrushManager
 {
 
-private byte[] brush;
+// Scratch buffer for textured dabs, cached masks are never changed
 private final byte[] brushAA;
-
-private byte[] cacheBrush;
-private float cacheSize;
-private float cacheSqueeze;
-private float cacheAngle;
-private int cacheType;
+// Returned by getDab, so that painting doesn't allocate anything
+private final CPBrushDab dab = new CPBrushDab ();
 
 private CPGreyBmp texture;
 
 private static final float MAX_SQUEEZE = 10;
 
+//
+// Mask cache
+//
+// Masks of recently used brushes, keyed by their shape and for AA dabs by their sub-pixel offset, all
+// quantized so that dabs with close enough values share them. With pressure controlled size nearly
+// every dab has another size, a cache of the last brush only would miss all the time.
+// Least recently used masks are dropped once they take more than maxCacheBytes, the entries are kept
+// in a list ordered by use so that finding the oldest one doesn't need a scan.
+
+private static final int SIZE_STEPS = 4; // per pixel
+private static final int OFFSET_STEPS = 4; // per pixel
+private static final int ANGLE_STEPS = 1024; // per turn
+private static final int SQUEEZE_STEPS = 64;
+private static final int DEFAULT_CACHE_BYTES = 8 << 20;
+
+private static class CachedMask
+{
+  final long key;
+  final byte[] mask;
+  CachedMask newer, older;
+
+  CachedMask (long key, byte[] mask)
+  {
+    this.key = key;
+    this.mask = mask;
+  }
+}
+
+private final TLongObjectHashMap<CachedMask> maskCache = new TLongObjectHashMap<CachedMask> ();
+private CachedMask newestMask, oldestMask;
+private int maxCacheBytes = DEFAULT_CACHE_BYTES;
+private long cacheBytes;
+private long cacheHits, cacheMisses;
+
 public static class CPBrushDab
 {
 
@@ -50,7 +82,6 @@ public static class CPBrushDab
 
 public CPBrushManager ()
 {
-  brush = new byte[201 * 201];
   brushAA = new byte[202 * 202];
 
   // test texture
@@ -60,17 +91,19 @@ public CPBrushManager ()
 		 */
 }
 
+// The dab is only valid until the next call
 public CPBrushDab getDab (float x, float y, CPBrushInfo brushInfo)
 {
-  CPBrushDab dab = new CPBrushDab ();
   dab.alpha = brushInfo.curAlpha;
 
   // FIXME: I don't like this special case for ROUND_PIXEL
   // it would be better to have brush presets for working with pixels
   boolean useAA = brushInfo.isAA && brushInfo.type != CPBrushInfo.B_ROUND_PIXEL;
 
-  dab.width = (int) (brushInfo.curSize + .99f);
-  dab.height = (int) (brushInfo.curSize + .99f);
+  int sizeSteps = Math.max (1, Math.round (brushInfo.curSize * SIZE_STEPS));
+  int intSize = (int) ((float) sizeSteps / SIZE_STEPS + .99f);
+  dab.width = intSize;
+  dab.height = intSize;
 
   if (useAA)
     {
@@ -91,15 +124,16 @@ public CPBrushDab getDab (float x, float y, CPBrushInfo brushInfo)
       ny -= 1;
     }
 
+  long key = getShapeKey (brushInfo, sizeSteps);
   if (useAA)
     {
-      float dx = Math.abs (nx - ((int) nx));
-      float dy = Math.abs (ny - ((int) ny));
-      dab.brush = getBrushWithAA (brushInfo, dx, dy);
+      int dx = Math.round (Math.abs (nx - ((int) nx)) * OFFSET_STEPS);
+      int dy = Math.round (Math.abs (ny - ((int) ny)) * OFFSET_STEPS);
+      dab.brush = getBrushWithAA (key, intSize, dx, dy);
     }
   else
     {
-      dab.brush = getBrush (brushInfo);
+      dab.brush = getBrush (key, intSize);
     }
 
   dab.x = (int) nx;
@@ -108,70 +142,151 @@ public CPBrushDab getDab (float x, float y, CPBrushInfo brushInfo)
   if (brushInfo.texture > 0.f && texture != null)
     {
       // we need a brush bitmap that can be modified everytime
-      // the one in "tool_preferences" can be kept in cache so if we are using it, make a copySelected
-      if (dab.brush == brush)
-        {
-          System.arraycopy (brush, 0, brushAA, 0, dab.width * dab.height);
-          dab.brush = brushAA;
-        }
+      System.arraycopy (dab.brush, 0, brushAA, 0, dab.width * dab.height);
+      dab.brush = brushAA;
       applyTexture (dab, brushInfo.texture);
     }
   return dab;
 }
 
-byte[] getBrush (CPBrushInfo brushInfo)
+// Bits 0-3 type, 4-15 size, 16-25 angle, 26-37 squeeze. AA variants add their offsets above
+private static long getShapeKey (CPBrushInfo brushInfo, int sizeSteps)
 {
-  if (cacheBrush != null && brushInfo.curSize == cacheSize && brushInfo.curSqueeze == cacheSqueeze
-          && brushInfo.curAngle == cacheAngle && brushInfo.type == cacheType)
+  double turns = brushInfo.curAngle / (2 * Math.PI);
+  long angle = Math.round ((turns - Math.floor (turns)) * ANGLE_STEPS) % ANGLE_STEPS;
+  long squeeze = Math.round (brushInfo.curSqueeze * SQUEEZE_STEPS) & 0xfff;
+  return brushInfo.type & 0xf | (long) (sizeSteps & 0xfff) << 4 | angle << 16 | squeeze << 26;
+}
+
+private CachedMask getCached (long key)
+{
+  CachedMask cached = maskCache.get (key);
+  if (cached != null)
+    {
+      if (cached != newestMask)
+        {
+          unlink (cached);
+          linkNewest (cached);
+        }
+      cacheHits++;
+    }
+  else
     {
-      return cacheBrush;
+      cacheMisses++;
     }
+  return cached;
+}
 
-  if (brushInfo.type == CPBrushInfo.B_ROUND_AIRBRUSH)
+private byte[] putCached (long key, byte[] mask)
+{
+  CachedMask cached = new CachedMask (key, mask);
+  linkNewest (cached);
+  maskCache.put (key, cached);
+  cacheBytes += mask.length;
+
+  // The mask just added and the brush an AA one is made from are the two newest, they are always kept
+  while (cacheBytes > maxCacheBytes && maskCache.size () > 2)
+    {
+      CachedMask oldest = oldestMask;
+      unlink (oldest);
+      maskCache.remove (oldest.key);
+      cacheBytes -= oldest.mask.length;
+    }
+  return mask;
+}
+
+private void linkNewest (CachedMask cached)
+{
+  cached.older = newestMask;
+  cached.newer = null;
+  if (newestMask != null)
     {
-      brush = buildBrushSoft (brush, brushInfo);
+      newestMask.newer = cached;
     }
-  else if (brushInfo.type == CPBrushInfo.B_ROUND_AA)
+  else
     {
-      brush = buildBrushAA (brush, brushInfo);
+      oldestMask = cached;
     }
-  else if (brushInfo.type == CPBrushInfo.B_ROUND_PIXEL)
+  newestMask = cached;
+}
+
+private void unlink (CachedMask cached)
+{
+  if (cached.newer != null)
     {
-      brush = buildBrush (brush, brushInfo);
+      cached.newer.older = cached.older;
     }
-  else if (brushInfo.type == CPBrushInfo.B_SQUARE_AA)
+  else
     {
-      brush = buildBrushSquareAA (brush, brushInfo);
+      newestMask = cached.older;
     }
-  else if (brushInfo.type == CPBrushInfo.B_SQUARE_PIXEL)
+  if (cached.older != null)
     {
-      brush = buildBrushSquare (brush, brushInfo);
+      cached.older.newer = cached.newer;
     }
-
-  cacheBrush = brush;
-  cacheSize = brushInfo.curSize;
-  cacheType = brushInfo.type;
-  cacheSqueeze = brushInfo.curSqueeze;
-  cacheAngle = brushInfo.curAngle;
-
-  return brush;
+  else
+    {
+      oldestMask = cached.newer;
+    }
+  cached.newer = null;
+  cached.older = null;
 }
 
-byte[] getBrushWithAA (CPBrushInfo brushInfo, float dx, float dy)
+byte[] getBrush (long key, int intSize)
 {
-  byte[] nonAABrush = getBrush (brushInfo);
+  CachedMask cached = getCached (key);
+  if (cached != null)
+    {
+      return cached.mask;
+    }
 
-  int intSize = (int) (brushInfo.curSize + .99f);
-  int intSizeAA = (int) (brushInfo.curSize + .99f) + 1;
+  int type = (int) (key & 0xf);
+  float size = (float) (key >>> 4 & 0xfff) / SIZE_STEPS;
+  float angle = (float) ((key >>> 16 & 0x3ff) * 2 * Math.PI / ANGLE_STEPS);
+  float squeeze = (float) (key >>> 26 & 0xfff) / SQUEEZE_STEPS;
 
-  for (int y = 0; y < intSizeAA; y++)
+  byte[] brush = new byte[intSize * intSize];
+  if (type == CPBrushInfo.B_ROUND_AIRBRUSH)
     {
-      for (int x = 0; x < intSizeAA; x++)
-        {
-          brushAA[y * intSizeAA + x] = 0;
-        }
+      buildBrushSoft (brush, size, squeeze, angle);
+    }
+  else if (type == CPBrushInfo.B_ROUND_AA)
+    {
+      buildBrushAA (brush, size, squeeze, angle);
+    }
+  else if (type == CPBrushInfo.B_ROUND_PIXEL)
+    {
+      buildBrush (brush, size, squeeze, angle);
+    }
+  else if (type == CPBrushInfo.B_SQUARE_AA)
+    {
+      buildBrushSquareAA (brush, size, squeeze, angle);
+    }
+  else if (type == CPBrushInfo.B_SQUARE_PIXEL)
+    {
+      buildBrushSquare (brush, size, squeeze, angle);
     }
 
+  return putCached (key, brush);
+}
+
+// dxSteps and dySteps are the sub-pixel offset in OFFSET_STEPS per pixel, from 0 to OFFSET_STEPS
+byte[] getBrushWithAA (long shapeKey, int intSize, int dxSteps, int dySteps)
+{
+  long key = shapeKey | 1L << 38 | (long) dxSteps << 39 | (long) dySteps << 42;
+  CachedMask cached = getCached (key);
+  if (cached != null)
+    {
+      return cached.mask;
+    }
+
+  byte[] nonAABrush = getBrush (shapeKey, intSize);
+  float dx = (float) dxSteps / OFFSET_STEPS;
+  float dy = (float) dySteps / OFFSET_STEPS;
+
+  int intSizeAA = intSize + 1;
+  byte[] brushAA = new byte[intSizeAA * intSizeAA];
+
   for (int y = 0; y < intSize; y++)
     {
       for (int x = 0; x < intSize; x++)
@@ -185,19 +300,41 @@ byte[] getBrushWithAA (CPBrushInfo brushInfo, float dx, float dy)
         }
     }
 
-  return brushAA;
+  return putCached (key, brushAA);
+}
+
+// 0 keeps the last brush only
+public void setMaxCacheBytes (int bytes)
+{
+  maxCacheBytes = bytes;
+}
+
+public long getCacheHits ()
+{
+  return cacheHits;
+}
+
+public long getCacheMisses ()
+{
+  return cacheMisses;
+}
+
+public void resetCacheStats ()
+{
+  cacheHits = 0;
+  cacheMisses = 0;
 }
 
-private static byte[] buildBrush (byte[] brushArg, CPBrushInfo brushInfo)
+private static void buildBrush (byte[] brushArg, float curSize, float curSqueeze, float curAngle)
 {
-  int intSize = (int) (brushInfo.curSize + .99f);
+  int intSize = (int) (curSize + .99f);
   float center = intSize / 2.f;
-  float sqrRadius = (brushInfo.curSize / 2) * (brushInfo.curSize / 2);
+  float sqrRadius = (curSize / 2) * (curSize / 2);
 
-  float xFactor = 1f + brushInfo.curSqueeze * MAX_SQUEEZE;
+  float xFactor = 1f + curSqueeze * MAX_SQUEEZE;
 
-  float cosA = (float) Math.cos (brushInfo.curAngle);
-  float sinA = (float) Math.sin (brushInfo.curAngle);
+  float cosA = (float) Math.cos (curAngle);
+  float sinA = (float) Math.sin (curAngle);
 
   int offset = 0;
   for (int j = 0; j < intSize; j++)
@@ -222,20 +359,19 @@ private static byte[] buildBrush (byte[] brushArg, CPBrushInfo brushInfo)
         }
     }
 
-  return brushArg;
 }
 
-private static byte[] buildBrushAA (byte[] brushArg, CPBrushInfo brushInfo)
+private static void buildBrushAA (byte[] brushArg, float curSize, float curSqueeze, float curAngle)
 {
-  int intSize = (int) (brushInfo.curSize + .99f);
+  int intSize = (int) (curSize + .99f);
   float center = intSize / 2.f;
-  float sqrRadius = (brushInfo.curSize / 2) * (brushInfo.curSize / 2);
-  float sqrRadiusInner = ((brushInfo.curSize - 2) / 2) * ((brushInfo.curSize - 2) / 2);
-  float sqrRadiusOuter = ((brushInfo.curSize + 2) / 2) * ((brushInfo.curSize + 2) / 2);
+  float sqrRadius = (curSize / 2) * (curSize / 2);
+  float sqrRadiusInner = ((curSize - 2) / 2) * ((curSize - 2) / 2);
+  float sqrRadiusOuter = ((curSize + 2) / 2) * ((curSize + 2) / 2);
 
-  float xFactor = 1f + brushInfo.curSqueeze * MAX_SQUEEZE;
-  float cosA = (float) Math.cos (brushInfo.curAngle);
-  float sinA = (float) Math.sin (brushInfo.curAngle);
+  float xFactor = 1f + curSqueeze * MAX_SQUEEZE;
+  float cosA = (float) Math.cos (curAngle);
+  float sinA = (float) Math.sin (curAngle);
 
   int offset = 0;
   for (int j = 0; j < intSize; j++)
@@ -281,20 +417,19 @@ private static byte[] buildBrushAA (byte[] brushArg, CPBrushInfo brushInfo)
         }
     }
 
-  return brushArg;
 }
 
-private static byte[] buildBrushSquare (byte[] brushArg, CPBrushInfo brushInfo)
+private static void buildBrushSquare (byte[] brushArg, float curSize, float curSqueeze, float curAngle)
 {
-  int intSize = (int) (brushInfo.curSize + .99f);
+  int intSize = (int) (curSize + .99f);
   float center = intSize / 2.f;
 
-  float size = brushInfo.curSize * (float) Math.sin (Math.PI / 4);
-  float sizeX = (size / 2) / (1f + brushInfo.curSqueeze * MAX_SQUEEZE);
+  float size = curSize * (float) Math.sin (Math.PI / 4);
+  float sizeX = (size / 2) / (1f + curSqueeze * MAX_SQUEEZE);
   float sizeY = (size / 2);
 
-  float cosA = (float) Math.cos (brushInfo.curAngle);
-  float sinA = (float) Math.sin (brushInfo.curAngle);
+  float cosA = (float) Math.cos (curAngle);
+  float sinA = (float) Math.sin (curAngle);
 
   int offset = 0;
   for (int j = 0; j < intSize; j++)
@@ -317,16 +452,15 @@ private static byte[] buildBrushSquare (byte[] brushArg, CPBrushInfo brushInfo)
         }
     }
 
-  return brushArg;
 }
 
-private static byte[] buildBrushSquareAA (byte[] brushArg, CPBrushInfo brushInfo)
+private static void buildBrushSquareAA (byte[] brushArg, float curSize, float curSqueeze, float curAngle)
 {
-  int intSize = (int) (brushInfo.curSize + .99f);
+  int intSize = (int) (curSize + .99f);
   float center = intSize / 2.f;
 
-  float size = brushInfo.curSize * (float) Math.sin (Math.PI / 4);
-  float sizeX = (size / 2) / (1f + brushInfo.curSqueeze * MAX_SQUEEZE);
+  float size = curSize * (float) Math.sin (Math.PI / 4);
+  float sizeX = (size / 2) / (1f + curSqueeze * MAX_SQUEEZE);
   float sizeY = (size / 2);
 
   float sizeXInner = sizeX - 1;
@@ -335,8 +469,8 @@ private static byte[] buildBrushSquareAA (byte[] brushArg, CPBrushInfo brushInfo
   float sizeXOuter = sizeX + 1;
   float sizeYOuter = sizeY + 1;
 
-  float cosA = (float) Math.cos (brushInfo.curAngle);
-  float sinA = (float) Math.sin (brushInfo.curAngle);
+  float cosA = (float) Math.cos (curAngle);
+  float sinA = (float) Math.sin (curAngle);
 
   int offset = 0;
   for (int j = 0; j < intSize; j++)
@@ -379,18 +513,17 @@ private static byte[] buildBrushSquareAA (byte[] brushArg, CPBrushInfo brushInfo
         }
     }
 
-  return brushArg;
 }
 
-private static byte[] buildBrushSoft (byte[] brushArg, CPBrushInfo brushInfo)
+private static void buildBrushSoft (byte[] brushArg, float curSize, float curSqueeze, float curAngle)
 {
-  int intSize = (int) (brushInfo.curSize + .99f);
+  int intSize = (int) (curSize + .99f);
   float center = intSize / 2.f;
-  float sqrRadius = (brushInfo.curSize / 2) * (brushInfo.curSize / 2);
+  float sqrRadius = (curSize / 2) * (curSize / 2);
 
-  float xFactor = 1f + brushInfo.curSqueeze * MAX_SQUEEZE;
-  float cosA = (float) Math.cos (brushInfo.curAngle);
-  float sinA = (float) Math.sin (brushInfo.curAngle);
+  float xFactor = 1f + curSqueeze * MAX_SQUEEZE;
+  float cosA = (float) Math.cos (curAngle);
+  float sinA = (float) Math.sin (curAngle);
 
   // byte[] brush = new int[size * size];
   int offset = 0;
@@ -416,7 +549,6 @@ private static byte[] buildBrushSoft (byte[] brushArg, CPBrushInfo brushInfo)
         }
     }
 
-  return brushArg;
 }
 
 void applyTexture (CPBrushDab dab, float textureAmount)
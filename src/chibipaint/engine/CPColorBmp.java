@@ -28,6 +28,7 @@ import gnu.trove.stack.array.TIntArrayStack;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.util.Arrays;
 
 //
 // A 32bpp bitmap class (ARGB format)
@@ -36,9 +37,56 @@ import java.awt.image.DataBufferInt;
 public class CPColorBmp extends CPBitmap
 {
 
-// The bitmap data
+// The bitmap data, null while the bitmap is kept in tiles
 private int[] data;
 
+//
+// Sparse tiled storage
+//
+// The bitmap may instead keep its pixels in TILE_SIZE x TILE_SIZE tiles, a null tile
+// costs no memory and is uniformly filled with its tileFill value (usually transparent).
+// getData () converts the bitmap back to flat storage, compact () converts it to tiles.
+
+public static final int TILE_SHIFT = 6;
+public static final int TILE_SIZE = 1 << TILE_SHIFT;
+private static final int TILE_MASK = TILE_SIZE - 1;
+
+private int[][] tiles;
+private int[] tileFill;
+
+//
+// Tile opacity
+//
+// Opacity of every tile of the grid is cached whatever the storage is. Methods of this class
+// forget the tiles they change, getData () forgets all of them since its caller may write anywhere.
+
+static final byte OPACITY_UNKNOWN = 0;
+static final byte OPACITY_TRANSPARENT = 1;
+static final byte OPACITY_OPAQUE = 2;
+static final byte OPACITY_MIXED = 3;
+
+private byte[] tileOpacity;
+private boolean tileOpacityForgotten = true;
+
+//
+// Content bounds
+//
+// Conservative bounding box of the pixels which aren't fully transparent, everything outside
+// of it can be skipped. Writes through getData () make it the whole bitmap again. Changed in place,
+// it's extended for every dab and merged row.
+
+private final CPRect contentBounds = new CPRect ();
+
+//
+// Deep color
+//
+// Optional copy of the pixels with 16 bits per channel (0xAAAARRRRGGGGBBBB), so that changes made
+// again and again with low opacity don't stop at 8-bit rounding. Everything else still works with
+// 8-bit data, which is kept equal to the deep pixels rounded. Only the deep aware brush merges
+// keep it, any other write drops it and the bitmap goes back to 8-bit precision.
+
+private long[] deepData;
+
 //
 // Constructors
 //
@@ -50,11 +98,19 @@ public CPColorBmp (int width, int height)
   this.data = new int[width * height];
 }
 
+// Allocates a new tiled bitmap uniformly filled with color
+CPColorBmp (int width, int height, int color)
+{
+  super (width, height);
+  fillTiles (color);
+}
+
 // Creates a CPBitmap object from existing bitmap data
 public CPColorBmp (int width, int height, int[] data)
 {
   super (width, height);
   this.data = data;
+  contentBounds.setSize (width, height);
 }
 
 // Creates a CPBitmap by copying a part of another CPBitmap
@@ -63,6 +119,7 @@ public CPColorBmp (CPColorBmp bmp, CPRect r)
   super (r.getWidth (), r.getHeight ());
 
   data = new int[width * height];
+  contentBounds.setSize (width, height);
 
   setFromBitmapRect (bmp, r);
 }
@@ -73,6 +130,7 @@ public CPColorBmp (BufferedImage image)
   super (image.getWidth (), image.getHeight ());
 
   data = ((DataBufferInt) image.getData ().getDataBuffer ()).getData (); // Magical trick
+  contentBounds.setSize (width, height);
 }
 
 //
@@ -85,7 +143,13 @@ public int getPixel (int xArg, int yArg)
   x = Math.max (0, Math.min (width - 1, x));
   y = Math.max (0, Math.min (height - 1, y));
 
-  return getData ()[x + y * width];
+  if (tiles != null)
+    {
+      int t = getTileIndex (x, y);
+      return tiles[t] == null ? tileFill[t] : tiles[t][getOffsetInTile (x, y)];
+    }
+
+  return data[x + y * width];
 }
 
 public void setPixel (int x, int y, int color)
@@ -95,7 +159,781 @@ public void setPixel (int x, int y, int color)
       return;
     }
 
-  getData ()[x + y * width] = color;
+  forgetTileOpacity (x, y, 1);
+  forgetDeepData ();
+  if ((color & 0xff000000) != 0)
+    {
+      extendContentBounds (x, y, x + 1, y + 1);
+    }
+  if (tiles != null)
+    {
+      int t = getTileIndex (x, y);
+      if (tiles[t] != null || tileFill[t] != color)
+        {
+          getWritableTile (t)[getOffsetInTile (x, y)] = color;
+        }
+      return;
+    }
+
+  data[x + y * width] = color;
+}
+
+//
+// Tiles related methods
+//
+
+public boolean isTiled ()
+{
+  return tiles != null;
+}
+
+int getTilesX ()
+{
+  return (width + TILE_MASK) >> TILE_SHIFT;
+}
+
+int getTilesY ()
+{
+  return (height + TILE_MASK) >> TILE_SHIFT;
+}
+
+private int getTileIndex (int x, int y)
+{
+  return (y >> TILE_SHIFT) * getTilesX () + (x >> TILE_SHIFT);
+}
+
+private static int getOffsetInTile (int x, int y)
+{
+  return ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+}
+
+private int[] getWritableTile (int t)
+{
+  if (tiles[t] == null)
+    {
+      tiles[t] = new int[TILE_SIZE * TILE_SIZE];
+      Arrays.fill (tiles[t], tileFill[t]);
+    }
+  return tiles[t];
+}
+
+private byte[] getTileOpacityArray ()
+{
+  int count = getTilesX () * getTilesY ();
+  if (tileOpacity == null || tileOpacity.length != count)
+    {
+      tileOpacity = new byte[count];
+    }
+  else if (tileOpacityForgotten)
+    {
+      Arrays.fill (tileOpacity, OPACITY_UNKNOWN);
+    }
+  tileOpacityForgotten = false;
+  return tileOpacity;
+}
+
+private static byte getOpacityOf (int color)
+{
+  int alpha = color >>> 24;
+  return alpha == 0 ? OPACITY_TRANSPARENT : (alpha == 255 ? OPACITY_OPAQUE : OPACITY_MIXED);
+}
+
+// True if tileOpacity holds the opacity of the current tiles, possibly unknown for some of them
+private boolean hasTileOpacity ()
+{
+  return tileOpacity != null && !tileOpacityForgotten && tileOpacity.length == getTilesX () * getTilesY ();
+}
+
+// Opacity of tile t if it's known without looking at the pixels. Doesn't change anything, so that fusion
+// threads can call it on the layers they read
+byte getKnownTileOpacity (int t)
+{
+  if (tiles != null && tiles[t] == null)
+    {
+      return getOpacityOf (tileFill[t]);
+    }
+  return hasTileOpacity () ? tileOpacity[t] : OPACITY_UNKNOWN;
+}
+
+// Opacity of the tile containing the top left corner of r
+byte getKnownTileOpacity (CPRect r)
+{
+  return getKnownTileOpacity (getTileIndex (r.left, r.top));
+}
+
+byte getTileOpacity (int t)
+{
+  byte opacity = getKnownTileOpacity (t);
+  if (opacity == OPACITY_UNKNOWN)
+    {
+      int tilesX = getTilesX ();
+      int left = (t % tilesX) << TILE_SHIFT;
+      int top = (t / tilesX) << TILE_SHIFT;
+      opacity = computeOpacity (new CPRect (left, top, Math.min (width, left + TILE_SIZE),
+                                            Math.min (height, top + TILE_SIZE)));
+      if (hasTileOpacity ())
+        {
+          tileOpacity[t] = opacity;
+        }
+    }
+  return opacity;
+}
+
+// Looks at the pixels of r, which should be inside a single tile
+private byte computeOpacity (CPRect r)
+{
+  int[] src;
+  int offset, stride;
+  if (tiles == null)
+    {
+      src = data;
+      offset = r.left + r.top * width;
+      stride = width;
+    }
+  else
+    {
+      int t = getTileIndex (r.left, r.top);
+      if (tiles[t] == null)
+        {
+          return getOpacityOf (tileFill[t]);
+        }
+      src = tiles[t];
+      offset = getOffsetInTile (r.left, r.top);
+      stride = TILE_SIZE;
+    }
+
+  int andPixels = 0xff000000, orPixels = 0;
+  int w = r.getWidth ();
+  for (int j = r.top; j < r.bottom; j++, offset += stride)
+    {
+      for (int off = offset; off < offset + w; off++)
+        {
+          andPixels &= src[off];
+          orPixels |= src[off];
+        }
+      if (andPixels != 0xff000000 && (orPixels & 0xff000000) != 0)
+        {
+          return OPACITY_MIXED;
+        }
+    }
+
+  if (andPixels == 0xff000000)
+    {
+      return OPACITY_OPAQUE;
+    }
+  return (orPixels & 0xff000000) == 0 ? OPACITY_TRANSPARENT : OPACITY_MIXED;
+}
+
+// Forgets opacity of the tiles containing len pixels of the row y starting from x
+private void forgetTileOpacity (int x, int y, int len)
+{
+  if (len <= 0)
+    {
+      return;
+    }
+
+  byte[] opacity = getTileOpacityArray ();
+  int rowStart = (y >> TILE_SHIFT) * getTilesX ();
+  for (int t = rowStart + (x >> TILE_SHIFT); t <= rowStart + ((x + len - 1) >> TILE_SHIFT); t++)
+    {
+      opacity[t] = OPACITY_UNKNOWN;
+    }
+}
+
+abstract static class CPTileVisitor
+{
+  abstract void visit (CPRect block, int t);
+}
+
+// Calls visitor for the tiles intersecting r, block is the part of tile t inside r
+private void forEachTile (CPRect r, CPTileVisitor visitor)
+{
+  CPRect rect = new CPRect (0, 0, width, height);
+  rect.clip (r);
+  if (rect.isEmpty ())
+    {
+      return;
+    }
+
+  CPRect block = new CPRect ();
+  int tilesX = getTilesX ();
+  for (int ty = rect.top >> TILE_SHIFT; ty << TILE_SHIFT < rect.bottom; ty++)
+    {
+      for (int tx = rect.left >> TILE_SHIFT; tx << TILE_SHIFT < rect.right; tx++)
+        {
+          block.left = Math.max (rect.left, tx << TILE_SHIFT);
+          block.top = Math.max (rect.top, ty << TILE_SHIFT);
+          block.right = Math.min (rect.right, (tx + 1) << TILE_SHIFT);
+          block.bottom = Math.min (rect.bottom, (ty + 1) << TILE_SHIFT);
+          visitor.visit (block, ty * tilesX + tx);
+        }
+    }
+}
+
+// True if the part of tile t inside the bitmap is entirely in block
+private boolean isWholeTile (CPRect block, int t)
+{
+  int tilesX = getTilesX ();
+  int left = (t % tilesX) << TILE_SHIFT;
+  int top = (t / tilesX) << TILE_SHIFT;
+  return block.left == left && block.top == top && block.right == Math.min (width, left + TILE_SIZE)
+          && block.bottom == Math.min (height, top + TILE_SIZE);
+}
+
+// True if every pixel inside r is fully opaque, answered from the tile opacity when possible
+public boolean isOpaque (CPRect r)
+{
+  CPRect rect = getSize ();
+  rect.clip (r);
+  if (!rect.isEmpty () && !isInsideContentBounds (rect))
+    {
+      return false;
+    }
+
+  final boolean[] opaque = {true};
+  forEachTile (r, new CPTileVisitor ()
+  {
+    @Override
+    void visit (CPRect block, int t)
+    {
+      if (!opaque[0])
+        {
+          return;
+        }
+
+      // Only tiles entirely inside r are cached, another thread may work on the rest of a tile
+      if (isWholeTile (block, t))
+        {
+          opaque[0] = getTileOpacity (t) == OPACITY_OPAQUE;
+        }
+      else
+        {
+          byte known = getKnownTileOpacity (t);
+          opaque[0] = known == OPACITY_OPAQUE
+                  || (known != OPACITY_TRANSPARENT && computeOpacity (block) == OPACITY_OPAQUE);
+        }
+    }
+  });
+  return opaque[0];
+}
+
+// Pixels inside r have been filled with color
+void setOpacityAfterFill (CPRect r, final int color)
+{
+  forgetDeepData ();
+  if ((color & 0xff000000) != 0)
+    {
+      extendContentBounds (r.left, r.top, r.right, r.bottom);
+    }
+  else
+    {
+      clearContentBounds (r);
+    }
+
+  final byte[] opacity = getTileOpacityArray ();
+  forEachTile (r, new CPTileVisitor ()
+  {
+    @Override
+    void visit (CPRect block, int t)
+    {
+      opacity[t] = isWholeTile (block, t) ? getOpacityOf (color) : OPACITY_UNKNOWN;
+    }
+  });
+}
+
+// src has been blended over the part of this bitmap inside r. Opaque pixels stay opaque with any
+// blend mode, pixels under transparent ones don't change at all and opaque pixels of src at full
+// layer opacity make the result opaque
+void setOpacityAfterBlending (final CPColorBmp src, CPRect r, final boolean fullOpacity)
+{
+  forgetDeepData ();
+  if (src.width != width || src.height != height)
+    {
+      tileOpacityForgotten = true;
+      setContentBounds (getSize ());
+      return;
+    }
+
+  int left, top, right, bottom;
+  synchronized (src)
+    {
+      left = Math.max (src.contentBounds.left, r.left);
+      top = Math.max (src.contentBounds.top, r.top);
+      right = Math.min (src.contentBounds.right, r.right);
+      bottom = Math.min (src.contentBounds.bottom, r.bottom);
+    }
+  extendContentBounds (left, top, right, bottom);
+
+  final byte[] opacity = getTileOpacityArray ();
+  forEachTile (r, new CPTileVisitor ()
+  {
+    @Override
+    void visit (CPRect block, int t)
+    {
+      byte srcOpacity = src.getKnownTileOpacity (t);
+      if (opacity[t] == OPACITY_OPAQUE || srcOpacity == OPACITY_TRANSPARENT)
+        {
+          return;
+        }
+
+      opacity[t] = fullOpacity && srcOpacity == OPACITY_OPAQUE && isWholeTile (block, t) ? OPACITY_OPAQUE
+                                                                                          : OPACITY_UNKNOWN;
+    }
+  });
+}
+
+public CPRect getContentBounds ()
+{
+  return getContentBounds (new CPRect ());
+}
+
+// Copies the bounds into dest and returns it
+public synchronized CPRect getContentBounds (CPRect dest)
+{
+  dest.set (contentBounds);
+  return dest;
+}
+
+private synchronized boolean isInsideContentBounds (CPRect r)
+{
+  return r.isInside (contentBounds);
+}
+
+// Called a lot by per pixel loops through getData (), so it only locks when the bounds change
+private void forgetContentBounds ()
+{
+  CPRect r = contentBounds;
+  if (r.left != 0 || r.top != 0 || r.right != width || r.bottom != height)
+    {
+      synchronized (this)
+        {
+          r.setSize (width, height);
+        }
+    }
+}
+
+// r has to contain every pixel which isn't fully transparent
+synchronized void setContentBounds (CPRect r)
+{
+  contentBounds.setSize (width, height);
+  contentBounds.clip (r);
+}
+
+// Bounds are changed from several threads during parallel compositing, so all of it is synchronized
+private synchronized void extendContentBounds (int leftArg, int topArg, int rightArg, int bottomArg)
+{
+  int left = Math.max (0, leftArg), top = Math.max (0, topArg);
+  int right = Math.min (width, rightArg), bottom = Math.min (height, bottomArg);
+  if (right <= left || bottom <= top)
+    {
+      return;
+    }
+
+  CPRect r = contentBounds;
+  if (r.isEmpty ())
+    {
+      r.set (left, top, right, bottom);
+    }
+  else
+    {
+      r.set (Math.min (r.left, left), Math.min (r.top, top), Math.max (r.right, right), Math.max (r.bottom, bottom));
+    }
+}
+
+// Everything inside r has become transparent
+private synchronized void clearContentBounds (CPRect r)
+{
+  if (contentBounds.isInside (r))
+    {
+      contentBounds.makeEmpty ();
+    }
+}
+
+public boolean hasDeepData ()
+{
+  return deepData != null;
+}
+
+// Deep pixels, made from 8-bit ones when there are none yet. Writers have to keep 8-bit data
+// equal to them rounded and call deepPixelsChanged
+long[] getDeepData ()
+{
+  if (deepData == null)
+    {
+      int[] data = getDataUntracked ();
+      long[] deep = new long[data.length];
+      for (int i = 0; i < data.length; i++)
+        {
+          deep[i] = toDeep (data[i]);
+        }
+      deepData = deep;
+    }
+  return deepData;
+}
+
+void forgetDeepData ()
+{
+  deepData = null;
+}
+
+// Pixels inside r have been changed through getDeepData () and getDataUntracked ()
+void deepPixelsChanged (CPRect r)
+{
+  final byte[] opacity = getTileOpacityArray ();
+  forEachTile (r, new CPTileVisitor ()
+  {
+    @Override
+    void visit (CPRect block, int t)
+    {
+      opacity[t] = OPACITY_UNKNOWN;
+    }
+  });
+  extendContentBounds (r.left, r.top, r.right, r.bottom);
+}
+
+// Fills r with color in both the deep and the 8-bit pixels, without dropping the deep ones
+void clearDeep (CPRect r, int color)
+{
+  CPRect rect = getSize ();
+  rect.clip (r);
+  long[] deep = getDeepData ();
+  long deepColor = toDeep (color);
+  for (int j = rect.top; j < rect.bottom; j++)
+    {
+      Arrays.fill (deep, rect.left + j * width, rect.right + j * width, deepColor);
+      Arrays.fill (data, rect.left + j * width, rect.right + j * width, color);
+    }
+  deepPixelsChanged (rect);
+}
+
+// Pixels inside r have been changed through getDataUntracked ()
+void pixelsChanged (CPRect r)
+{
+  forgetDeepData ();
+  deepPixelsChanged (r);
+}
+
+static long toDeep (int color)
+{
+  return (long) ((color >>> 24) * 257) << 48 | (long) ((color >>> 16 & 0xff) * 257) << 32
+          | (long) ((color >>> 8 & 0xff) * 257) << 16 | (color & 0xff) * 257;
+}
+
+static int fromDeep (long deep)
+{
+  return (int) ((deep >>> 48) + 128) / 257 << 24 | (int) ((deep >>> 32 & 0xffff) + 128) / 257 << 16
+          | (int) ((deep >>> 16 & 0xffff) + 128) / 257 << 8 | (int) ((deep & 0xffff) + 128) / 257;
+}
+
+// Normal blending of the color of src with opacity (0 - 65535) over dst, alpha of src is ignored
+static long blendDeep (long src, long opacity, long dst)
+{
+  long newAlpha = opacity + (dst >>> 48) * (65535 - opacity) / 65535;
+  long realAlpha = opacity * 65535 / newAlpha;
+  long invAlpha = 65535 - realAlpha;
+  return newAlpha << 48
+          | ((src >>> 32 & 0xffff) * realAlpha + (dst >>> 32 & 0xffff) * invAlpha) / 65535 << 32
+          | ((src >>> 16 & 0xffff) * realAlpha + (dst >>> 16 & 0xffff) * invAlpha) / 65535 << 16
+          | ((src & 0xffff) * realAlpha + (dst & 0xffff) * invAlpha) / 65535;
+}
+
+// Makes the whole bitmap tiled and uniformly filled with color
+void fillTiles (int color)
+{
+  int count = getTilesX () * getTilesY ();
+  data = null;
+  tiles = new int[count][];
+  tileFill = new int[count];
+  Arrays.fill (tileFill, color);
+  tileOpacityForgotten = true;
+  deepData = null;
+  setContentBounds ((color & 0xff000000) == 0 ? new CPRect () : getSize ());
+}
+
+// Converts the bitmap to tiled storage, uniform tiles don't keep any pixel data.
+// The deep pixels are dropped, they would take 8 bytes per pixel of the whole bitmap: only the active
+// layer, which is never compacted, keeps them between strokes
+public void compact ()
+{
+  if (tiles == null)
+    {
+      convertToTiles ();
+    }
+  deepData = null;
+
+  // Inactive layers are compacted, so their opacity is known when they are blended
+  byte[] opacity = getTileOpacityArray ();
+  for (int t = 0; t < opacity.length; t++)
+    {
+      getTileOpacity (t);
+    }
+
+  setContentBounds (computeContentBounds ());
+}
+
+// Exact bounding box of the pixels which aren't transparent, needs known opacity of all tiles
+private CPRect computeContentBounds ()
+{
+  int tilesX = getTilesX ();
+  CPRect bounds = new CPRect ();
+  for (int t = 0; t < tileOpacity.length; t++)
+    {
+      if (getKnownTileOpacity (t) != OPACITY_TRANSPARENT)
+        {
+          int left = (t % tilesX) << TILE_SHIFT;
+          int top = (t / tilesX) << TILE_SHIFT;
+          bounds.union (new CPRect (left, top, Math.min (width, left + TILE_SIZE), Math.min (height, top + TILE_SIZE)));
+        }
+    }
+
+  // Shrinking tile bounds to the first rows and columns with something in them
+  while (!bounds.isEmpty () && isTransparent (new CPRect (bounds.left, bounds.top, bounds.right, bounds.top + 1)))
+    {
+      bounds.top++;
+    }
+  while (!bounds.isEmpty () && isTransparent (new CPRect (bounds.left, bounds.bottom - 1, bounds.right, bounds.bottom)))
+    {
+      bounds.bottom--;
+    }
+  while (!bounds.isEmpty () && isTransparent (new CPRect (bounds.left, bounds.top, bounds.left + 1, bounds.bottom)))
+    {
+      bounds.left++;
+    }
+  while (!bounds.isEmpty () && isTransparent (new CPRect (bounds.right - 1, bounds.top, bounds.right, bounds.bottom)))
+    {
+      bounds.right--;
+    }
+  return bounds;
+}
+
+private boolean isTransparent (final CPRect r)
+{
+  final boolean[] transparent = {true};
+  forEachTile (r, new CPTileVisitor ()
+  {
+    @Override
+    void visit (CPRect block, int t)
+    {
+      transparent[0] = transparent[0] && computeOpacity (block) == OPACITY_TRANSPARENT;
+    }
+  });
+  return transparent[0];
+}
+
+private void convertToTiles ()
+{
+  int tilesX = getTilesX ();
+  int count = tilesX * getTilesY ();
+  int[][] newTiles = new int[count][];
+  int[] newTileFill = new int[count];
+
+  for (int t = 0; t < count; t++)
+    {
+      int left = (t % tilesX) << TILE_SHIFT;
+      int top = (t / tilesX) << TILE_SHIFT;
+      int w = Math.min (TILE_SIZE, width - left);
+      int h = Math.min (TILE_SIZE, height - top);
+
+      int fill = data[top * width + left];
+      boolean uniform = true;
+      for (int j = 0; j < h && uniform; j++)
+        {
+          int off = (top + j) * width + left;
+          for (int i = 0; i < w; i++, off++)
+            {
+              if (data[off] != fill)
+                {
+                  uniform = false;
+                  break;
+                }
+            }
+        }
+
+      newTileFill[t] = fill;
+      if (!uniform)
+        {
+          int[] tile = new int[TILE_SIZE * TILE_SIZE];
+          for (int j = 0; j < h; j++)
+            {
+              System.arraycopy (data, (top + j) * width + left, tile, j << TILE_SHIFT, w);
+            }
+          newTiles[t] = tile;
+        }
+    }
+
+  tiles = newTiles;
+  tileFill = newTileFill;
+  data = null;
+}
+
+// Converts the bitmap back to flat storage
+private void inflate ()
+{
+  // Opacity of uniform tiles is not stored, it has to be kept before they are gone
+  byte[] opacity = getTileOpacityArray ();
+  for (int t = 0; t < opacity.length; t++)
+    {
+      opacity[t] = getKnownTileOpacity (t);
+    }
+
+  int[] newData = new int[width * height];
+  for (int j = 0; j < height; j++)
+    {
+      copyRowToArray (0, j, width, newData, j * width);
+    }
+
+  data = newData;
+  tiles = null;
+  tileFill = null;
+}
+
+// Memory actually taken by pixel data
+public long getMemoryUsed ()
+{
+  long deep = deepData != null ? (long) deepData.length * 8 : 0;
+  if (tiles == null)
+    {
+      return deep + (long) data.length * 4;
+    }
+
+  long total = deep + (long) tiles.length * 8;
+  for (int[] tile : tiles)
+    {
+      if (tile != null)
+        {
+          total += (long) tile.length * 4;
+        }
+    }
+  return total;
+}
+
+// Copies len pixels of the row y starting from x into buffer, no clipping is done
+public void copyRowToArray (int xArg, int y, int lenArg, int[] buffer, int offsetArg)
+{
+  if (tiles == null)
+    {
+      System.arraycopy (data, y * width + xArg, buffer, offsetArg, lenArg);
+      return;
+    }
+
+  int x = xArg, len = lenArg, offset = offsetArg;
+  int rowStart = (y >> TILE_SHIFT) * getTilesX ();
+  int rowOffset = (y & TILE_MASK) << TILE_SHIFT;
+  while (len > 0)
+    {
+      int t = rowStart + (x >> TILE_SHIFT);
+      int inTile = x & TILE_MASK;
+      int n = Math.min (len, TILE_SIZE - inTile);
+      if (tiles[t] == null)
+        {
+          Arrays.fill (buffer, offset, offset + n, tileFill[t]);
+        }
+      else
+        {
+          System.arraycopy (tiles[t], rowOffset + inTile, buffer, offset, n);
+        }
+      x += n;
+      offset += n;
+      len -= n;
+    }
+}
+
+// Sets len pixels of the row y starting from x using buffer, no clipping is done
+public void copyArrayToRow (int xArg, int y, int lenArg, int[] buffer, int offsetArg)
+{
+  forgetTileOpacity (xArg, y, lenArg);
+  forgetDeepData ();
+  extendContentBounds (xArg, y, xArg + lenArg, y + 1);
+  if (tiles == null)
+    {
+      System.arraycopy (buffer, offsetArg, data, y * width + xArg, lenArg);
+      return;
+    }
+
+  int x = xArg, len = lenArg, offset = offsetArg;
+  int rowStart = (y >> TILE_SHIFT) * getTilesX ();
+  int rowOffset = (y & TILE_MASK) << TILE_SHIFT;
+  while (len > 0)
+    {
+      int t = rowStart + (x >> TILE_SHIFT);
+      int inTile = x & TILE_MASK;
+      int n = Math.min (len, TILE_SIZE - inTile);
+      boolean sameAsFill = tiles[t] == null;
+      for (int i = 0; i < n && sameAsFill; i++)
+        {
+          sameAsFill = buffer[offset + i] == tileFill[t];
+        }
+      if (!sameAsFill)
+        {
+          System.arraycopy (buffer, offset, getWritableTile (t), rowOffset + inTile, n);
+        }
+      x += n;
+      offset += n;
+      len -= n;
+    }
+}
+
+// Walks through the part of the bitmap inside r block by block: a flat bitmap is a single block
+// unless transparent tiles are skipped, a tiled one has a block per tile. Pixel (i, j) of a block is src[srcOffset + (j - rect.top) * srcStride + (i - rect.left)],
+// uniform tiles are passed as a single row with srcStride 0, fully transparent ones can be skipped entirely.
+
+abstract static class CPBlockVisitor
+{
+  abstract void visit (CPRect rect, int[] src, int srcOffset, int srcStride);
+}
+
+void visitBlocks (CPRect r, boolean skipTransparent, CPBlockVisitor visitor)
+{
+  CPRect rect = new CPRect (0, 0, width, height);
+  rect.clip (r);
+  if (rect.isEmpty ())
+    {
+      return;
+    }
+
+  if (tiles == null && !skipTransparent)
+    {
+      visitor.visit (rect, data, rect.left + rect.top * width, width);
+      return;
+    }
+
+  int tilesX = getTilesX ();
+  int[] uniformRow = null;
+  CPRect block = new CPRect ();
+  for (int ty = rect.top >> TILE_SHIFT; ty << TILE_SHIFT < rect.bottom; ty++)
+    {
+      for (int tx = rect.left >> TILE_SHIFT; tx << TILE_SHIFT < rect.right; tx++)
+        {
+          int t = ty * tilesX + tx;
+          if (skipTransparent && getKnownTileOpacity (t) == OPACITY_TRANSPARENT)
+            {
+              continue;
+            }
+
+          block.left = Math.max (rect.left, tx << TILE_SHIFT);
+          block.top = Math.max (rect.top, ty << TILE_SHIFT);
+          block.right = Math.min (rect.right, (tx + 1) << TILE_SHIFT);
+          block.bottom = Math.min (rect.bottom, (ty + 1) << TILE_SHIFT);
+
+          if (tiles == null)
+            {
+              visitor.visit (block, data, block.left + block.top * width, width);
+            }
+          else if (tiles[t] == null)
+            {
+              if (uniformRow == null || uniformRow[0] != tileFill[t])
+                {
+                  uniformRow = new int[TILE_SIZE];
+                  Arrays.fill (uniformRow, tileFill[t]);
+                }
+              visitor.visit (block, uniformRow, 0, 0);
+            }
+          else
+            {
+              visitor.visit (block, tiles[t], getOffsetInTile (block.left, block.top), TILE_SIZE);
+            }
+        }
+    }
 }
 
 //
@@ -113,7 +951,7 @@ public int[] copyRectToIntArray (CPRect rect)
   int h = r.getHeight ();
   for (int j = 0; j < h; j++)
     {
-      System.arraycopy (getData (), (j + r.top) * width + r.left, buffer, j * w, w);
+      copyRowToArray (r.left, j + r.top, w, buffer, j * w);
     }
 
   return buffer;
@@ -133,7 +971,7 @@ public boolean copyRectToIntArray (CPRect rect, int[] buffer)
   int h = r.getHeight ();
   for (int j = 0; j < h; j++)
     {
-      System.arraycopy (getData (), (j + r.top) * width + r.left, buffer, j * w, w);
+      copyRowToArray (r.left, j + r.top, w, buffer, j * w);
     }
 
   return true;
@@ -149,7 +987,7 @@ public void setRectFromIntArray (int[] buffer, CPRect rect)
   int h = r.getHeight ();
   for (int j = 0; j < h; j++)
     {
-      System.arraycopy (buffer, j * w, getData (), (j + r.top) * width + r.left, w);
+      copyArrayToRow (r.left, j + r.top, w, buffer, j * w);
     }
 }
 
@@ -165,11 +1003,14 @@ public int[] copyRectXOR (CPColorBmp bmp, CPRect rect)
   int[] buffer = new int[r.getWidth () * r.getHeight ()];
   int w = r.getWidth ();
   int h = r.getHeight ();
+  int[] row = new int[w];
   for (int j = 0; j < h; j++)
     {
+      copyRowToArray (r.left, j + r.top, w, buffer, j * w);
+      bmp.copyRowToArray (r.left, j + r.top, w, row, 0);
       for (int i = 0; i < w; i++)
         {
-          buffer[i + j * w] = getData ()[(j + r.top) * width + i + r.left] ^ bmp.getData ()[(j + r.top) * width + i + r.left];
+          buffer[i + j * w] ^= row[i];
         }
     }
 
@@ -184,12 +1025,52 @@ public void copyRectFrom (CPColorBmp bmp, CPRect rect)        // Copy rectangle
 
   int w = r.getWidth ();
   int h = r.getHeight ();
+  int[] row = new int[w];
   for (int j = 0; j < h; j++)
     {
-      int offset = (j + r.top) * width + r.left;
-      for (int i = 0; i < w; i++, offset++)
+      bmp.copyRowToArray (r.left, j + r.top, w, row, 0);
+      copyArrayToRow (r.left, j + r.top, w, row, 0);
+    }
+}
+
+// Same as copyRectFrom, but keeps deep pixels too and doesn't forget anything outside of rect
+void copyPixelsFrom (CPColorBmp bmp, CPRect rect)
+{
+  CPRect r = getSize ();
+  r.clip (rect);
+  if (r.isEmpty ())
+    {
+      return;
+    }
+
+  int w = r.getWidth ();
+  int[] dst = getDataUntracked ();
+  for (int j = r.top; j < r.bottom; j++)
+    {
+      bmp.copyRowToArray (r.left, j, w, dst, j * width + r.left);
+      forgetTileOpacity (r.left, j, w);
+    }
+  extendContentBounds (r.left, r.top, r.right, r.bottom);
+
+  if (bmp.deepData == null && deepData == null)
+    {
+      return;
+    }
+
+  long[] deep = getDeepData ();
+  for (int j = r.top; j < r.bottom; j++)
+    {
+      int off = j * width + r.left;
+      if (bmp.deepData != null)
         {
-          getData ()[offset] = bmp.getData ()[offset];
+          System.arraycopy (bmp.deepData, off, deep, off, w);
+        }
+      else
+        {
+          for (int i = 0; i < w; i++)
+            {
+              deep[off + i] = toDeep (dst[off + i]);
+            }
         }
     }
 }
@@ -201,12 +1082,15 @@ public void setRectXOR (int[] buffer, CPRect rect)
 
   int w = r.getWidth ();
   int h = r.getHeight ();
+  int[] row = new int[w];
   for (int j = 0; j < h; j++)
     {
+      copyRowToArray (r.left, j + r.top, w, row, 0);
       for (int i = 0; i < w; i++)
         {
-          getData ()[(j + r.top) * width + i + r.left] = getData ()[(j + r.top) * width + i + r.left] ^ buffer[i + j * w];
+          row[i] ^= buffer[i + j * w];
         }
+      copyArrayToRow (r.left, j + r.top, w, row, 0);
     }
 }
 
@@ -228,7 +1112,8 @@ public void pasteAlphaRect (CPColorBmp bmp, CPRect srcRect, int x, int y)
     }
   getSize ().clipSourceDest (srcRectCpy, dstRect);
 
-  int[] srcData = bmp.getData ();
+  int[] srcData = bmp.getDataUntracked ();
+  int[] dstData = getData ();
   for (int j = 0; j < dstRect.bottom - dstRect.top; j++)
     {
       int srcOffset = srcRectCpy.left + (srcRectCpy.top + j) * bmp.width;
@@ -245,11 +1130,11 @@ public void pasteAlphaRect (CPColorBmp bmp, CPRect srcRect, int x, int y)
 
           if (alpha1 == 255)
             {
-              getData ()[dstOffset] = color1;
+              dstData[dstOffset] = color1;
               continue;
             }
 
-          int color2 = getData ()[dstOffset];
+          int color2 = dstData[dstOffset];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -258,7 +1143,7 @@ public void pasteAlphaRect (CPColorBmp bmp, CPRect srcRect, int x, int y)
               int realAlpha = alpha1 * 255 / newAlpha;
               int invAlpha = 255 - realAlpha;
 
-              getData ()[dstOffset] = newAlpha << 24
+              dstData[dstOffset] = newAlpha << 24
                       | ((color1 >>> 16 & 0xff) + (((color2 >>> 16 & 0xff) * invAlpha - (color1 >>> 16 & 0xff)
                       * invAlpha) / 255)) << 16
                       | ((color1 >>> 8 & 0xff) + (((color2 >>> 8 & 0xff) * invAlpha - (color1 >>> 8 & 0xff)
@@ -273,9 +1158,10 @@ public void pasteAlphaRect (CPColorBmp bmp, CPRect srcRect, int x, int y)
 // Assumes that the width and height of this bitmap and the rectangle are the same!!!
 void setFromBitmapRect (CPColorBmp bmp, CPRect r)
 {
+  int[] data = getData ();
   for (int i = 0; i < r.getHeight (); i++)
     {
-      System.arraycopy (bmp.getData (), (i + r.top) * bmp.width + r.left, getData (), i * width, width);
+      bmp.copyRowToArray (r.left, i + r.top, width, data, i * width);
     }
 }
 
@@ -285,10 +1171,12 @@ public void pasteBitmap (CPColorBmp bmp, int x, int y)
   CPRect dstRect = new CPRect (x, y, 0, 0);
   getSize ().clipSourceDest (srcRect, dstRect);
 
+  // Uniform tiles of bmp are read without inflating it
+  int[] data = getData ();
   for (int i = 0; i < srcRect.getHeight (); i++)
     {
-      System.arraycopy (bmp.getData (), (i + srcRect.top) * bmp.width + srcRect.left, getData (), (i + dstRect.top) * width
-              + dstRect.left, srcRect.getWidth ());
+      bmp.copyRowToArray (srcRect.left, i + srcRect.top, srcRect.getWidth (), data, (i + dstRect.top) * width
+              + dstRect.left);
     }
 }
 
@@ -300,11 +1188,13 @@ public void copyAlphaFrom (CPColorBmp bmp, CPRect r)
 {
   r.clip (getSize ());
 
+  int[] data = getData ();
+  int[] srcData = bmp.getDataUntracked ();
   for (int j = r.top; j < r.bottom; j++)
     {
       for (int i = r.left; i < r.right; i++)
         {
-          getData ()[j * width + i] = (getData ()[j * width + i] & 0xffffff) | (bmp.getData ()[j * width + i] & 0xff000000);
+          data[j * width + i] = (data[j * width + i] & 0xffffff) | (srcData[j * width + i] & 0xff000000);
         }
     }
 }
@@ -315,24 +1205,94 @@ public void copyDataFrom (CPColorBmp bmp)
     {
       width = bmp.width;
       height = bmp.height;
+      data = null;
+    }
+
+  tileOpacity = bmp.getTileOpacityArray ().clone ();
+  tileOpacityForgotten = false;
+  bmp.getContentBounds (contentBounds);
+  deepData = bmp.deepData == null ? null : bmp.deepData.clone ();
+
+  if (bmp.tiles != null)
+    {
+      data = null;
+      tiles = new int[bmp.tiles.length][];
+      for (int t = 0; t < tiles.length; t++)
+        {
+          tiles[t] = bmp.tiles[t] == null ? null : bmp.tiles[t].clone ();
+        }
+      tileFill = bmp.tileFill.clone ();
+      return;
+    }
+
+  if (data == null)
+    {
       data = new int[width * height];
+      tiles = null;
+      tileFill = null;
     }
 
-  System.arraycopy (bmp.getData (), 0, getData (), 0, getData ().length);
+  System.arraycopy (bmp.data, 0, data, 0, data.length);
 }
 
 public int[] getData ()
 {
+  if (tiles != null)
+    {
+      inflate ();
+    }
+  tileOpacityForgotten = true;
+  forgetContentBounds ();
+  forgetDeepData ();
   return data;
 }
 
+// Same as getData (), but the caller promises to update tile opacity itself
+int[] getDataUntracked ()
+{
+  if (tiles != null)
+    {
+      inflate ();
+    }
+  return data;
+}
+
+// Makes the bitmap flat with its opacity cache ready, after that several threads
+// can blend into separate parts of it
+void prepareForBlending ()
+{
+  getDataUntracked ();
+  getTileOpacityArray ();
+}
+
+// Makes the opacity of the tiles intersecting r known, after that several threads can read r
+// and skip transparent or copy opaque tiles. The storage isn't changed
+void prepareForReading (CPRect r)
+{
+  getTileOpacityArray ();
+  forEachTile (r, new CPTileVisitor ()
+  {
+    @Override
+    void visit (CPRect block, int t)
+    {
+      getTileOpacity (t);
+    }
+  });
+}
+
 public void setData (int[] dataArg)
 {
   data = dataArg;
+  tiles = null;
+  tileFill = null;
+  tileOpacityForgotten = true;
+  contentBounds.setSize (width, height);
+  deepData = null;
 }
 
 public void cutBySelection (CPSelection selection)
 {
+  int[] data = getData ();
   for (int i = 0; i < height * width; i++)
     {
       int curAlpha = (data[i] & 0xFF000000) >>> 24;
@@ -344,6 +1304,7 @@ public void cutBySelection (CPSelection selection)
 
 public void removePartsCutBySelection (CPSelection selection)
 {
+  int[] data = getData ();
   for (int i = 0; i < width * height; i++)
     {
       int curAlpha = (data[i] & 0xFF000000) >>> 24;
@@ -353,7 +1314,7 @@ public void removePartsCutBySelection (CPSelection selection)
     }
 }
 
-public void drawItselfOnTarget (CPColorBmp target, int shiftX, int shiftY)
+public void drawItselfOnTarget (final CPColorBmp target, final int shiftX, final int shiftY)
 {
   if (shiftY + target.height <= 0 || shiftX + target.width <= 0)
     return;
@@ -361,52 +1322,60 @@ public void drawItselfOnTarget (CPColorBmp target, int shiftX, int shiftY)
   int yTop = shiftY >= 0 ? 0 : -shiftY;
   int xRight = (shiftX + width <= target.width ? width : target.width - shiftX);
   int xLeft = shiftX >= 0 ? 0 : -shiftX;
-  for (int j = yTop; j < yBottom; j++)
+  final int[] targetData = target.getData ();
+  visitBlocks (new CPRect (xLeft, yTop, xRight, yBottom), true, new CPBlockVisitor ()
+  {
+    @Override
+    void visit (CPRect rect, int[] src, int srcOffset, int srcStride)
     {
-      int off = xLeft + j * width;
-      int targetOff = xLeft + shiftX + (j + shiftY) * target.getWidth ();
-      for (int i = xLeft; i < xRight; i++, off++, targetOff++)
+      for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
         {
-          int color1 = getData ()[off];
-          int alpha1 = (color1 >> 24) & 0xFF;
+          int off = srcOffset;
+          int targetOff = rect.left + shiftX + (j + shiftY) * target.getWidth ();
+          for (int i = rect.left; i < rect.right; i++, off++, targetOff++)
+            {
+              int color1 = src[off];
+              int alpha1 = (color1 >> 24) & 0xFF;
 
-          if (alpha1 == 0)
-            continue;
+              if (alpha1 == 0)
+                continue;
 
-          int color2 = target.getData ()[targetOff];
-          int alpha2 = (color2 >> 24) & 0xFF;
-          if (alpha1 == 255 || alpha2 == 0)
-            {
-              target.getData ()[targetOff] = color1;
-              continue;
-            }
+              int color2 = targetData[targetOff];
+              int alpha2 = (color2 >> 24) & 0xFF;
+              if (alpha1 == 255 || alpha2 == 0)
+                {
+                  targetData[targetOff] = color1;
+                  continue;
+                }
 
-          if (alpha2 == 255)
-            {
-              int invAlpha = 255 - alpha1;
-              target.getData ()[targetOff] = 0xFF000000
-                      | (CPTables.getRef ().divideBy255[((color1 >> 16 & 0xff) * alpha1 + (color2 >> 16 & 0xff)
-                      * invAlpha)]) << 16
-                      | (CPTables.getRef ().divideBy255[((color1 >> 8 & 0xff) * alpha1 + (color2 >> 8 & 0xff)
-                      * invAlpha)]) << 8
-                      | (CPTables.getRef ().divideBy255[(color1 & 0xff) * alpha1 + (color2 & 0xff)
-                      * invAlpha]);
-              continue;
-            }
+              if (alpha2 == 255)
+                {
+                  int invAlpha = 255 - alpha1;
+                  targetData[targetOff] = 0xFF000000
+                          | (CPTables.divideBy255 (((color1 >> 16 & 0xff) * alpha1 + (color2 >> 16 & 0xff)
+                          * invAlpha))) << 16
+                          | (CPTables.divideBy255 (((color1 >> 8 & 0xff) * alpha1 + (color2 >> 8 & 0xff)
+                          * invAlpha))) << 8
+                          | (CPTables.divideBy255 ((color1 & 0xff) * alpha1 + (color2 & 0xff)
+                          * invAlpha));
+                  continue;
+                }
 
-          int newAlpha = alpha1 + alpha2 - CPTables.getRef ().divideBy255[alpha1 * alpha2];
-          int realAlpha = CPTables.getRef ().divide[alpha1 * 255 * 256 + newAlpha];
-          int invAlpha = 255 - realAlpha;
+              int newAlpha = alpha1 + alpha2 - CPTables.divideBy255 (alpha1 * alpha2);
+              int realAlpha = CPTables.divide (alpha1 * 255, newAlpha);
+              int invAlpha = 255 - realAlpha;
 
-          target.getData ()[targetOff] = newAlpha << 24
-                  | (CPTables.getRef ().divideBy255[((color1 >> 16 & 0xff) * realAlpha + (color2 >> 16 & 0xff)
-                  * invAlpha)]) << 16
-                  | (CPTables.getRef ().divideBy255[((color1 >> 8 & 0xff) * realAlpha + (color2 >> 8 & 0xff)
-                  * invAlpha)]) << 8
-                  | (CPTables.getRef ().divideBy255[(color1 & 0xff) * realAlpha + (color2 & 0xff)
-                  * invAlpha]);
+              targetData[targetOff] = newAlpha << 24
+                      | (CPTables.divideBy255 (((color1 >> 16 & 0xff) * realAlpha + (color2 >> 16 & 0xff)
+                      * invAlpha))) << 16
+                      | (CPTables.divideBy255 (((color1 >> 8 & 0xff) * realAlpha + (color2 >> 8 & 0xff)
+                      * invAlpha))) << 8
+                      | (CPTables.divideBy255 ((color1 & 0xff) * realAlpha + (color2 & 0xff)
+                      * invAlpha));
+            }
         }
     }
+  });
 }
 
 public void copyDataFromSelectedPart (CPColorBmp bmp, CPSelection selection)
@@ -416,20 +1385,24 @@ public void copyDataFromSelectedPart (CPColorBmp bmp, CPSelection selection)
     {
       width = rect.getWidth ();
       height = rect.getHeight ();
-      data = new int[width * height];
+      setData (new int[width * height]);
     }
+  int[] data = getData ();
+  byte[] selData = selection.getData ();
 
+  // Rows of bmp are copied first, uniform tiles are read without inflating it
   for (int j = 0; j < height; j++)
     {
       int offSource = (rect.getTop () + j) * bmp.getWidth () + rect.getLeft ();
       int offDest = j * width;
+      bmp.copyRowToArray (rect.getLeft (), rect.getTop () + j, width, data, offDest);
       for (int i = 0; i < width; i++, offSource++, offDest++)
         {
-          int selValue = selection.getData ()[offSource] & 0xFF;
-          int alphaValue = bmp.getData ()[offSource] >>> 24;
+          int selValue = selData[offSource] & 0xFF;
+          int alphaValue = data[offDest] >>> 24;
           if (selValue < alphaValue)
             alphaValue = selValue;
-          data[offDest] = (bmp.getData ()[offSource] & 0x00FFFFFF) | (alphaValue << 24);
+          data[offDest] = (data[offDest] & 0x00FFFFFF) | (alphaValue << 24);
         }
     }
 }
@@ -456,15 +1429,16 @@ abstract class bmpRectIterator
 
 public void drawRectangle (CPRect rect, final int color, final boolean xor)
 {
+  final int[] data = getData ();
   new bmpRectIterator (rect)
   {
     @Override
     void modify (int i, int j, int off)
     {
       if (xor)
-        getData ()[off] = getData ()[off] ^ color;
+        data[off] = data[off] ^ color;
       else
-        getData ()[off] = color;
+        data[off] = color;
     }
   };
 }
@@ -505,6 +1479,22 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
   int offset;
   boolean checkOnlyAlpha;
   int destinationColorWithoutAlpha = destinationColor & 0xFFFFFF;
+  // Read once, getData () has side effects and the checkers run for each pixel. A tiled source is
+  // copied row by row rather than inflated, it stays tiled afterwards
+  final int[] sourceData;
+  if (useDataFrom.isTiled ())
+    {
+      sourceData = new int[width * height];
+      for (int j = 0; j < height; j++)
+        {
+          useDataFrom.copyRowToArray (0, j, width, sourceData, j * width);
+        }
+    }
+  else
+    {
+      sourceData = useDataFrom.getDataUntracked ();
+    }
+  final int[] destinationData = destination.getData ();
 
   if ((useDataFrom.getPixel (xArg, yArg) & 0xff000000) == 0)
     {
@@ -529,7 +1519,7 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
             public boolean check (int arg)
             {
               counter++;
-              return areColorsNearAlpha (useDataFrom.getData ()[arg], oldColor, colorDistance) && (destination.getData ()[arg] == 0);
+              return areColorsNearAlpha (sourceData[arg], oldColor, colorDistance) && (destinationData[arg] == 0);
             }
           };
         }
@@ -539,7 +1529,7 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
           {
             public boolean check (int arg)
             {
-              return areColorsNear (useDataFrom.getData ()[arg], oldColor, colorDistance) && (destination.getData ()[arg] == 0);
+              return areColorsNear (sourceData[arg], oldColor, colorDistance) && (destinationData[arg] == 0);
             }
           };
         }
@@ -552,7 +1542,7 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
           {
             public boolean check (int arg)
             {
-              return areColorsNearAlpha (useDataFrom.getData ()[arg], oldColor, colorDistance) && (destination.getData ()[arg] == 0) && (selection.getData ()[arg] != 0);
+              return areColorsNearAlpha (sourceData[arg], oldColor, colorDistance) && (destinationData[arg] == 0) && (selection.getData ()[arg] != 0);
             }
           };
         }
@@ -562,7 +1552,7 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
           {
             public boolean check (int arg)
             {
-              return areColorsNear (useDataFrom.getData ()[arg], oldColor, colorDistance) && (destination.getData ()[arg] == 0) && (selection.getData ()[arg] != 0);
+              return areColorsNear (sourceData[arg], oldColor, colorDistance) && (destinationData[arg] == 0) && (selection.getData ()[arg] != 0);
             }
           };
         }
@@ -605,9 +1595,9 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
       while (xl >= 0 && shouldWeFill.check (offset))
         {
           if (selection == null)
-            destination.getData ()[offset] = destinationColor;
+            destinationData[offset] = destinationColor;
           else
-            destination.getData ()[offset] = destinationColorWithoutAlpha | selection.getData ()[offset] << 24;
+            destinationData[offset] = destinationColorWithoutAlpha | selection.getData ()[offset] << 24;
           if (yExpansion && shouldWeFill.check (offsetLower))
             {
               if (newX == -1)
@@ -647,9 +1637,9 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
       while (xr < width && shouldWeFill.check (offset))
         {
           if (selection == null)
-            destination.getData ()[offset] = destinationColor;
+            destinationData[offset] = destinationColor;
           else
-            destination.getData ()[offset] = destinationColorWithoutAlpha | selection.getData ()[offset] << 24;
+            destinationData[offset] = destinationColorWithoutAlpha | selection.getData ()[offset] << 24;
           if (yExpansion && shouldWeFill.check (offsetLower))
             {
               if (newX == -1)
@@ -690,9 +1680,9 @@ static public void floodFill (int xArg, int yArg, final CPLayer useDataFrom, fin
           if (i >= xlOld && i <= xrOld)
             {
               if (selection == null)
-                destination.getData ()[offset] = destinationColor;
+                destinationData[offset] = destinationColor;
               else
-                destination.getData ()[offset] = destinationColorWithoutAlpha | selection.getData ()[offset] << 24;
+                destinationData[offset] = destinationColorWithoutAlpha | selection.getData ()[offset] << 24;
             }
           if (yExpansion && shouldWeFill.check (offsetHigher))
             {
@@ -739,12 +1729,13 @@ public void boxBlur (CPRect r, int radiusX, int radiusY)
   int[] src = new int[l];
   int[] dst = new int[l];
 
+  int[] data = getData ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
-      System.arraycopy (getData (), rect.left + j * width, src, 0, w);
+      System.arraycopy (data, rect.left + j * width, src, 0, w);
       multiplyAlpha (src, w);
       boxBlurLine (src, dst, w, radiusX);
-      System.arraycopy (dst, 0, getData (), rect.left + j * width, w);
+      System.arraycopy (dst, 0, data, rect.left + j * width, w);
     }
 
   for (int i = rect.left; i < rect.right; i++)
@@ -823,36 +1814,49 @@ private static void boxBlurLine (int[] src, int dst[], int len, int radius)
 
 void copyColumnToArray (int x, int y, int len, int[] buffer)
 {
+  int[] data = getDataUntracked ();
   for (int i = 0; i < len; i++)
     {
-      buffer[i] = getData ()[x + (i + y) * width];
+      buffer[i] = data[x + (i + y) * width];
     }
 }
 
 void copyArrayToColumn (int x, int y, int len, int[] buffer)
 {
+  int[] data = getData ();
   for (int i = 0; i < len; i++)
     {
-      getData ()[x + (i + y) * width] = buffer[i];
+      data[x + (i + y) * width] = buffer[i];
     }
 }
 
+// Transparent tiles are skipped and the others read in place, a tiled bitmap isn't inflated
 public CPRect getBoundingBox ()
 {
-  CPRect rect;
-  int minX = width, maxX = 0, minY = height, maxY = 0;
-  for (int i = 0; i < width; i++)
-    for (int j = 0; j < height; j++)
-      {
-        if ((data[j * width + i] & 0xFF000000) != 0)
-          {
-            minX = Math.min (minX, i);
-            maxX = Math.max (maxX, i);
-            minY = Math.min (minY, j);
-            maxY = Math.max (maxY, j);
-          }
-      }
-  return new CPRect (minX, minY, maxX, maxY);
+  // minX, minY, maxX, maxY
+  final int[] box = {width, height, 0, 0};
+  visitBlocks (getContentBounds (), true, new CPBlockVisitor ()
+  {
+    @Override
+    void visit (CPRect rect, int[] src, int srcOffset, int srcStride)
+    {
+      for (int j = rect.top; j < rect.bottom; j++)
+        {
+          int off = srcOffset + (j - rect.top) * srcStride;
+          for (int i = rect.left; i < rect.right; i++, off++)
+            {
+              if ((src[off] & 0xFF000000) != 0)
+                {
+                  box[0] = Math.min (box[0], i);
+                  box[1] = Math.min (box[1], j);
+                  box[2] = Math.max (box[2], i);
+                  box[3] = Math.max (box[3], j);
+                }
+            }
+        }
+    }
+  });
+  return new CPRect (box[0], box[1], box[2], box[3]);
 }
 
 }
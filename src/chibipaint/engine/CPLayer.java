@@ -27,6 +27,8 @@ import chibipaint.util.CPTables;
 import java.util.Arrays;
 import java.util.Random;
 
+// Layer pixels are stored with straight alpha. Undo keeps XOR differences that have to give back the
+// exact values, and premultiplying 8-bit channels loses the colour of semi-transparent pixels.
 public class CPLayer extends CPColorBmp
 {
 
@@ -55,15 +57,19 @@ public final static int LM_PINLIGHT = 14;
 // Look-Up tables for some of the blend modes
 //
 
+// Normal and Add kernels blending red/blue and green/alpha as 16-bit lanes of a single int,
+// results are the same as with the per-channel kernels
+private static boolean packedBlending = !Boolean.getBoolean ("chibipaint.scalarBlending");
+
 private static int softLightLUTSquare[];
 private static int softLightLUTSquareRoot[];
 
 public CPLayer (int width, int height)
 {
-  super (width, height);
+  // New layers start as uniform tiles, pixels are allocated only where they get painted
+  super (width, height, 0xffffff);
 
   setName ("");
-  clear (0xffffff);
 
   if (softLightLUTSquare == null)
     {
@@ -98,20 +104,27 @@ public void clear ()
 
 public void clear (int color)
 {
-  Arrays.fill (getData (), color);
+  if (isTiled ())
+    {
+      fillTiles (color);
+    }
+  else
+    {
+      Arrays.fill (getDataUntracked (), color);
+      setOpacityAfterFill (getSize (), color);
+    }
 }
 
 public void clear (CPRect r, int color)
 {
   CPRect rect = new CPRect (0, 0, width, height);
   rect.clip (r);
+  int[] data = getDataUntracked ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
-      for (int i = rect.left; i < rect.right; i++)
-        {
-          getData ()[i + j * width] = color;
-        }
+      Arrays.fill (data, rect.left + j * width, rect.right + j * width, color);
     }
+  setOpacityAfterFill (rect, color);
 }
 
 public int getAlpha ()
@@ -140,87 +153,207 @@ public void copyFrom (CPLayer l)
 // The FullAlpha versions are the ones that work in all cases
 // others need the bottom layer to be 100% opaque but are faster
 
-public void fusionWith (CPLayer fusion, CPRect r)
+public void fusionWith (final CPLayer fusion, CPRect r)
+{
+  if (alpha <= 0)
+    {
+      return;
+    }
+
+  // Transparent pixels don't change anything in any mode
+  CPRect area = getContentBounds ();
+  area.clip (r);
+  visitBlocks (area, true, new CPBlockVisitor ()
+  {
+    @Override
+    void visit (CPRect rect, int[] src, int srcOffset, int srcStride)
+    {
+      fusionBlockWith (fusion, rect, src, srcOffset, srcStride);
+    }
+  });
+  fusion.setOpacityAfterBlending (this, area, alpha >= 100);
+}
+
+public void fusionWithFullAlpha (final CPLayer fusion, CPRect r)
 {
   if (alpha <= 0)
     {
       return;
     }
 
+  CPRect area = getContentBounds ();
+  area.clip (r);
+  visitBlocks (area, true, new CPBlockVisitor ()
+  {
+    @Override
+    void visit (CPRect rect, int[] src, int srcOffset, int srcStride)
+    {
+      fusionBlockWithFullAlpha (fusion, rect, src, srcOffset, srcStride);
+    }
+  });
+  // Kernels do it too, but fully transparent blocks are skipped without calling them
+  fusion.alpha = 100;
+  fusion.setOpacityAfterBlending (this, area, alpha >= 100);
+}
+
+// Normal blending with 16 bits per channel, for deep color documents. The deep pixels of fusion have to
+// exist already, its 8-bit pixels are set to them rounded. This layer is read from its deep pixels
+// when it has some, from its 8-bit ones otherwise
+public void fusionWithDeep (final CPLayer fusion, CPRect r)
+{
+  if (alpha <= 0)
+    {
+      return;
+    }
+
+  final long[] dstDeep = fusion.getDeepData ();
+  final int[] dst = fusion.getDataUntracked ();
+  final long[] srcDeep = hasDeepData () ? getDeepData () : null;
+  CPRect area = getContentBounds ();
+  area.clip (r);
+  visitBlocks (area, true, new CPBlockVisitor ()
+  {
+    @Override
+    void visit (CPRect rect, int[] src, int srcOffset, int srcStride)
+    {
+      for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+        {
+          int srcOff = srcOffset;
+          int dstOff = rect.left + j * width;
+          for (int i = rect.left; i < rect.right; i++, srcOff++, dstOff++)
+            {
+              long color = srcDeep != null ? srcDeep[dstOff] : toDeep (src[srcOff]);
+              long opacity = (color >>> 48) * alpha / 100;
+              if (opacity > 0)
+                {
+                  long newColor = blendDeep (color, opacity, dstDeep[dstOff]);
+                  dstDeep[dstOff] = newColor;
+                  dst[dstOff] = fromDeep (newColor);
+                }
+            }
+        }
+    }
+  });
+  fusion.deepPixelsChanged (area);
+}
+
+// Normal blending of an opaque block at full opacity just replaces the pixels below
+private boolean copyOpaqueBlock (CPLayer fusion, CPRect rect, int[] src, int srcOffset, int srcStride)
+{
+  if (blendMode != LM_NORMAL || alpha < 100 || getKnownTileOpacity (rect) != OPACITY_OPAQUE)
+    {
+      return false;
+    }
+
+  int[] dst = fusion.getDataUntracked ();
+  int w = rect.getWidth ();
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      System.arraycopy (src, srcOffset, dst, rect.left + j * width, w);
+    }
+  return true;
+}
+
+// Blends a single block of this layer, rect is already clipped and the source pixel (i, j)
+// is src[srcOffset + (j - rect.top) * srcStride + (i - rect.left)]
+
+private void fusionBlockWith (CPLayer fusion, CPRect rect, int[] src, int srcOffset, int srcStride)
+{
+  if (copyOpaqueBlock (fusion, rect, src, srcOffset, srcStride))
+    {
+      return;
+    }
+
   switch (blendMode)
     {
     case LM_NORMAL:
-      if (alpha >= 100)
+      if (packedBlending)
         {
-          fusionWithNormalNoAlpha (fusion, r);
+          fusionWithNormalPacked (src, srcOffset, srcStride, fusion, rect);
+        }
+      else if (alpha >= 100)
+        {
+          fusionWithNormalNoAlpha (src, srcOffset, srcStride, fusion, rect);
         }
       else
         {
-          fusionWithNormal (fusion, r);
+          fusionWithNormal (src, srcOffset, srcStride, fusion, rect);
         }
       break;
 
     case LM_MULTIPLY:
-      fusionWithMultiply (fusion, r);
+      fusionWithMultiply (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_ADD:
-      fusionWithAdd (fusion, r);
+      if (packedBlending)
+        fusionWithAddPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithAdd (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_SCREEN:
-      fusionWithScreenFullAlpha (fusion, r);
+      fusionWithScreenFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_LIGHTEN:
-      fusionWithLightenFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithLightenFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithLightenFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_DARKEN:
-      fusionWithDarkenFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithDarkenFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithDarkenFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_SUBTRACT:
-      fusionWithSubtractFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithSubtractFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithSubtractFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_DODGE:
-      fusionWithDodgeFullAlpha (fusion, r);
+      fusionWithDodgeFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_BURN:
-      fusionWithBurnFullAlpha (fusion, r);
+      fusionWithBurnFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_OVERLAY:
-      fusionWithOverlayFullAlpha (fusion, r);
+      fusionWithOverlayFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_HARDLIGHT:
-      fusionWithHardLightFullAlpha (fusion, r);
+      fusionWithHardLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_SOFTLIGHT:
-      fusionWithSoftLightFullAlpha (fusion, r);
+      fusionWithSoftLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_VIVIDLIGHT:
-      fusionWithVividLightFullAlpha (fusion, r);
+      fusionWithVividLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_LINEARLIGHT:
-      fusionWithLinearLightFullAlpha (fusion, r);
+      fusionWithLinearLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_PINLIGHT:
-      fusionWithPinLightFullAlpha (fusion, r);
+      fusionWithPinLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
     }
 }
 
-public void fusionWithFullAlpha (CPLayer fusion, CPRect r)
+private void fusionBlockWithFullAlpha (CPLayer fusion, CPRect rect, int[] src, int srcOffset, int srcStride)
 {
-  if (alpha <= 0)
+  if (copyOpaqueBlock (fusion, rect, src, srcOffset, srcStride))
     {
       return;
     }
@@ -228,84 +361,96 @@ public void fusionWithFullAlpha (CPLayer fusion, CPRect r)
   switch (blendMode)
     {
     case LM_NORMAL:
-      fusionWithNormalFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithNormalFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithNormalFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_MULTIPLY:
-      fusionWithMultiplyFullAlpha (fusion, r);
+      fusionWithMultiplyFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_ADD:
-      fusionWithAddFullAlpha (fusion, r);
+      fusionWithAddFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_SCREEN:
-      fusionWithScreenFullAlpha (fusion, r);
+      fusionWithScreenFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_LIGHTEN:
-      fusionWithLightenFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithLightenFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithLightenFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_DARKEN:
-      fusionWithDarkenFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithDarkenFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithDarkenFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_SUBTRACT:
-      fusionWithSubtractFullAlpha (fusion, r);
+      if (packedBlending)
+        fusionWithSubtractFullAlphaPacked (src, srcOffset, srcStride, fusion, rect);
+      else
+        fusionWithSubtractFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_DODGE:
-      fusionWithDodgeFullAlpha (fusion, r);
+      fusionWithDodgeFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_BURN:
-      fusionWithBurnFullAlpha (fusion, r);
+      fusionWithBurnFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_OVERLAY:
-      fusionWithOverlayFullAlpha (fusion, r);
+      fusionWithOverlayFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_HARDLIGHT:
-      fusionWithHardLightFullAlpha (fusion, r);
+      fusionWithHardLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_SOFTLIGHT:
-      fusionWithSoftLightFullAlpha (fusion, r);
+      fusionWithSoftLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_VIVIDLIGHT:
-      fusionWithVividLightFullAlpha (fusion, r);
+      fusionWithVividLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_LINEARLIGHT:
-      fusionWithLinearLightFullAlpha (fusion, r);
+      fusionWithLinearLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
 
     case LM_PINLIGHT:
-      fusionWithPinLightFullAlpha (fusion, r);
+      fusionWithPinLightFullAlpha (src, srcOffset, srcStride, fusion, rect);
       break;
     }
 }
 
-void fusionWithMultiply (CPLayer fusion, CPRect rc)
+void fusionWithMultiply (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int curAlpha = (color1 >>> 24) * this.alpha / 100;
           if (curAlpha != 0)
             {
-              int color2 = fusion.getData ()[off];
+              int color2 = dst[off];
               color1 = ~color1;
-              fusion.getData ()[off] = 0xff000000
+              dst[off] = 0xff000000
                       | ((color2 >>> 16 & 0xff) - (color1 >>> 16 & 0xff)
                       * (color2 >>> 16 & 0xff) * curAlpha
                       / (255 * 255)) << 16
@@ -319,28 +464,28 @@ void fusionWithMultiply (CPLayer fusion, CPRect rc)
     }
 }
 
-void fusionWithNormalNoAlpha (CPLayer fusion, CPRect rc)
+void fusionWithNormalNoAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alphaLocal = color1 >>> 24;
           if (alphaLocal == 255)
             {
-              fusion.getData ()[off] = color1;
+              dst[off] = color1;
             }
           else if (alphaLocal != 0)
             {
-              int color2 = fusion.getData ()[off];
+              int color2 = dst[off];
 
               int invAlpha = 255 - alphaLocal;
-              fusion.getData ()[off] = 0xff000000
+              dst[off] = 0xff000000
                       | (((color1 >>> 16 & 0xff) * alphaLocal + (color2 >>> 16 & 0xff)
                       * invAlpha) / 255) << 16
                       | (((color1 >>> 8 & 0xff) * alphaLocal + (color2 >>> 8 & 0xff)
@@ -352,28 +497,28 @@ void fusionWithNormalNoAlpha (CPLayer fusion, CPRect rc)
     }
 }
 
-void fusionWithNormal (CPLayer fusion, CPRect rc)
+void fusionWithNormal (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alphaLocal = (color1 >>> 24) * this.alpha / 100;
           if (alphaLocal == 255)
             {
-              fusion.getData ()[off] = color1;
+              dst[off] = color1;
             }
           else if (alphaLocal != 0)
             {
-              int color2 = fusion.getData ()[off];
+              int color2 = dst[off];
 
               int invAlpha = 255 - alphaLocal;
-              fusion.getData ()[off] = 0xff000000
+              dst[off] = 0xff000000
                       | (((color1 >>> 16 & 0xff) * alphaLocal + (color2 >>> 16 & 0xff)
                       * invAlpha) / 255) << 16
                       | (((color1 >>> 8 & 0xff) * alphaLocal + (color2 >>> 8 & 0xff)
@@ -385,21 +530,21 @@ void fusionWithNormal (CPLayer fusion, CPRect rc)
     }
 }
 
-void fusionWithAdd (CPLayer fusion, CPRect rc)
+void fusionWithAdd (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alphaLocal = (color1 >>> 24) * this.alpha / 100;
           if (alphaLocal != 0)
             {
-              int color2 = fusion.getData ()[off];
+              int color2 = dst[off];
 
               int r = Math.min (255, (color2 >>> 16 & 0xff) + alphaLocal
                       * (color1 >>> 16 & 0xff) / 255);
@@ -408,7 +553,7 @@ void fusionWithAdd (CPLayer fusion, CPRect rc)
               int b = Math.min (255, (color2 & 0xff) + alphaLocal
                       * (color1 & 0xff) / 255);
 
-              fusion.getData ()[off] = 0xff000000 | r << 16 | g << 8 | b;
+              dst[off] = 0xff000000 | r << 16 | g << 8 | b;
             }
         }
     }
@@ -417,92 +562,336 @@ void fusionWithAdd (CPLayer fusion, CPRect rc)
 // Normal Alpha Mode
 // C = A*d + B*(1-d) and d = aa / (aa + ab - aa*ab)
 
-void fusionWithNormalFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithNormalFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
   assert fusion.alpha < 100;
 
   if (alpha == 0)
     return;
 
-  int alpha_256 = alpha * 256;
-
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >> 24) & 0xFF;
 
           if (alpha < 100) // Hopefully it will be moved out of both cycles by optimizer
-            alpha1 = CPTables.getRef ().divide[alpha1 * alpha_256 + 100];
+            alpha1 = CPTables.divide (alpha1 * alpha, 100);
 
           if (alpha1 == 0)
             continue;
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >> 24) & 0xFF;
 
           if (alpha1 == 255)
             {
-              fusion.getData ()[off] = color1;
+              dst[off] = color1;
               continue;
             }
 
           if (alpha2 == 0)
             {
-              fusion.getData ()[off] = (color1 & 0x00FFFFFF) | (alpha1 << 24);
+              dst[off] = (color1 & 0x00FFFFFF) | (alpha1 << 24);
               continue;
             }
 
           if (alpha2 == 255)
             {
               int invAlpha = 255 - alpha1;
-              fusion.getData ()[off] = 0xFF000000
-                      | (CPTables.getRef ().divideBy255[((color1 >> 16 & 0xff) * alpha1 + (color2 >> 16 & 0xff)
-                      * invAlpha)]) << 16
-                      | (CPTables.getRef ().divideBy255[((color1 >> 8 & 0xff) * alpha1 + (color2 >> 8 & 0xff)
-                      * invAlpha)]) << 8
-                      | (CPTables.getRef ().divideBy255[(color1 & 0xff) * alpha1 + (color2 & 0xff)
-                      * invAlpha]);
+              dst[off] = 0xFF000000
+                      | (CPTables.divideBy255 (((color1 >> 16 & 0xff) * alpha1 + (color2 >> 16 & 0xff)
+                      * invAlpha))) << 16
+                      | (CPTables.divideBy255 (((color1 >> 8 & 0xff) * alpha1 + (color2 >> 8 & 0xff)
+                      * invAlpha))) << 8
+                      | (CPTables.divideBy255 ((color1 & 0xff) * alpha1 + (color2 & 0xff)
+                      * invAlpha));
               continue;
             }
 
-          int newAlpha = alpha1 + alpha2 - CPTables.getRef ().divideBy255[alpha1 * alpha2];
+          int newAlpha = alpha1 + alpha2 - CPTables.divideBy255 (alpha1 * alpha2);
           //1300
-          int realAlpha = CPTables.getRef ().divide[alpha1 * 65280 + newAlpha]; // 255 * 256
+          int realAlpha = CPTables.divide (alpha1 * 255, newAlpha);
           int invAlpha = 255 - realAlpha;
           // 2700
-          fusion.getData ()[off] = newAlpha << 24
-                  | ((CPTables.getRef ().divideBy255[(color1 >> 16 & 0xff) * realAlpha + (color2 >> 16 & 0xff)
-                  * invAlpha]) << 16)
-                  | ((CPTables.getRef ().divideBy255[((color1 >> 8 & 0xff) * realAlpha + (color2 >> 8 & 0xff)
-                  * invAlpha)]) << 8)
-                  | (CPTables.getRef ().divideBy255[((color1 & 0xff) * realAlpha + (color2 & 0xff)
-                  * invAlpha)]);
+          dst[off] = newAlpha << 24
+                  | ((CPTables.divideBy255 ((color1 >> 16 & 0xff) * realAlpha + (color2 >> 16 & 0xff)
+                  * invAlpha)) << 16)
+                  | ((CPTables.divideBy255 (((color1 >> 8 & 0xff) * realAlpha + (color2 >> 8 & 0xff)
+                  * invAlpha))) << 8)
+                  | (CPTables.divideBy255 (((color1 & 0xff) * realAlpha + (color2 & 0xff)
+                  * invAlpha)));
         }
     }
   fusion.alpha = 100;
 }
 
+// Packed versions of Normal, Add, Subtract, Lighten and Darken kernels
+//
+// Two channels are stored in 16-bit lanes (0x00RR00BB, 0x0000GG00), every lane sum x <= 255 * 255
+// so x / 255 == (x + 1 + (x >> 8)) >> 8 holds for it and no carry crosses into the next lane.
+// Lanes can only be multiplied by a factor common to the pixel and divided by 255, so modes which
+// multiply or divide channels by each other, or divide by the resulting alpha, stay scalar.
+
+private static int blendPacked (int color1, int color2, int alpha1, int invAlpha)
+{
+  int rb = (color1 & 0xff00ff) * alpha1 + (color2 & 0xff00ff) * invAlpha;
+  int g = (color1 & 0xff00) * alpha1 + (color2 & 0xff00) * invAlpha;
+  rb = (rb + 0x10001 + (rb >>> 8 & 0xff00ff)) >>> 8 & 0xff00ff;
+  g = (g + 0x100 + (g >>> 8 & 0xff00)) >>> 8 & 0xff00;
+  return rb | g;
+}
+
+void fusionWithNormalPacked (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
+{
+  int[] dst = fusion.getDataUntracked ();
+
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      int off = rect.left + j * width;
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
+        {
+          int color1 = src[srcOff];
+          int alphaLocal = color1 >>> 24;
+          if (alpha < 100)
+            alphaLocal = alphaLocal * alpha / 100;
+
+          if (alphaLocal == 255)
+            {
+              dst[off] = color1;
+            }
+          else if (alphaLocal != 0)
+            {
+              dst[off] = 0xff000000 | blendPacked (color1, dst[off], alphaLocal, 255 - alphaLocal);
+            }
+        }
+    }
+}
+
+void fusionWithAddPacked (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
+{
+  int[] dst = fusion.getDataUntracked ();
+
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      int off = rect.left + j * width;
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
+        {
+          int color1 = src[srcOff];
+          int alphaLocal = (color1 >>> 24) * this.alpha / 100;
+          if (alphaLocal != 0)
+            {
+              int color2 = dst[off];
+
+              // Lanes hold at most 255 + 255 after addition, bit 8 of each lane marks overflow
+              int added = blendPacked (color1, 0, alphaLocal, 0);
+              int rb = (added & 0xff00ff) + (color2 & 0xff00ff);
+              int g = (added >>> 8 & 0xff) + (color2 >>> 8 & 0xff);
+              rb |= (rb >>> 8 & 0x10001) * 0xff;
+              g |= (g >>> 8) * 0xff;
+              dst[off] = 0xff000000 | rb & 0xff00ff | (g & 0xff) << 8;
+            }
+        }
+    }
+}
+
+void fusionWithNormalFullAlphaPacked (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
+{
+  int[] dst = fusion.getDataUntracked ();
+  assert fusion.alpha < 100;
+
+  if (alpha == 0)
+    return;
+
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      int off = rect.left + j * width;
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
+        {
+          int color1 = src[srcOff];
+          int alpha1 = color1 >>> 24;
+
+          if (alpha < 100)
+            alpha1 = CPTables.divide (alpha1 * alpha, 100);
+
+          if (alpha1 == 0)
+            continue;
+
+          int color2 = dst[off];
+          int alpha2 = color2 >>> 24;
+
+          if (alpha1 == 255)
+            {
+              dst[off] = color1;
+              continue;
+            }
+
+          if (alpha2 == 0)
+            {
+              dst[off] = (color1 & 0x00FFFFFF) | (alpha1 << 24);
+              continue;
+            }
+
+          if (alpha2 == 255)
+            {
+              dst[off] = 0xFF000000 | blendPacked (color1, color2, alpha1, 255 - alpha1);
+              continue;
+            }
+
+          int newAlpha = alpha1 + alpha2 - CPTables.divideBy255 (alpha1 * alpha2);
+          int realAlpha = CPTables.divide (alpha1 * 255, newAlpha);
+          dst[off] = newAlpha << 24 | blendPacked (color1, color2, realAlpha, 255 - realAlpha);
+        }
+    }
+  fusion.alpha = 100;
+}
+
+// 0xff in the channels where color2 >= color1. Lanes hold 256 + B - A, which doesn't borrow
+// from the next one, and bit 8 of each is left set when B >= A
+private static int greaterOrEqualMask (int color1, int color2)
+{
+  int rb = (color2 & 0xff00ff | 0x1000100) - (color1 & 0xff00ff);
+  int g = (color2 & 0xff00 | 0x10000) - (color1 & 0xff00);
+  return ((rb >>> 8 & 0x10001) | (g >>> 8 & 0x100)) * 0xff;
+}
+
+// Only opaque target pixels are packed, C = max (0, B - aa + A*aa) there as the resulting alpha is 1
+void fusionWithSubtractFullAlphaPacked (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
+{
+  int[] dst = fusion.getDataUntracked ();
+
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      int off = rect.left + j * width;
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
+        {
+          int color1 = src[srcOff];
+          int alpha1 = (color1 >>> 24) * alpha / 100;
+          int color2 = dst[off];
+          int alpha2 = (color2 >>> 24);
+
+          if (alpha2 == 255)
+            {
+              // Lanes hold 512 + B - aa + A*aa, at least 257 and at most 1022, bit 9 is set when it's positive
+              int added = blendPacked (color1, 0, alpha1, 0);
+              int rb = (color2 & 0xff00ff) + (added & 0xff00ff) + 0x2000200 - alpha1 * 0x10001;
+              int g = (color2 & 0xff00) + (added & 0xff00) + 0x20000 - (alpha1 << 8);
+              dst[off] = 0xff000000 | rb & (rb >>> 9 & 0x10001) * 0xff | g & (g >>> 17 & 1) * 0xff00;
+              continue;
+            }
+
+          int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
+          if (newAlpha > 0)
+            {
+              int alpha12 = alpha1 * alpha2;
+
+              int r = (alpha2 * (color2 >>> 16 & 0xff) + alpha1 * (color1 >>> 16 & 0xff) - alpha12) / newAlpha;
+              r = r & (~r >>> 24);
+              int g = (alpha2 * (color2 >>> 8 & 0xff) + alpha1 * (color1 >>> 8 & 0xff) - alpha12) / newAlpha;
+              g = g & (~g >>> 24);
+              int b = (alpha2 * (color2 & 0xff) + alpha1 * (color1 & 0xff) - alpha12) / newAlpha;
+              b = b & (~b >>> 24);
+
+              dst[off] = newAlpha << 24 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+  fusion.alpha = 100;
+}
+
+// Both blends are done for every channel, the mask picks one of them
+void fusionWithLightenFullAlphaPacked (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
+{
+  int[] dst = fusion.getDataUntracked ();
+
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      int off = rect.left + j * width;
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
+        {
+          int color1 = src[srcOff];
+          int alpha1 = (color1 >>> 24) * alpha / 100;
+          int color2 = dst[off];
+          int alpha2 = (color2 >>> 24);
+
+          int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
+          if (newAlpha > 0)
+            {
+              int alpha12 = alpha2 * (alpha1 ^ 0xff) / newAlpha;
+              int alpha21 = alpha1 * (alpha2 ^ 0xff) / newAlpha;
+              int mask = greaterOrEqualMask (color1, color2);
+              dst[off] = newAlpha << 24 | blendPacked (color1, color2, alpha21, alpha21 ^ 0xff) & mask
+                      | blendPacked (color2, color1, alpha12, alpha12 ^ 0xff) & ~mask;
+            }
+        }
+    }
+  fusion.alpha = 100;
+}
+
+void fusionWithDarkenFullAlphaPacked (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
+{
+  int[] dst = fusion.getDataUntracked ();
+
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
+    {
+      int off = rect.left + j * width;
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
+        {
+          int color1 = src[srcOff];
+          int alpha1 = (color1 >>> 24) * alpha / 100;
+          int color2 = dst[off];
+          int alpha2 = (color2 >>> 24);
+
+          int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
+          if (newAlpha > 0)
+            {
+              int alpha12 = alpha1 * (alpha2 ^ 0xff) / newAlpha;
+              int alpha21 = alpha2 * (alpha1 ^ 0xff) / newAlpha;
+              int mask = greaterOrEqualMask (color1, color2);
+              dst[off] = newAlpha << 24 | blendPacked (color2, color1, alpha21, alpha21 ^ 0xff) & mask
+                      | blendPacked (color1, color2, alpha12, alpha12 ^ 0xff) & ~mask;
+            }
+        }
+    }
+  fusion.alpha = 100;
+}
+
+public static boolean isPackedBlending ()
+{
+  return packedBlending;
+}
+
+public static void setPackedBlending (boolean packedBlending)
+{
+  CPLayer.packedBlending = packedBlending;
+}
+
 // Multiply Mode
 // C = (A*aa*(1-ab) + B*ab*(1-aa) + A*B*aa*ab) / (aa + ab - aa*ab)
 
-void fusionWithMultiplyFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithMultiplyFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -512,7 +901,7 @@ void fusionWithMultiplyFullAlpha (CPLayer fusion, CPRect rc)
               int alpha1n2 = alpha1 * (alpha2 ^ 0xff) / 255;
               int alphan12 = (alpha1 ^ 0xff) * alpha2 / 255;
 
-              fusion.getData ()[off] = newAlpha << 24
+              dst[off] = newAlpha << 24
                       | (((color1 >>> 16 & 0xff) * alpha1n2)
                       + ((color2 >>> 16 & 0xff) * alphan12) + (color1 >>> 16 & 0xff)
                       * (color2 >>> 16 & 0xff) * alpha12 / 255)
@@ -534,19 +923,19 @@ void fusionWithMultiplyFullAlpha (CPLayer fusion, CPRect rc)
 // Linear Dodge (Add) Mode
 // C = (aa * A + ab * B) / (aa + ab - aa*ab)
 
-void fusionWithAddFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithAddFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -576,7 +965,7 @@ void fusionWithAddFullAlpha (CPLayer fusion, CPRect rc)
                       * (color1 & 0xff))
                       / newAlpha);
 
-              fusion.getData ()[off] = newAlpha << 24 | r << 16 | g << 8 | b;
+              dst[off] = newAlpha << 24 | r << 16 | g << 8 | b;
             }
         }
     }
@@ -586,19 +975,19 @@ void fusionWithAddFullAlpha (CPLayer fusion, CPRect rc)
 // Linear Burn (Sub) Mode
 // C = (aa * A + ab * B - aa*ab ) / (aa + ab - aa*ab)
 
-void fusionWithSubtractFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithSubtractFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -623,7 +1012,7 @@ void fusionWithSubtractFullAlpha (CPLayer fusion, CPRect rc)
                       / newAlpha;
               b = b & (~b >>> 24);
 
-              fusion.getData ()[off] = newAlpha << 24 | r << 16 | g << 8 | b;
+              dst[off] = newAlpha << 24 | r << 16 | g << 8 | b;
             }
         }
     }
@@ -636,19 +1025,19 @@ void fusionWithSubtractFullAlpha (CPLayer fusion, CPRect rc)
 // C = 1 - (((1-A)*aa*(1-ab) + (1-B)*ab*(1-aa) + (1-A)*(1-B)*aa*ab) / (aa +
 // ab - aa*ab))
 
-void fusionWithScreenFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithScreenFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -660,7 +1049,7 @@ void fusionWithScreenFullAlpha (CPLayer fusion, CPRect rc)
               color1 ^= 0xffffff;
               color2 ^= 0xffffff;
 
-              fusion.getData ()[off] = newAlpha << 24
+              dst[off] = newAlpha << 24
                       | (0xffffff ^ ((((color1 >>> 16 & 0xff) * alpha1n2)
                       + ((color2 >>> 16 & 0xff) * alphan12) + (color1 >>> 16 & 0xff)
                       * (color2 >>> 16 & 0xff) * alpha12 / 255)
@@ -684,19 +1073,19 @@ void fusionWithScreenFullAlpha (CPLayer fusion, CPRect rc)
 // if B >= A: C = A*d + B*(1-d) and d = aa * (1-ab) / (aa + ab - aa*ab)
 // if A > B: C = B*d + A*(1-d) and d = ab * (1-aa) / (aa + ab - aa*ab)
 
-void fusionWithLightenFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithLightenFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -728,7 +1117,7 @@ void fusionWithLightenFullAlpha (CPLayer fusion, CPRect rc)
               color |= ((c2 >= c1) ? (c1 * alpha21 + c2 * invAlpha21)
                                    : (c2 * alpha12 + c1 * invAlpha12)) / 255;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
 
             }
         }
@@ -740,19 +1129,19 @@ void fusionWithLightenFullAlpha (CPLayer fusion, CPRect rc)
 // if B >= A: C = B*d + A*(1-d) and d = ab * (1-aa) / (aa + ab - aa*ab)
 // if A > B: C = A*d + B*(1-d) and d = aa * (1-ab) / (aa + ab - aa*ab)
 
-void fusionWithDarkenFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithDarkenFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -784,7 +1173,7 @@ void fusionWithDarkenFullAlpha (CPLayer fusion, CPRect rc)
               color |= ((c2 >= c1) ? (c2 * alpha21 + c1 * invAlpha21)
                                    : (c1 * alpha12 + c2 * invAlpha12)) / 255;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -795,17 +1184,17 @@ void fusionWithDarkenFullAlpha (CPLayer fusion, CPRect rc)
 //
 // C = (aa*(1-ab)*A + (1-aa)*ab*B + aa*ab*B/(1-A)) / (aa + ab - aa*ab)
 
-void fusionWithDodgeFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithDodgeFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -813,7 +1202,7 @@ void fusionWithDodgeFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -824,7 +1213,7 @@ void fusionWithDodgeFullAlpha (CPLayer fusion, CPRect rc)
               int alphan12 = (alpha1 ^ 0xff) * alpha2 / 255;
               int invColor1 = ~color1;
 
-              fusion.getData ()[off] = newAlpha << 24
+              dst[off] = newAlpha << 24
                       | (((color1 >>> 16 & 0xff) * alpha1n2)
                       + ((color2 >>> 16 & 0xff) * alphan12) + alpha12
                       * (((invColor1 >>> 16 & 0xff) == 0) ? 255
@@ -855,17 +1244,17 @@ void fusionWithDodgeFullAlpha (CPLayer fusion, CPRect rc)
 //
 // C = (aa*(1-ab)*A + (1-aa)*ab*B + aa*ab*(1-(1-B)/A)) / (aa + ab - aa*ab)
 
-void fusionWithBurnFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithBurnFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -873,7 +1262,7 @@ void fusionWithBurnFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -884,7 +1273,7 @@ void fusionWithBurnFullAlpha (CPLayer fusion, CPRect rc)
               int alphan12 = (alpha1 ^ 0xff) * alpha2 / 255;
               int invColor2 = ~color2;
 
-              fusion.getData ()[off] = newAlpha << 24
+              dst[off] = newAlpha << 24
                       | (((color1 >>> 16 & 0xff) * alpha1n2)
                       + ((color2 >>> 16 & 0xff) * alphan12) + alpha12
                       * (((color1 >>> 16 & 0xff) == 0) ? 0
@@ -917,17 +1306,17 @@ void fusionWithBurnFullAlpha (CPLayer fusion, CPRect rc)
 // If B > 0.5 C = (A*aa*(1-ab) + B*ab*(1-aa) + aa*ab*(1 - 2*(1-A)*(1-B)) /
 // (aa + ab - aa*ab)
 
-void fusionWithOverlayFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithOverlayFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -935,7 +1324,7 @@ void fusionWithOverlayFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -969,7 +1358,7 @@ void fusionWithOverlayFullAlpha (CPLayer fusion, CPRect rc)
                                                                      : (alpha12 * ((2 * (c1 ^ 0xff) * (c2 ^ 0xff) / 255) ^ 0xff))))
                       / newAlpha;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -982,17 +1371,17 @@ void fusionWithOverlayFullAlpha (CPLayer fusion, CPRect rc)
 // If A > 0.5 C = (A*aa*(1-ab) + B*ab*(1-aa) + aa*ab*(1 - 2*(1-A)*(1-B)) /
 // (aa + ab - aa*ab)
 
-void fusionWithHardLightFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithHardLightFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -1000,7 +1389,7 @@ void fusionWithHardLightFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -1034,7 +1423,7 @@ void fusionWithHardLightFullAlpha (CPLayer fusion, CPRect rc)
                                                                      : (alpha12 * ((2 * (c1 ^ 0xff) * (c2 ^ 0xff) / 255) ^ 0xff))))
                       / newAlpha;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -1045,17 +1434,17 @@ void fusionWithHardLightFullAlpha (CPLayer fusion, CPRect rc)
 // A < 0.5 => C = (2*A - 1) * (B - B^2) + B
 // A > 0.5 => C = (2*A - 1) * (sqrt(B) - B) + B
 
-void fusionWithSoftLightFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithSoftLightFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -1063,7 +1452,7 @@ void fusionWithSoftLightFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -1100,7 +1489,7 @@ void fusionWithSoftLightFullAlpha (CPLayer fusion, CPRect rc)
                       * softLightLUTSquareRoot[c2] / 255 + c2))))
                       / newAlpha;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -1111,17 +1500,17 @@ void fusionWithSoftLightFullAlpha (CPLayer fusion, CPRect rc)
 // A < 0.5 => C = 1 - (1-B) / (2*A)
 // A > 0.5 => C = B / (2*(1-A))
 
-void fusionWithVividLightFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithVividLightFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -1129,7 +1518,7 @@ void fusionWithVividLightFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -1166,7 +1555,7 @@ void fusionWithVividLightFullAlpha (CPLayer fusion, CPRect rc)
                       * 255 / (2 * (255 - c1)))))))
                       / newAlpha;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -1176,17 +1565,17 @@ void fusionWithVividLightFullAlpha (CPLayer fusion, CPRect rc)
 // Linear Light Mode
 // C = B + 2*A -1
 
-void fusionWithLinearLightFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithLinearLightFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -1194,7 +1583,7 @@ void fusionWithLinearLightFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -1225,7 +1614,7 @@ void fusionWithLinearLightFullAlpha (CPLayer fusion, CPRect rc)
                       .min (255, Math.max (0, c2 + 2 * c1 - 255))))
                       / newAlpha;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -1237,17 +1626,17 @@ void fusionWithLinearLightFullAlpha (CPLayer fusion, CPRect rc)
 // B < 2*A-1 => C = 2*A-1
 // else => C = B
 
-void fusionWithPinLightFullAlpha (CPLayer fusion, CPRect rc)
+void fusionWithPinLightFullAlpha (int[] src, int srcOffset, int srcStride, CPLayer fusion, CPRect rect)
 {
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (rc);
+  int[] dst = fusion.getDataUntracked ();
 
-  for (int j = rect.top; j < rect.bottom; j++)
+  for (int j = rect.top; j < rect.bottom; j++, srcOffset += srcStride)
     {
       int off = rect.left + j * width;
-      for (int i = rect.left; i < rect.right; i++, off++)
+      int srcOff = srcOffset;
+      for (int i = rect.left; i < rect.right; i++, off++, srcOff++)
         {
-          int color1 = getData ()[off];
+          int color1 = src[srcOff];
           int alpha1 = (color1 >>> 24) * alpha / 100;
 
           if (alpha1 == 0)
@@ -1255,7 +1644,7 @@ void fusionWithPinLightFullAlpha (CPLayer fusion, CPRect rc)
               continue;
             }
 
-          int color2 = fusion.getData ()[off];
+          int color2 = dst[off];
           int alpha2 = (color2 >>> 24);
 
           int newAlpha = alpha1 + alpha2 - alpha1 * alpha2 / 255;
@@ -1289,7 +1678,7 @@ void fusionWithPinLightFullAlpha (CPLayer fusion, CPRect rc)
               color |= (alpha1n2 * c1 + alphan12 * c2 + alpha12 * c3)
                       / newAlpha;
 
-              fusion.getData ()[off] = color;
+              dst[off] = color;
             }
         }
     }
@@ -1310,17 +1699,18 @@ public void rendererCheckboard (CPRect r)
 {
   CPRect rect = new CPRect (0, 0, width, height);
   rect.clip (r);
+  int[] data = getData ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
       for (int i = rect.left; i < rect.right; i++)
         {
           if ((i & 0x8) != 0 ^ (j & 0x8) != 0)
             {
-              getData ()[i + j * width] = 0xffffffff;
+              data[i + j * width] = 0xffffffff;
             }
           else
             {
-              getData ()[i + j * width] = 0xffcccccc;
+              data[i + j * width] = 0xffcccccc;
             }
         }
     }
@@ -1331,11 +1721,12 @@ public void copyRegionHFlip (CPRect r, int[] sourceData)
   CPRect rect = new CPRect (0, 0, width, height);
   rect.clip (r);
 
+  int[] data = getData ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
       for (int i = rect.left, s = rect.right - 1; i < rect.right; i++, s--)
         {
-          getData ()[i + j * width] = sourceData[s + j * width];
+          data[i + j * width] = sourceData[s + j * width];
         }
     }
 }
@@ -1359,6 +1750,7 @@ public void fillWithNoise (CPRect r)
   int value;
   Random rnd = new Random ();
 
+  int[] data = getData ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
       for (int i = rect.left; i < rect.right; i++)
@@ -1366,7 +1758,7 @@ public void fillWithNoise (CPRect r)
           value = rnd.nextInt ();
           value &= 0xff;
           value |= (value << 8) | (value << 16) | 0xff000000;
-          getData ()[i + j * width] = value;
+          data[i + j * width] = value;
         }
     }
 }
@@ -1378,11 +1770,12 @@ public void fillWithColorNoise (CPRect r)
 
   Random rnd = new Random ();
 
+  int[] data = getData ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
       for (int i = rect.left; i < rect.right; i++)
         {
-          getData ()[i + j * width] = rnd.nextInt () | 0xff000000;
+          data[i + j * width] = rnd.nextInt () | 0xff000000;
         }
     }
 }
@@ -1392,55 +1785,24 @@ public void invert (CPRect r)
   CPRect rect = new CPRect (0, 0, width, height);
   rect.clip (r);
 
+  int[] data = getData ();
   for (int j = rect.top; j < rect.bottom; j++)
     {
       for (int i = rect.left; i < rect.right; i++)
         {
-          getData ()[i + j * width] ^= 0xffffff;
+          data[i + j * width] ^= 0xffffff;
         }
     }
 }
 
 public boolean hasAlpha ()
 {
-  if (alpha != 100)
-    {
-      return true;
-    }
-
-  int andPixels = 0xff000000;
-  int max = width * height;
-  for (int i = 0; i < max; i++)
-    {
-      andPixels &= getData ()[i];
-    }
-
-  return andPixels != 0xff000000;
+  return hasAlpha (getSize ());
 }
 
 public boolean hasAlpha (CPRect r)
 {
-  if (alpha != 100)
-    {
-      return true;
-    }
-
-  CPRect rect = new CPRect (0, 0, width, height);
-  rect.clip (r);
-
-  int andPixels = 0xff000000;
-
-  for (int j = rect.top; j < rect.bottom; j++)
-    {
-      int off = rect.left + j * width;
-      int max = off + rect.right - rect.left;
-      for (; off < max; off++)
-        {
-          andPixels &= getData ()[off];
-        }
-    }
-
-  return andPixels != 0xff000000;
+  return alpha != 100 || !isOpaque (r);
 }
 
 public String getName ()
@@ -41,6 +41,16 @@ private byte[] markerArray;
 private float initialDashPiece = 0.0f;
 private boolean initialDashDrawn = false;
 private ArrayList<TIntArrayList> CurPixelLines;
+private ArrayList<CPRect> CurPixelLinesBounds; // Pixels enclosed by each of CurPixelLines
+// Pixels marked with markerStamp are visited by the current pass, older marks are just left in place.
+// markerStamp + 1 marks inactive lumps found to reach the border before they were fully visited
+private byte markerStamp;
+private boolean floodTouchedBorder;
+private ArrayList<float[]> outline; // CurPixelLines with collinear points merged, in document coordinates
+// outline transformed to the canvas, kept while the canvas transform stays the same
+private ArrayList<float[]> displayOutline;
+private Path2D.Float displayOutlinePath;
+private final AffineTransform displayOutlineTransform = new AffineTransform ();
 private int minX = 1;
 private int minY = 1;
 private int maxX = 0;
@@ -81,7 +91,7 @@ public void AddToSelection (CPSelection otherSelection)
       if ((data[i] & 0xff) < (otherSelection.data[i] & 0xff))
         data[i] = otherSelection.data[i];
     }
-  precalculateSelection (rect);
+  precalculateSelection (rect, otherSelection.getBoundingRect ());
 }
 
 public void copyFromSelection (CPSelection otherSelection)
@@ -89,7 +99,7 @@ public void copyFromSelection (CPSelection otherSelection)
   CPRect rect = getBoundingRect ();
   rect.union (otherSelection.getBoundingRect ());
   System.arraycopy (otherSelection.data, 0, data, 0, width * height);
-  precalculateSelection (rect);
+  precalculateSelection (rect, rect);
 }
 
 
@@ -101,12 +111,13 @@ public void SubtractFromSelection (CPSelection otherSelection)
       int difference = data[i] & 0xff - otherSelection.data[i] & 0xff;
       data[i] = difference < 0 ? 0 : (byte) difference;
     }
-  precalculateSelection (rect);
+  precalculateSelection (rect, rect);
 }
 
 
 public void IntersectWithSelection (CPSelection otherSelection)
 {
+  CPRect changedRect = getBoundingRect ();
   CPRect rect = getBoundingRect ();
   rect.union (otherSelection.getBoundingRect ());
   rect.clip (otherSelection.getBoundingRect ());
@@ -114,32 +125,38 @@ public void IntersectWithSelection (CPSelection otherSelection)
     {
       data[i] = (byte) Math.min (data[i] & 0xff, otherSelection.data[i] & 0xff);
     }
-  precalculateSelection (rect);
+  precalculateSelection (rect, changedRect);
 }
 
 public void makeRectangularSelection (CPRect rect)
 {
   rect.clip (getSize ());
+  CPRect changedRect = getBoundingRect ();
+  changedRect.union (rect);
   for (int j = 0; j < height; j++)
     {
       int off = j * width;
       if (j < rect.top || j >= rect.bottom)
-        Arrays.fill (data, off, off + width - 1, (byte) 0);
+        Arrays.fill (data, off, off + width, (byte) 0);
       else
         {
           if (rect.left > 0)
             Arrays.fill (data, off, off + rect.left, (byte) 0);
           Arrays.fill (data, off + rect.left, off + rect.right, (byte) 0xFF);
-          if (rect.right < width - 1)
+          if (rect.right < width)
             Arrays.fill (data, off + rect.right, off + width, (byte) 0);
         }
     }
-  precalculateSelection (rect);
+  precalculateSelection (rect, changedRect);
 }
 
 public void make (CPColorBmp src, int offsetX, int offsetY)
 {
-  makeEmpty ();
+  CPRect rect = new CPRect (offsetX, offsetY, offsetX + src.getWidth (), offsetY + src.getHeight ());
+  CPRect changedRect = getBoundingRect ();
+  changedRect.union (rect);
+  Arrays.fill (data, (byte) 0);
+  int[] srcData = src.getDataUntracked ();
   for (int j = 0; j < src.getHeight (); j++)
     {
       if (j + offsetY >= height || j + offsetY < 0)
@@ -150,10 +167,10 @@ public void make (CPColorBmp src, int offsetX, int offsetY)
         {
           if (i + offsetX >= width || i + offsetX < 0)
             continue;
-          data[offset] = (byte) ((src.getData ()[srcOffset] >> 24) & 0xFF);
+          data[offset] = (byte) ((srcData[srcOffset] >> 24) & 0xFF);
         }
     }
-  precalculateSelection ();
+  precalculateSelection (rect, changedRect);
 }
 
 public void makeSelectionFromPolygon (Path2D polygon, AffineTransform canvasTransform)
@@ -178,7 +195,10 @@ public void makeSelectionFromPolygon (Path2D polygon, AffineTransform canvasTran
   g.dispose ();
   data = ((DataBufferByte) bImage.getData ().getDataBuffer ()).getData ();
 
-  precalculateSelection (new CPRect (transformedPolygon.getBounds ()));
+  CPRect rect = new CPRect (transformedPolygon.getBounds ());
+  CPRect changedRect = getBoundingRect ();
+  changedRect.union (rect);
+  precalculateSelection (rect, changedRect);
 }
 
 private boolean getIsActive (int i, int j)
@@ -212,13 +232,6 @@ private boolean isActive (int x, int y)
   return isInside (x, y) && getIsActiveInBounds (x, y);
 }
 
-private static void drawLine (Graphics2D g2d, CPCanvas canvas, float x1, float y1, float x2, float y2)
-{
-  Point2D.Float p1 = canvas.coordToDisplay (new Point2D.Float (x1, y1));
-  Point2D.Float p2 = canvas.coordToDisplay (new Point2D.Float (x2, y2));
-  g2d.draw (new Line2D.Float (p1, p2));
-}
-
 public void makeEmpty ()
 {
   Arrays.fill (data, (byte) 0);
@@ -226,6 +239,7 @@ public void makeEmpty ()
   maxX = 0;
   minY = 1;
   maxY = 0;
+  CurPixelLines = null;
 }
 
 public void selectAll ()
@@ -250,6 +264,7 @@ public void copyFrom (CPSelection selection)
       height = selection.height;
       data = new byte[width * height];
       markerArray = new byte[(width + 1) * (height + 1)];
+      CurPixelLines = null;
     }
   System.arraycopy (selection.data, 0, data, 0, data.length);
 
@@ -303,9 +318,10 @@ public byte[] getData ()
 
 public void cutByData (CPLayer activeLayerArg)
 {
+  int[] layerData = activeLayerArg.getDataUntracked ();
   for (int off = 0; off < width * height; off++)
     {
-      byte alpha = (byte) (activeLayerArg.getData ()[off] >> 24);
+      byte alpha = (byte) (layerData[off] >> 24);
       if ((data[off] & 0xFF) > (alpha & 0xFF))
         data[off] = alpha;
     }
@@ -459,14 +475,21 @@ void createSingleLinesFromPoint (ArrayList<TIntArrayList> pixelLinesTarget, int
   pixelLinesTarget.add (sL);
 }
 
-// set 1 in markerArray array for all the connected pixels with similar activity as target
-void markOutWithSimilarActivity (int xArg, int yArg)
+// Marks all the connected pixels with similar activity as target with markerStamp and returns the offset
+// of the first of them in scan order. floodTouchedBorder tells if they reach the border of the image.
+// With stopAtBorder inactive lumps reaching the border are left partially marked with markerStamp + 1
+private int markOutWithSimilarActivity (int xArg, int yArg, boolean stopAtBorder)
 {
   TIntArrayStack S = new TIntArrayStack ();
   S.push (xArg);
   S.push (yArg);
   boolean activity = getIsActiveInBounds (xArg, yArg);
-  while (S.size () != 0)
+  byte borderStamp = (byte) (markerStamp + 1);
+  boolean stop = stopAtBorder && !activity;
+  TIntArrayList spans = stop ? new TIntArrayList () : null;
+  int first = yArg * width + xArg;
+  floodTouchedBorder = false;
+  while (S.size () != 0 && !(stop && floodTouchedBorder))
     {
       int y = S.pop ();
       int x = S.pop ();
@@ -480,28 +503,31 @@ void markOutWithSimilarActivity (int xArg, int yArg)
       boolean spanBottom = false;
 
       offset += x;
+      int spanStart = offset;
       int offsetMinus1 = offset - width;
       int offsetPlus1 = offset + width;
-      while (x < width && getIsActiveInBounds (offset) == activity && markerArray[offset] == 0)
+      while (x < width && getIsActiveInBounds (offset) == activity && markerArray[offset] != markerStamp)
         {
-          markerArray[offset] = 1;
-          if (!spanTop && y > 0 && getIsActiveInBounds (offsetMinus1) == activity && markerArray[offsetMinus1] == 0)
+          if (markerArray[offset] == borderStamp || x == 0 || x == width - 1 || y == 0 || y == height - 1)
+            floodTouchedBorder = true;
+          markerArray[offset] = markerStamp;
+          if (!spanTop && y > 0 && getIsActiveInBounds (offsetMinus1) == activity && markerArray[offsetMinus1] != markerStamp)
             {
               S.push (x);
               S.push (y - 1);
               spanTop = true;
             }
-          else if (spanTop && y > 0 && (!(getIsActiveInBounds (offsetMinus1) == activity) || markerArray[offsetMinus1] == 1))
+          else if (spanTop && y > 0 && (!(getIsActiveInBounds (offsetMinus1) == activity) || markerArray[offsetMinus1] == markerStamp))
             {
               spanTop = false;
             }
-          if (!spanBottom && y < height - 1 && getIsActiveInBounds (offsetPlus1) == activity && markerArray[offsetPlus1] == 0)
+          if (!spanBottom && y < height - 1 && getIsActiveInBounds (offsetPlus1) == activity && markerArray[offsetPlus1] != markerStamp)
             {
               S.push (x);
               S.push (y + 1);
               spanBottom = true;
             }
-          else if (spanBottom && y < height - 1 && (!(getIsActiveInBounds (offsetPlus1) == activity) || markerArray[offsetPlus1] == 1))
+          else if (spanBottom && y < height - 1 && (!(getIsActiveInBounds (offsetPlus1) == activity) || markerArray[offsetPlus1] == markerStamp))
             {
               spanBottom = false;
             }
@@ -510,7 +536,24 @@ void markOutWithSimilarActivity (int xArg, int yArg)
           offsetMinus1++;
           offsetPlus1++;
         }
+      if (offset > spanStart)
+        {
+          first = Math.min (first, spanStart);
+          if (stop)
+            {
+              spans.add (spanStart);
+              spans.add (offset);
+            }
+        }
+    }
+
+  // Other pixels of the lump will lead here and know that it reaches the border without going all the way through it
+  if (stop && floodTouchedBorder)
+    {
+      for (int i = 0; i < spans.size (); i += 2)
+        Arrays.fill (markerArray, spans.get (i), spans.get (i + 1), borderStamp);
     }
+  return first;
 }
 
 public boolean isEmpty ()
@@ -520,81 +563,127 @@ public boolean isEmpty ()
 
 public void drawItself (Graphics2D g2dArg, CPCanvas canvas)
 {
-  if (minX > maxX || minY > maxY || !neededForDrawing)
+  if (minX > maxX || minY > maxY || !neededForDrawing || CurPixelLines == null)
     return;
 
+  if (outline == null)
+    {
+      outline = buildOutline ();
+      displayOutline = null;
+    }
+
+  AffineTransform transform = canvas.getTransform ();
+  if (displayOutline == null || !transform.equals (displayOutlineTransform))
+    {
+      displayOutline = new ArrayList<float[]> ();
+      displayOutlinePath = new Path2D.Float ();
+      for (float[] polygon : outline)
+        {
+          float[] displayPolygon = new float[polygon.length];
+          transform.transform (polygon, 0, displayPolygon, 0, polygon.length / 2);
+          displayOutline.add (displayPolygon);
+          displayOutlinePath.moveTo (displayPolygon[0], displayPolygon[1]);
+          for (int k = 2; k < displayPolygon.length; k += 2)
+            {
+              displayOutlinePath.lineTo (displayPolygon[k], displayPolygon[k + 1]);
+            }
+          displayOutlinePath.closePath ();
+        }
+      displayOutlineTransform.setTransform (transform);
+    }
+
+  // White line with black dashes over it, dashes have the same length on screen at any zoom
+  // and are moved by the animation through their phase
+  float phase = (initialDashPiece + (initialDashDrawn ? 0.f : 1.f)) * DASH_ZOOM_INDEPENDENT_LENGTH;
   Graphics2D g2d = (Graphics2D) g2dArg.create ();
-  float dashLength = DASH_ZOOM_INDEPENDENT_LENGTH / canvas.getZoom ();
+  g2d.setStroke (new BasicStroke (1f));
+  g2d.setColor (Color.white);
+  g2d.draw (displayOutlinePath);
+  g2d.setColor (Color.black);
+  g2d.draw (getDisplayDashes (phase));
+  g2d.dispose ();
+}
 
-  for (TIntArrayList CurPixelLine : CurPixelLines)
+// Points of CurPixelLines continuing a horizontal or vertical run are left out, so the polygons
+// have one segment per side of the outline instead of one per pixel edge
+private ArrayList<float[]> buildOutline ()
+{
+  ArrayList<float[]> polygons = new ArrayList<float[]> ();
+  TIntArrayList points = new TIntArrayList ();
+  for (TIntArrayList line : CurPixelLines)
     {
+      int count = line.size () / 2;
+      points.resetQuick ();
+      for (int j = 0; j < count; j++)
+        {
+          int prev = (j + count - 1) % count;
+          int next = (j + 1) % count;
+          int x = line.get (j * 2);
+          int y = line.get (j * 2 + 1);
+          int dx1 = x - line.get (prev * 2);
+          int dy1 = y - line.get (prev * 2 + 1);
+          int dx2 = line.get (next * 2) - x;
+          int dy2 = line.get (next * 2 + 1) - y;
+          if (dx1 * dy2 != dy1 * dx2 || dx1 * dx2 + dy1 * dy2 <= 0)
+            {
+              points.add (x);
+              points.add (y);
+            }
+        }
 
-      boolean dashDrawn = initialDashDrawn;
-      float dashCurLength = initialDashPiece * dashLength;
-      for (int j = 0; j < CurPixelLine.size () / 2; j++)
+      if (points.size () >= 4)
         {
-          TIntArrayList CurPSL = CurPixelLine;
-          int fpX = CurPSL.get (j * 2);
-          int fpY = CurPSL.get (j * 2 + 1);
-          int nextIndex = (j + 1);
-          if (nextIndex == CurPSL.size () / 2)
+          float[] polygon = new float[points.size ()];
+          for (int k = 0; k < polygon.length; k++)
             {
-              nextIndex = 0;
+              polygon[k] = points.get (k);
             }
-          int spX = CurPSL.get (nextIndex * 2);
-          int spY = CurPSL.get (nextIndex * 2 + 1);
-          if (dashLength - dashCurLength > 1.0f)
+          polygons.add (polygon);
+        }
+    }
+  return polygons;
+}
+
+// Dashes are cut here and drawn as plain 1 pixel lines, which Java2D draws much faster than
+// a dashed BasicStroke of the same outline. They start over on each polygon, like the phase would.
+private Path2D.Float getDisplayDashes (float phase)
+{
+  float dash = DASH_ZOOM_INDEPENDENT_LENGTH;
+  Path2D.Float dashes = new Path2D.Float ();
+  for (float[] polygon : displayOutline)
+    {
+      float pos = phase % (2 * dash);
+      boolean on = pos < dash;
+      float left = on ? dash - pos : 2 * dash - pos; // what remains of the current dash or gap
+      for (int k = 0; k < polygon.length; k += 2)
+        {
+          float x1 = polygon[k];
+          float y1 = polygon[k + 1];
+          float dx = polygon[(k + 2) % polygon.length] - x1;
+          float dy = polygon[(k + 3) % polygon.length] - y1;
+          float length = (float) Math.sqrt (dx * dx + dy * dy);
+          float start = 0.f;
+          float remaining = length;
+          while (remaining > 0.f)
             {
-              if (dashDrawn)
+              float step = Math.min (remaining, left);
+              if (on)
                 {
-                  g2d.setColor (Color.black);
+                  dashes.moveTo (x1 + dx * start / length, y1 + dy * start / length);
+                  dashes.lineTo (x1 + dx * (start + step) / length, y1 + dy * (start + step) / length);
                 }
-              else
+              start += step;
+              remaining -= step;
+              left -= step;
+              if (left <= .001f)
                 {
-                  g2d.setColor (Color.white);
-                }
-
-              drawLine (g2d, canvas, fpX, fpY, spX, spY);
-              dashCurLength += 1.0f;
-            }
-          else
-            {
-              float segmentStart = 0.0f;
-              boolean leaveCycle = false;
-              while (true)
-                {
-                  float segmentEnd = segmentStart + (dashLength - dashCurLength);
-                  if (segmentEnd > 1.0f)
-                    {
-                      dashCurLength = 1.0f - segmentStart;
-                      segmentEnd = 1.0f;
-                      leaveCycle = true;
-                    }
-                  if (dashDrawn)
-                    {
-                      g2d.setColor (Color.black);
-                    }
-                  else
-                    {
-                      g2d.setColor (Color.white);
-                    }
-
-                  drawLine (g2d, canvas, fpX + (spX - fpX) * (segmentStart), fpY + (spY - fpY) * (segmentStart),
-                            fpX + (spX - fpX) * (segmentEnd),
-                            fpY + (spY - fpY) * (segmentEnd));
-
-
-                  if (leaveCycle)
-                    {
-                      break;
-                    }
-                  segmentStart = segmentEnd;
-                  dashDrawn = !dashDrawn;
-                  dashCurLength = 0.0f;
+                  on = !on;
+                  left = dash;
                 }
             }
         }
     }
+  return dashes;
 }
 
 private void CalculateBoundingBox (CPRect rect)
@@ -622,51 +711,104 @@ public void precalculateSelection ()
 
 private void precalculateForDrawing ()
 {
-  // cutting out inactive lumps connected with border - these are one we do not care about.
   Arrays.fill (markerArray, (byte) 0);
-  for (int i = 0; i < width; i++)
+  markerStamp = 1;
+  CurPixelLines = new ArrayList<TIntArrayList> ();
+  CurPixelLinesBounds = new ArrayList<CPRect> ();
+  outline = null;
+  traceLumps (getSize (), false);
+}
+
+// Only the lines of lumps near the changed pixels are traced again, all the others stay the same
+private void precalculateForDrawing (CPRect changedArea)
+{
+  // Pixels next to the changed ones may join or leave the lumps of changed pixels
+  CPRect area = new CPRect (changedArea.left - 1, changedArea.top - 1, changedArea.right + 1, changedArea.bottom + 1);
+  area.clip (getSize ());
+  if (CurPixelLines == null || area.equals (getSize ()))
     {
-      if (markerArray[i] == 0 && getIsNonActive (i))
-        {
-          markOutWithSimilarActivity (i, 0);
-        }
-      if (markerArray[(height - 1) * width + i] == 0 && getIsNonActive ((height - 1) * width + i))
-        {
-          markOutWithSimilarActivity (i, height - 1);
-        }
+      precalculateForDrawing ();
+      return;
     }
+  if (changedArea.isEmpty ())
+    return;
 
-  int off = width;
-  for (int i = 1; i < height - 1; i++, off += width)
+  // Lines of the lumps overlapping retraced area are removed until there are none, so that each lump
+  // met there gets exactly one line
+  CPRect retraced = new CPRect (area);
+  boolean grown;
+  do
     {
-      if (markerArray[off] == 0 && getIsNonActive (off))
+      grown = false;
+      for (int i = CurPixelLines.size () - 1; i >= 0; i--)
         {
-          markOutWithSimilarActivity (0, i);
-        }
-      if (markerArray[off + width - 1] == 0 && getIsNonActive (off + width - 1))
-        {
-          markOutWithSimilarActivity (width - 1, i);
+          CPRect bounds = CurPixelLinesBounds.get (i);
+          if (bounds.left < retraced.right && retraced.left < bounds.right && bounds.top < retraced.bottom && retraced.top < bounds.bottom)
+            {
+              retraced.union (bounds);
+              int last = CurPixelLines.size () - 1;
+              CurPixelLines.set (i, CurPixelLines.get (last));
+              CurPixelLines.remove (last);
+              CurPixelLinesBounds.set (i, CurPixelLinesBounds.get (last));
+              CurPixelLinesBounds.remove (last);
+              grown = true;
+            }
         }
     }
-  // Now the actual part - we're running through all of the pixels, we're interested only in unmarked
-  off = 0;
-  CurPixelLines = new ArrayList<TIntArrayList> ();
-  for (int j = 0; j < height; j++)
+  while (grown);
+
+  if (markerStamp >= Byte.MAX_VALUE - 2)
+    {
+      Arrays.fill (markerArray, (byte) 0);
+      markerStamp = 1;
+    }
+  else
+    {
+      markerStamp += 2;
+    }
+  outline = null;
+  traceLumps (retraced, true);
+}
+
+// Creates lines for the lumps having pixels in rect and not marked by the current pass. Lines start from the first
+// pixel of the lump in scan order. Inactive lumps connected with border are skipped - these are one we do not care about.
+private void traceLumps (CPRect rect, boolean stopAtBorder)
+{
+  for (int j = rect.top; j < rect.bottom; j++)
     {
-      for (int i = 0; i < width; i++, off++)
+      int off = j * width + rect.left;
+      for (int i = rect.left; i < rect.right; i++, off++)
         {
-          if (markerArray[off] == 0) // we're found interesting pixels.
+          if (markerArray[off] == markerStamp || markerArray[off] == markerStamp + 1)
+            continue;
+
+          int first = markOutWithSimilarActivity (i, j, stopAtBorder);
+          if (getIsActiveInBounds (off) || !floodTouchedBorder) // we're found interesting pixels.
             {
-              createSingleLinesFromPoint (CurPixelLines, i, j); // create single lines from this point
-              markOutWithSimilarActivity (i, j);
+              int sizeBefore = CurPixelLines.size ();
+              createSingleLinesFromPoint (CurPixelLines, first % width, first / width);
+              TIntArrayList line = CurPixelLines.get (sizeBefore);
+              CPRect bounds = new CPRect (width, height, 0, 0);
+              for (int k = 0; k < line.size (); k += 2)
+                {
+                  bounds.left = Math.min (bounds.left, line.get (k));
+                  bounds.right = Math.max (bounds.right, line.get (k));
+                  bounds.top = Math.min (bounds.top, line.get (k + 1));
+                  bounds.bottom = Math.max (bounds.bottom, line.get (k + 1));
+                }
+              CurPixelLinesBounds.add (bounds);
             }
         }
     }
-  // That's all folks!
 }
 
-
 void precalculateSelection (CPRect rect)
+{
+  precalculateSelection (rect, getSize ());
+}
+
+// changedArea should contain all the pixels changed since the previous call, the bounding box is searched only inside of rect
+void precalculateSelection (CPRect rect, CPRect changedArea)
 {
   minX = width;
   maxX = 0;
@@ -676,7 +818,11 @@ void precalculateSelection (CPRect rect)
   CalculateBoundingBox (rect); // Warning: We count everything non-zero into bounding box, so the function is separate.
   if (neededForDrawing)
     {
-      precalculateForDrawing ();
+      precalculateForDrawing (changedArea);
+    }
+  else
+    {
+      CurPixelLines = null; // Outline gets out of date and should be traced from scratch next time
     }
 }
 
@@ -49,6 +49,13 @@ private final CPSelection preservedSelection;
 private final CPLayer preservedActiveLayer;
 private Vector<CPLayer> preservedAllLayers;
 
+// Strokes preserve the active layer lazily, tile by tile before they change it, so that starting one
+// doesn't cost a copy of the whole layer. Tiles marked with preservedTilesStamp are preserved already,
+// the others are stale while preservingLazily is set.
+private boolean preservingLazily;
+private int[] preservedTiles;
+private int preservedTilesStamp;
+
 CPLayer getPreservedActiveLayer ()
 {
   return preservedActiveLayer;
@@ -78,9 +85,64 @@ void restoreActiveLayerAlpha (CPRect r)
 
 public void preserveActiveLayerData ()
 {
+  preservingLazily = false;
   preservedActiveLayer.copyFrom (artwork.getActiveLayer ());
 }
 
+// Only the parts given to preserveActiveLayerRect () are preserved after that,
+// preserved data may be read only there
+void preserveActiveLayerDataLazily ()
+{
+  if (preservedActiveLayer.getWidth () != artwork.getWidth () || preservedActiveLayer.getHeight () != artwork.getHeight ())
+    {
+      preserveActiveLayerData ();
+      return;
+    }
+
+  int count = artwork.getActiveLayer ().getTilesX () * artwork.getActiveLayer ().getTilesY ();
+  if (preservedTiles == null || preservedTiles.length != count || preservedTilesStamp == Integer.MAX_VALUE)
+    {
+      preservedTiles = new int[count];
+      preservedTilesStamp = 0;
+    }
+  preservedTilesStamp++;
+  preservingLazily = true;
+}
+
+// Has to be called before the active layer is changed inside r
+void preserveActiveLayerRect (CPRect r)
+{
+  if (!preservingLazily)
+    {
+      return;
+    }
+
+  // Called for every dab, so r is clipped without allocating anything
+  CPLayer layer = artwork.getActiveLayer ();
+  int left = Math.max (0, r.left), top = Math.max (0, r.top);
+  int right = Math.min (layer.getWidth (), r.right), bottom = Math.min (layer.getHeight (), r.bottom);
+  if (right <= left || bottom <= top)
+    {
+      return;
+    }
+
+  int tilesX = layer.getTilesX ();
+  for (int ty = top >> CPColorBmp.TILE_SHIFT; ty <= (bottom - 1) >> CPColorBmp.TILE_SHIFT; ty++)
+    {
+      for (int tx = left >> CPColorBmp.TILE_SHIFT; tx <= (right - 1) >> CPColorBmp.TILE_SHIFT; tx++)
+        {
+          int t = ty * tilesX + tx;
+          if (preservedTiles[t] != preservedTilesStamp)
+            {
+              preservedTiles[t] = preservedTilesStamp;
+              int tileLeft = tx << CPColorBmp.TILE_SHIFT, tileTop = ty << CPColorBmp.TILE_SHIFT;
+              preservedActiveLayer.copyPixelsFrom (layer, new CPRect (tileLeft, tileTop, tileLeft + CPColorBmp.TILE_SIZE,
+                                                                      tileTop + CPColorBmp.TILE_SIZE));
+            }
+        }
+    }
+}
+
 public void preserveAllLayersState ()
 {
   preservedAllLayers = new Vector<CPLayer> (artwork.getLayersVector ().size ());
@@ -92,9 +154,15 @@ public void preserveAllLayersState ()
     }
 }
 
+// Read only, getData () would drop the deep pixels of the preserved layer
 public int[] getActiveLayerPreservedData ()
 {
-  return preservedActiveLayer.getData ();
+  return preservedActiveLayer.getDataUntracked ();
+}
+
+long[] getActiveLayerPreservedDeepData ()
+{
+  return preservedActiveLayer.getDeepData ();
 }
 
 public void preserveCurrentSelection ()
@@ -607,7 +675,7 @@ class CPUndoSelection extends CPUndo
   public void undo ()
   {
     artwork.curSelection.setRectXOR (data, rect);
-    artwork.curSelection.precalculateSelection ();
+    artwork.curSelection.precalculateSelection (artwork.getSize (), rect);
     artwork.invalidateFusion (rect);
   }
 
@@ -615,7 +683,7 @@ class CPUndoSelection extends CPUndo
   public void redo ()
   {
     artwork.curSelection.setRectXOR (data, rect);
-    artwork.curSelection.precalculateSelection ();
+    artwork.curSelection.precalculateSelection (artwork.getSize (), rect);
     artwork.invalidateFusion (rect);
   }
 
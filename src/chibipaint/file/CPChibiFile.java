@@ -41,6 +41,7 @@ private static final byte[] HEAD = {72, 69, 65, 68};
 private static final byte[] LAYR = {76, 65, 89, 82};
 private static final byte[] LYER = {76, 89, 69, 82};
 private static final byte[] ZEND = {90, 69, 78, 68};
+private static final byte[] DEEP = {68, 69, 69, 80};
 
 @Override
 public boolean isNative ()
@@ -101,6 +102,14 @@ class AdvancedChiWriter extends DefaultChiWriter
 
     // This is not part of the legacy header:
     writeInt (os, a.getActiveLayerNum ());
+
+    // Readers skip chunks they don't know, so older versions just open it with 8 bit compositing
+    if (a.isDeepColor ())
+      {
+        os.write (DEEP); // Chunk ID
+        writeInt (os, 4); // ChunkSize
+        writeInt (os, 1); // deep color and future flags
+      }
   }
 
   @Override
@@ -109,7 +118,7 @@ class AdvancedChiWriter extends DefaultChiWriter
     byte[] title = l.getName ().getBytes ("UTF-8");
 
     os.write (LYER); // Chunk ID
-    writeInt (os, 20 + l.getData ().length * 4 + title.length); // ChunkSize
+    writeInt (os, 20 + l.getWidth () * l.getHeight () * 4 + title.length); // ChunkSize
 
     writeInt (os, 20 + title.length); // Data offset from start of header
     writeInt (os, l.getBlendMode ()); // layer blend mode
@@ -119,7 +128,7 @@ class AdvancedChiWriter extends DefaultChiWriter
     writeInt (os, title.length);
     os.write (title);
 
-    writeIntArray (os, l.getData ());
+    writeLayerData (os, l);
   }
 }
 
@@ -152,7 +161,7 @@ class DefaultChiWriter implements ChiWriter
     byte[] title = l.getName ().getBytes ("UTF-8");
 
     os.write (LAYR); // Chunk ID
-    writeInt (os, 20 + l.getData ().length * 4 + title.length); // ChunkSize
+    writeInt (os, 20 + l.getWidth () * l.getHeight () * 4 + title.length); // ChunkSize
 
     writeInt (os, 20 + title.length); // Data offset from start of header
     writeInt (os, l.getBlendMode ()); // layer blend mode
@@ -162,10 +171,21 @@ class DefaultChiWriter implements ChiWriter
     writeInt (os, title.length);
     os.write (title);
 
-    writeIntArray (os, l.getData ());
+    writeLayerData (os, l);
   }
 
 
+  // Written row by row so that tiled layers don't have to be expanded
+  protected void writeLayerData (OutputStream os, CPLayer l) throws IOException
+  {
+    int[] row = new int[l.getWidth ()];
+    for (int j = 0; j < l.getHeight (); j++)
+      {
+        l.copyRowToArray (0, j, row.length, row, 0);
+        writeIntArray (os, row);
+      }
+  }
+
   protected void writeIntArray (OutputStream os, int arr[]) throws IOException
   {
     byte[] temp = new byte[arr.length * 4];
@@ -249,6 +269,7 @@ class ChiReader_v1 implements ChiReader
 
     realSkip (is, offset - 20 - titleLength);
     readIntArray (is, l.getData (), l.getWidth () * l.getHeight ());
+    l.compact ();
 
     a.getLayersVector ().add (l);
 
@@ -275,6 +296,11 @@ class ChiReader_v1 implements ChiReader
           {
             readLayer (iis, chunk, a);
           }
+        else if (chunk.is (DEEP))
+          {
+            a.setDeepColor ((readInt (iis) & 1) != 0);
+            realSkip (iis, chunk.chunkSize - 4);
+          }
         else
           {
             realSkip (iis, chunk.chunkSize);
@@ -306,6 +332,7 @@ class DefaultChiReader implements ChiReader
 
     realSkip (is, offset - 20 - titleLength);
     readIntArray (is, l.getData (), l.getWidth () * l.getHeight ());
+    l.compact ();
 
     a.getLayersVector ().add (l);
 
@@ -23,6 +23,7 @@ package chibipaint.file;
 
 import chibipaint.engine.CPArtwork;
 import chibipaint.engine.CPLayer;
+import chibipaint.util.CPRect;
 
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.*;
@@ -340,7 +341,10 @@ private static boolean readMagic (InputStream is) throws IOException
 }
 
 // We pay any attention only to compression that's why returning it.
-private static int readProperties (InputStream is) throws IOException
+// Deep color of ChibiPaintMod documents, kept by GIMP as a persistent image parasite
+private static final String DEEP_COLOR_PARASITE = "chibipaint-deep-color";
+
+private static int readProperties (InputStream is, CPArtwork a) throws IOException
 {
   int paramID;
   int compressionType = 1; // RLE default anyway
@@ -360,6 +364,25 @@ private static int readProperties (InputStream is) throws IOException
           compressionType = is.read ();
           break;
         }
+        case 21: // PROP_PARASITES
+        {
+          payloadSize = readInt (is);
+          int read = 0;
+          while (read < payloadSize)
+            {
+              String name = readString (is);
+              readInt (is); // flags
+              int size = readInt (is);
+              byte[] data = new byte[size];
+              is.read (data, 0, size);
+              read += 4 + name.getBytes ("UTF-8").length + 8 + size;
+              if (name.equals (DEEP_COLOR_PARASITE + '\0') && size > 0)
+                {
+                  a.setDeepColor (data[0] != 0);
+                }
+            }
+          break;
+        }
         default:
         {
           payloadSize = readInt (is);
@@ -592,9 +615,15 @@ private static void writeLayer (
         OutputStream os, CPLayer layer,
         boolean isActive) throws IOException
 {
-  writeInt (os, layer.getWidth ()); // layer width // Well in our case they
-  // are the as picture all the time
-  writeInt (os, layer.getHeight ()); // layer height
+  // Only the part with something in it is written, GIMP layers may be smaller than the image
+  CPRect bounds = layer.getContentBounds ();
+  if (bounds.isEmpty ())
+    bounds = new CPRect (1, 1);
+  int width = bounds.getWidth ();
+  int height = bounds.getHeight ();
+
+  writeInt (os, width); // layer width
+  writeInt (os, height); // layer height
   writeInt (os, 1); // layer type, 1 - means 24 bit color with alpha
   writeString (os, layer.getName ()); // layer name
   // Layer properties
@@ -673,12 +702,12 @@ private static void writeLayer (
       break;
     }
 
-  // Offsets in our case it's dummy 0s
+  // Offsets of the written part
 
   writeInt (os, GIMP_CONST_OFFSETS);
   writeInt (os, 8); // Two ints
-  writeInt (os, 0);
-  writeInt (os, 0);
+  writeInt (os, bounds.getLeft ());
+  writeInt (os, bounds.getTop ());
 
   // Layer opacity:
 
@@ -706,8 +735,8 @@ private static void writeLayer (
   writeInt (os, 0);
 
   // Hierarchy Structure
-  writeInt (os, layer.getWidth ()); // Once again width
-  writeInt (os, layer.getHeight ()); // Once again height
+  writeInt (os, width); // Once again width
+  writeInt (os, height); // Once again height
   writeInt (os, 4); // Bytes per pixel
   // Now we need to calculate how many level structures will be there
 
@@ -717,11 +746,11 @@ private static void writeLayer (
   writeInt (os, 0); // Terminating zero for levels
 
   // Actual level
-  writeInt (os, layer.getWidth ());
-  writeInt (os, layer.getHeight ());
+  writeInt (os, width);
+  writeInt (os, height);
   // Now there goes some pointers for tile data
-  int wTiles = (int) (Math.ceil ((double) layer.getWidth () / 64));
-  int hTiles = (int) (Math.ceil ((double) layer.getHeight () / 64));
+  int wTiles = (int) (Math.ceil ((double) width / 64));
+  int hTiles = (int) (Math.ceil ((double) height / 64));
   int numberOfTiles = wTiles * hTiles;
   int[] tilePointers = new int[numberOfTiles];
   int pointerPos = position (os); // Remembering
@@ -733,13 +762,13 @@ private static void writeLayer (
 
   writeInt (os, 0); // Terminating zero;
   // Then we're starting to write actual tiles
+  int[] data = layer.copyRectToIntArray (bounds);
   for (int i = 0; i < hTiles; i++)
     // outer loop is vertical one
     for (int j = 0; j < wTiles; j++)
       {
         tilePointers[i * wTiles + j] = position (os);
-        writeTileRLE (os, layer.getData (), j, i, layer.getWidth (),
-                      layer.getHeight ()); // Writing actual tile Info
+        writeTileRLE (os, data, j, i, width, height); // Writing actual tile Info
       }
 
   int actualPos = position (os);
@@ -756,7 +785,7 @@ private static void writeMagic (OutputStream os) throws IOException
   os.write (gimp_xcf_);
 }
 
-private static void writeProperties (OutputStream os) throws IOException
+private static void writeProperties (OutputStream os, CPArtwork a) throws IOException
 {
   // Compression, using default one - RLE
   writeInt (os, 17); // PROP_COMPRESSION
@@ -768,6 +797,17 @@ private static void writeProperties (OutputStream os) throws IOException
   writeFloat (os, 72.0f);
   writeFloat (os, 72.0f);
 
+  if (a.isDeepColor ())
+    {
+      byte[] name = DEEP_COLOR_PARASITE.getBytes ("UTF-8");
+      writeInt (os, 21); // PROP_PARASITES
+      writeInt (os, 4 + name.length + 1 + 8 + 1); // payload size
+      writeString (os, DEEP_COLOR_PARASITE);
+      writeInt (os, 1); // GIMP_PARASITE_PERSISTENT
+      writeInt (os, 1); // parasite data size
+      os.write (1);
+    }
+
   writeInt (os, 0); // PROP_END
   writeInt (os, 0); // empty payload
 }
@@ -934,8 +974,8 @@ public CPArtwork read (InputStream isArg)
       colorScheme = readInt (is);
       if (colorScheme > 1) // RGB or grayscale
         return null;
-      int compression = readProperties (is);
       CPArtwork a = new CPArtwork (width, height);
+      int compression = readProperties (is, a);
       a.getLayersVector ().remove (0); // TODO: pass argument to constructor
       // to not create layers
 
@@ -965,6 +1005,7 @@ public CPArtwork read (InputStream isArg)
               is.close ();
               return null;
             }
+          layer.compact ();
           a.getLayersVector ().insertElementAt (layer, 0);
         }
 
@@ -989,7 +1030,7 @@ public boolean write (OutputStream osArg, CPArtwork a)
       writeInt (os, a.getHeight ()); // image height
       writeInt (os, 0); // RGB Color - mode, other modes don't concern us
       // Image properties
-      writeProperties (os);
+      writeProperties (os, a);
       // LayerLinks
       int[] layerLinks = new int[a.getLayersVector ().size ()];
       int layerLinksPosition = position (os);
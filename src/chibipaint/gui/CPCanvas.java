@@ -32,7 +32,9 @@ import chibipaint.engine.CPSelection;
 import chibipaint.engine.CPTransformHandler;
 import chibipaint.util.CPBezier;
 import chibipaint.util.CPEnums;
+import chibipaint.util.CPLatencyTrace;
 import chibipaint.util.CPRect;
+import chibipaint.util.CPRegion;
 import chibipaint.util.CPTablet;
 
 import javax.swing.*;
@@ -40,8 +42,13 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.MemoryImageSource;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.VolatileImage;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.prefs.Preferences;
 
 import static chibipaint.engine.CPArtwork.SelectionTypeOfAppliance;
@@ -59,13 +66,36 @@ private static final long serialVersionUID = 1L;
 private CPCommonController controller;
 
 // FIXME: this should not be public
-public Image img;
-private Image overlayImg;
+// Shares its pixels with the fusion, so it's up to date as soon as the layers are fused
+public BufferedImage img;
+private BufferedImage overlayImg;
+// Copy of img or of its mipmap level kept by the graphics pipeline, only dirty areas are uploaded to it
+private VolatileImage displayImg;
+private int displayLevel;
+// Document on the canvas without the selection, grid and mode drawings, as rendered for viewTransform
+private VolatileImage viewImg;
+private final AffineTransform viewTransform = new AffineTransform ();
+private boolean viewValid;
+// Area filled with the checkerboard, and the part of it around the image painted over again
+private Rectangle viewBackgroundRect;
+private GeneralPath viewBackgroundPath;
+private TexturePaint viewBackgroundPaint;
+private CPMipmap mipmap;
+private volatile CPRenderThread renderThread;
+// Held by the render thread for each slice it renders, and for what's shared with it here, see CPRenderThread
+private final ReentrantLock renderLock = new ReentrantLock (true);
+private CPFrameScheduler frameScheduler;
+private CPStrokePipeline strokePipeline;
+
+private static final int RENDER_SLICE_PIXELS = 512 * 512;
+// Grid the scaled or rotated view is rendered on, see renderView
+private static final int VIEW_TILE_SIZE = 128;
 
 private BufferedImage checkerboardPattern;
-private MemoryImageSource imgSource;
-private CPRect updateRegion = new CPRect ();
-private MemoryImageSource overlayImgSource;
+// Changed in the artwork but not fused yet
+private final CPRegion updateRegion = new CPRegion ();
+// Fused but not uploaded to displayImg yet
+private final CPRegion frontRegion = new CPRegion ();
 
 private int[] buffer;
 private int[] overlayBuffer;
@@ -90,6 +120,8 @@ private int cursorY;
 private int modifiers;
 private int button;
 private Timer selectionUpdateTimer;
+private Timer latencyHudTimer;
+private static final Rectangle LATENCY_HUD_RECT = new Rectangle (8, 8, 470, CPLatencyTrace.Stage.values ().length * 15 + 12);
 
 private Rectangle oldPreviewRect;
 private JFrame waitingFrame;
@@ -206,20 +238,128 @@ public void reinitCanvas ()
 
 void prepareImages ()
 {
-  buffer = artwork.getDisplayBM ().getData ();
-  int w = artwork.getWidth ();
-  int h = artwork.getHeight ();
+  renderLock.lock ();
+  try
+    {
+      buffer = artwork.getDisplayBM ().getData ();
+      int w = artwork.getWidth ();
+      int h = artwork.getHeight ();
+
+      overlayBuffer = artwork.getOverlayBM ().getData ();
+
+      img = createSharedImage (buffer, w, h);
+      overlayImg = createSharedImage (overlayBuffer, w, h);
+      mipmap = new CPMipmap (buffer, w, h);
+      if (displayImg != null)
+        {
+          displayImg.flush ();
+          displayImg = null;
+        }
+      updateRegion.makeEmpty ();
+      frontRegion.makeEmpty ();
+      frontRegion.union (new CPRect (w, h));
+      viewValid = false;
+    }
+  finally
+    {
+      renderLock.unlock ();
+    }
+}
+
+// When zoomed out a smaller copy is drawn, so that the cost depends on the size on screen
+private int getDisplayLevel ()
+{
+  return interpolation ? CPMipmap.getLevelForZoom (zoom) : 0;
+}
+
+// Fuses a slice of the visible areas waiting in updateRegion, returns whether some are left.
+// Areas which are not on screen are only rendered once they get scrolled to.
+// Must be called with renderLock held
+boolean renderSlice ()
+{
+  int level = getDisplayLevel ();
+  CPRect visibleArea = getVisibleArea (level);
+  CPRegion pending = updateRegion.getIntersection (visibleArea);
+  if (pending.isEmpty ())
+    {
+      return false;
+    }
 
-  overlayBuffer = artwork.getOverlayBM ().getData ();
+  CPRect r = new CPRect (pending.getRects ().get (0));
+  r.bottom = Math.min (r.bottom, r.top + Math.max (1, RENDER_SLICE_PIXELS / r.getWidth ()));
+  updateRegion.subtract (r);
 
-  imgSource = new MemoryImageSource (w, h, buffer, 0, w);
-  imgSource.setAnimated (true);
-  img = createImage (imgSource);
+  long traceStart = CPLatencyTrace.start ();
+  artwork.fusionLayers (r);
+  CPLatencyTrace.add (CPLatencyTrace.Stage.FUSION, traceStart);
+  frontRegion.union (r);
+  mipmap.invalidate (r);
 
-  overlayImgSource = new MemoryImageSource (w, h, overlayBuffer, 0, w);
-  overlayImgSource.setAnimated (true);
-  overlayImg = createImage (overlayImgSource);
-  updateRegion = new CPRect (w, h);
+  // Slices rendered in paint () are drawn right away, those of the render thread once it's done with the
+  // frame, see CPFrameScheduler
+  if (Thread.currentThread () == renderThread)
+    {
+      frameScheduler.repaint (getRefreshArea (r));
+    }
+
+  if (!updateRegion.getIntersection (visibleArea).isEmpty ())
+    {
+      return true;
+    }
+  if (level > 0)
+    {
+      mipmap.getImage (level);
+    }
+  return false;
+}
+
+// Wraps ARGB pixels into an image without copying them
+static BufferedImage createSharedImage (int[] data, int w, int h)
+{
+  DirectColorModel cm = (DirectColorModel) ColorModel.getRGBdefault ();
+  DataBufferInt dataBuffer = new DataBufferInt (data, w * h);
+  return new BufferedImage (cm, Raster.createPackedRaster (dataBuffer, w, h, w, cm.getMasks (), null), false, null);
+}
+
+// Uploads the dirty areas of source, img or its mipmap level, to displayImg, everything if it had to be (re)created
+private void refreshDisplayImage (BufferedImage source, int level, CPRegion dirtyRegion)
+{
+  if (level != displayLevel && displayImg != null)
+    {
+      displayImg.flush ();
+      displayImg = null;
+    }
+  displayLevel = level;
+
+  GraphicsConfiguration gc = getGraphicsConfiguration ();
+  int w = source.getWidth ();
+  int h = source.getHeight ();
+  int state = displayImg == null ? VolatileImage.IMAGE_INCOMPATIBLE : displayImg.validate (gc);
+  if (state == VolatileImage.IMAGE_INCOMPATIBLE)
+    {
+      if (displayImg != null)
+        {
+          displayImg.flush ();
+        }
+      displayImg = gc.createCompatibleVolatileImage (w, h, Transparency.TRANSLUCENT);
+    }
+  boolean refreshAll = state != VolatileImage.IMAGE_OK;
+
+  Graphics2D g = displayImg.createGraphics ();
+  g.setComposite (AlphaComposite.Src);
+  if (refreshAll)
+    {
+      g.drawImage (source, 0, 0, null);
+    }
+  else
+    {
+      for (CPRect rect : dirtyRegion.getRects ())
+        {
+          CPRect r = CPMipmap.scaleRect (rect, level);
+          g.drawImage (source, r.left, r.top, r.right, r.bottom, r.left, r.top, r.right, r.bottom, null);
+        }
+    }
+  g.dispose ();
 }
 
 public void initialUpdatesAfterCanvasCreation ()
@@ -233,6 +373,8 @@ void initCanvas (CPCommonController ctrl)
 
   setArtwork (ctrl.getArtwork ());
 
+  frameScheduler = new CPFrameScheduler (this);
+  strokePipeline = new CPStrokePipeline (this);
   prepareImages ();
 
   ctrl.setCanvas (this);
@@ -412,7 +554,7 @@ void updateScrollBars ()
       verticalScroll.setEnabled (false);
     }
 
-  Rectangle visibleRect = getRefreshArea (new CPRect (img.getWidth (null), img.getHeight (null)));
+  Rectangle visibleRect = getRefreshArea (new CPRect (img.getWidth (), img.getHeight ()));
   updateScrollBar (horizontalScroll, visibleRect.x, visibleRect.width, getWidth (), -getOffset ().x);
   updateScrollBar (verticalScroll, visibleRect.y, visibleRect.height, getHeight (), -getOffset ().y);
 }
@@ -450,64 +592,57 @@ public void update (Graphics g)
 @Override
 public void paint (Graphics g)
 {
-  Graphics2D g2d = (Graphics2D) g;
-
-  g2d.setColor (new Color (0x606060));
-  g2d.fillRect (0, 0, getWidth (), getHeight ());
-
-  if (!updateRegion.isEmpty ())
+  renderLock.lock ();
+  try
     {
-      artwork.fusionLayers ();
-      imgSource.newPixels (updateRegion.left, updateRegion.top, updateRegion.getWidth (), updateRegion.getHeight ());
-      overlayImgSource.newPixels (updateRegion.left, updateRegion.top, updateRegion.getWidth (), updateRegion.getHeight ());
-      updateRegion.makeEmpty ();
+      paintLocked ((Graphics2D) g);
     }
-
-  int w = img.getWidth (null);
-  int h = img.getHeight (null);
-
-  Graphics2D g2doc = (Graphics2D) g2d.create ();
-  g2doc.transform (transform);
-
-  // Draw the checkerboard pattern
-  // we'll draw the pattern over an area larger than the image
-  // and then remove the extra to avoid display problems
-  // when the displayed bitmap doesn't match exactly with the checkerboard area
-
-  GeneralPath path = getCheckerboardBackgroundPath (new Rectangle2D.Float (0, 0, w, h));
-
-  // get the bounding rect and make it a bit larger to be sure to include everything
-  Rectangle pathRect = path.getBounds ();
-  pathRect.x -= 2;
-  pathRect.y -= 2;
-
-  g2d.setPaint (new TexturePaint (checkerboardPattern, new Rectangle (0, 0, 64, 64)));
-  g2d.fill (pathRect);
-
-  // Draw the image on the canvas
-
-  if (interpolation)
+  finally
     {
-      RenderingHints hints = g2doc.getRenderingHints ();
-      hints.put (RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-      g2doc.addRenderingHints (hints);
+      renderLock.unlock ();
     }
+}
 
-  g2doc.drawImage (img, 0, 0, w, h, 0, 0, img.getWidth (null), img.getHeight (null), null);
+private void paintLocked (Graphics2D g2d)
+{
+  // Normally the render thread is done with the frame by now, otherwise what's left is drawn next time.
+  // Inside of a modal loop the event which opened it still holds the lock, nothing can be rendered there
+  // until it's closed
+  if (renderThread == null || renderLock.getHoldCount () > 1)
+    {
+      while (renderSlice ())
+        {
+        }
+    }
+  else
+    {
+      renderThread.requestFrame (false);
+    }
 
-  g2doc.setColor (Color.magenta);
+  long traceStart = CPLatencyTrace.start ();
+  int level = getDisplayLevel ();
+  BufferedImage source = level == 0 ? img : mipmap.getImage (level);
+  CPLatencyTrace.add (CPLatencyTrace.Stage.UPLOAD, traceStart);
 
-  if (artwork.getShowOverlay ())
+  // The contents can be lost while drawing, they are uploaded and rendered again then
+  boolean contentsLost;
+  do
     {
-      g2doc.setXORMode (Color.GREEN);
-      g2doc.drawImage (overlayImg, 0, 0, w, h, 0, 0, overlayImg.getWidth (null), overlayImg.getHeight (null), null);
+      traceStart = CPLatencyTrace.start ();
+      refreshDisplayImage (source, level, frontRegion);
+      CPLatencyTrace.add (CPLatencyTrace.Stage.UPLOAD, traceStart);
+      traceStart = CPLatencyTrace.start ();
+      refreshViewImage (level);
+      g2d.drawImage (viewImg, 0, 0, null);
+      CPLatencyTrace.add (CPLatencyTrace.Stage.DRAW, traceStart);
+      contentsLost = displayImg.contentsLost () || viewImg.contentsLost ();
+      if (contentsLost)
+        {
+          viewValid = false;
+        }
     }
-
-  // Redraw over the checkerboard border, removing a just a little bit of the image to avoid display problems
-  path.append (pathRect, false);
-  path.setWindingRule (Path2D.WIND_EVEN_ODD);
-  g2d.setColor (new Color (0x606060));
-  g2d.fill (path);
+  while (contentsLost);
+  frontRegion.makeEmpty ();
     /*
 
 		// This XOR mode guarantees contrast over all colors
@@ -558,6 +693,16 @@ public void paint (Graphics g)
   if (prevMode != null && drawPrevMode)
     prevMode.paint (g2d);
 
+  if (latencyHudTimer != null)
+    {
+      drawLatencyHud (g2d);
+    }
+  // Events are on screen once none of their pixels are left to render here
+  if (CPLatencyTrace.ENABLED)
+    {
+      CPLatencyTrace.frameDrawn (updateRegion.getIntersection (getVisibleArea (level)).isEmpty ());
+    }
+
   // This bit of code is used to test repaint areas
     /*
      * if((test++ & 16) == 0) { g.setColor(Color.magenta); Dimension dd = getSize();
@@ -570,6 +715,162 @@ public void paint (Graphics g)
                                                           artwork.getUndoManager ().getRedoList ().size () > 0 ? artwork.getUndoManager ().getRedoList ().getFirst () : null);
 }
 
+// Renders the document as seen on the canvas into viewImg. When the view was only moved, what's
+// already there is shifted and only the exposed strips are rendered, along with the changed areas
+private void refreshViewImage (int level)
+{
+  int w = Math.max (1, getWidth ());
+  int h = Math.max (1, getHeight ());
+  GraphicsConfiguration gc = getGraphicsConfiguration ();
+  int state = viewImg == null || viewImg.getWidth () != w || viewImg.getHeight () != h ? VolatileImage.IMAGE_INCOMPATIBLE : viewImg.validate (gc);
+  if (state == VolatileImage.IMAGE_INCOMPATIBLE)
+    {
+      if (viewImg != null)
+        {
+          viewImg.flush ();
+        }
+      viewImg = gc.createCompatibleVolatileImage (w, h);
+    }
+
+  Graphics2D g = viewImg.createGraphics ();
+  int dx = (int) Math.round (transform.getTranslateX () - viewTransform.getTranslateX ());
+  int dy = (int) Math.round (transform.getTranslateY () - viewTransform.getTranslateY ());
+  boolean unchanged = transform.equals (viewTransform);
+  // With rotation a moved view is rendered again as a whole, as the edges of the image are drawn slightly differently
+  boolean moved = !unchanged && canvasRotation == 0f && transform.getScaleX () == viewTransform.getScaleX ()
+          && transform.getScaleY () == viewTransform.getScaleY () && transform.getShearX () == viewTransform.getShearX ()
+          && transform.getShearY () == viewTransform.getShearY () && Math.abs (dx) < w && Math.abs (dy) < h;
+  if (viewBackgroundPath == null || !unchanged || !viewValid)
+    {
+      updateViewBackground ();
+    }
+
+  if (state != VolatileImage.IMAGE_OK || !viewValid || !(unchanged || moved) || artwork.getShowOverlay ())
+    {
+      renderView (g, new Rectangle (0, 0, w, h), level);
+    }
+  else
+    {
+      if (moved)
+        {
+          g.copyArea (0, 0, w, h, dx, dy);
+          if (dx != 0)
+            {
+              renderView (g, new Rectangle (dx > 0 ? 0 : w + dx, 0, Math.abs (dx), h), level);
+            }
+          if (dy != 0)
+            {
+              renderView (g, new Rectangle (0, dy > 0 ? 0 : h + dy, w, Math.abs (dy)), level);
+            }
+        }
+
+      // Changed parts with a margin of a pixel of the mipmap level, which the interpolation reaches
+      int margin = 1 << level;
+      for (CPRect rect : frontRegion.getRects ())
+        {
+          Rectangle area = getRefreshArea (new CPRect (rect.left - margin, rect.top - margin, rect.right + margin, rect.bottom + margin));
+          renderView (g, area.intersection (new Rectangle (0, 0, w, h)), level);
+        }
+    }
+  g.dispose ();
+
+  viewTransform.setTransform (transform);
+  // The overlay isn't tracked, so the view is rendered completely until the frame after it's gone
+  viewValid = !artwork.getShowOverlay ();
+}
+
+// Draw the checkerboard pattern
+// we'll draw the pattern over an area larger than the image
+// and then remove the extra to avoid display problems
+// when the displayed bitmap doesn't match exactly with the checkerboard area.
+// These are kept for the current transform, as the view is often rendered in parts
+private void updateViewBackground ()
+{
+  GeneralPath path = getCheckerboardBackgroundPath (new Rectangle2D.Float (0, 0, img.getWidth (), img.getHeight ()));
+
+  // get the bounding rect and make it a bit larger to be sure to include everything
+  Rectangle pathRect = path.getBounds ();
+  pathRect.x -= 2;
+  pathRect.y -= 2;
+
+  path.append (pathRect, false);
+  path.setWindingRule (Path2D.WIND_EVEN_ODD);
+  viewBackgroundRect = pathRect;
+  viewBackgroundPath = path;
+  // Anchored to the document, so that it moves along when the view is shifted
+  viewBackgroundPaint = new TexturePaint (checkerboardPattern, new Rectangle (offsetX, offsetY, 64, 64));
+}
+
+// Renders the background, the checkerboard and the document inside of clip, or of the tiles covering it
+// when scaled or rotated, from displayImg
+private void renderView (Graphics2D g, Rectangle clip, int level)
+{
+  if (clip.isEmpty ())
+    {
+      return;
+    }
+
+  // Scaled and rotated images are sampled with steps from the corner of the clip, so where a part starts
+  // changes the rounding of some pixels. They are rendered by tiles of a grid anchored to the document then,
+  // which gives a part the same pixels as the whole. Shifted tiles can still be a step off at most zooms
+  if (zoom != 1f || canvasRotation != 0f)
+    {
+      int left = ((clip.x - offsetX) & -VIEW_TILE_SIZE) + offsetX;
+      int top = ((clip.y - offsetY) & -VIEW_TILE_SIZE) + offsetY;
+      for (int y = top; y < clip.y + clip.height; y += VIEW_TILE_SIZE)
+        {
+          for (int x = left; x < clip.x + clip.width; x += VIEW_TILE_SIZE)
+            {
+              renderViewPart (g, new Rectangle (x, y, VIEW_TILE_SIZE, VIEW_TILE_SIZE), level);
+            }
+        }
+    }
+  else
+    {
+      renderViewPart (g, clip, level);
+    }
+}
+
+private void renderViewPart (Graphics2D g, Rectangle clip, int level)
+{
+  Graphics2D g2d = (Graphics2D) g.create ();
+  g2d.clip (clip);
+  g2d.setColor (new Color (0x606060));
+  g2d.fill (clip);
+
+  Graphics2D g2doc = (Graphics2D) g2d.create ();
+  g2doc.transform (transform);
+
+  g2d.setPaint (viewBackgroundPaint);
+  g2d.fill (viewBackgroundRect);
+
+  // Draw the image on the canvas
+
+  if (interpolation)
+    {
+      RenderingHints hints = g2doc.getRenderingHints ();
+      hints.put (RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g2doc.addRenderingHints (hints);
+    }
+
+  AffineTransform levelTransform = AffineTransform.getScaleInstance (1 << level, 1 << level);
+  g2doc.drawImage (displayImg, levelTransform, null);
+
+  g2doc.setColor (Color.magenta);
+
+  if (artwork.getShowOverlay ())
+    {
+      g2doc.setXORMode (Color.GREEN);
+      g2doc.drawImage (overlayImg, 0, 0, null);
+    }
+
+  // Redraw over the checkerboard border, removing a just a little bit of the image to avoid display problems
+  g2d.setColor (new Color (0x606060));
+  g2d.fill (viewBackgroundPath);
+  g2doc.dispose ();
+  g2d.dispose ();
+}
+
 private GeneralPath getCheckerboardBackgroundPath (Rectangle2D r)
 {
   GeneralPath path = new GeneralPath ();
@@ -622,6 +923,7 @@ public void mousePressed (MouseEvent e)
 @Override
 public void mouseDragged (MouseEvent e)
 {
+  CPLatencyTrace.eventReceived (e.getWhen ());
   setCursorX (e.getX ());
   setCursorY (e.getY ());
   setLastPressure (CPTablet.getRef ().getPressure ());
@@ -730,6 +1032,7 @@ public boolean getApplyToAllLayers ()
 public void setInterpolation (boolean enabled)
 {
   interpolation = enabled;
+  viewValid = false;
   repaint ();
 }
 
@@ -856,6 +1159,11 @@ Point coordToDocumentInt (Point2D p)
   return new Point ((int) Math.round (result.x), (int) Math.round (result.y));
 }
 
+public AffineTransform getTransform ()
+{
+  return new AffineTransform (transform);
+}
+
 public Point2D.Float coordToDisplay (Point2D p)
 {
   Point2D.Float result = new Point2D.Float ();
@@ -912,6 +1220,26 @@ Rectangle getRefreshArea (CPRect r)
   return r2;
 }
 
+// Part of the document visible on screen, with a margin for interpolation,
+// aligned to the pixels of the mipmap level
+CPRect getVisibleArea (int level)
+{
+  Point2D.Float p1 = coordToDocument (new Point2D.Float (0, 0));
+  Point2D.Float p2 = coordToDocument (new Point2D.Float (getWidth (), 0));
+  Point2D.Float p3 = coordToDocument (new Point2D.Float (0, getHeight ()));
+  Point2D.Float p4 = coordToDocument (new Point2D.Float (getWidth (), getHeight ()));
+
+  int margin = 2 << level;
+  CPRect r = new CPRect ((int) Math.floor (Math.min (Math.min (p1.x, p2.x), Math.min (p3.x, p4.x))) - margin,
+                         (int) Math.floor (Math.min (Math.min (p1.y, p2.y), Math.min (p3.y, p4.y))) - margin,
+                         (int) Math.ceil (Math.max (Math.max (p1.x, p2.x), Math.max (p3.x, p4.x))) + margin,
+                         (int) Math.ceil (Math.max (Math.max (p1.y, p2.y), Math.max (p3.y, p4.y))) + margin);
+  CPRect levelRect = CPMipmap.scaleRect (r, level);
+  r = new CPRect (levelRect.left << level, levelRect.top << level, levelRect.right << level, levelRect.bottom << level);
+  r.clip (artwork.getSize ());
+  return r;
+}
+
 void repaintBrushPreview ()
 {
   if (oldPreviewRect != null)
@@ -1188,10 +1516,26 @@ public void componentShown (ComponentEvent e)
 @Override
 public void updateRegion (CPRect region)
 {
-  updateRegion.union (region);
+  renderLock.lock ();
+  try
+    {
+      updateRegion.union (region);
+    }
+  finally
+    {
+      renderLock.unlock ();
+    }
 
-  Rectangle r = getRefreshArea (region);
-  repaint (r.x, r.y, r.width, r.height);
+  // Changes made by a stroke come with every input event, they are shown once per frame.
+  // The render thread repaints what it has rendered, through the frame scheduler too
+  if (renderThread != null)
+    {
+      frameScheduler.render ();
+    }
+  else
+    {
+      frameScheduler.repaint (getRefreshArea (region));
+    }
 }
 
 @Override
@@ -1224,6 +1568,95 @@ public void killTimers ()
       selectionUpdateTimer.stop ();
       selectionUpdateTimer = null;
     }
+  if (latencyHudTimer != null)
+    {
+      latencyHudTimer.stop ();
+      latencyHudTimer = null;
+    }
+}
+
+// The render and stroke threads run while the canvas is displayable, moving it to another window restarts them
+@Override
+public void addNotify ()
+{
+  super.addNotify ();
+  strokePipeline.start ();
+  if (renderThread == null)
+    {
+      setRenderThread (CPRenderThread.start (this, renderLock));
+    }
+}
+
+@Override
+public void removeNotify ()
+{
+  stopRenderThread ();
+  strokePipeline.dispose ();
+  super.removeNotify ();
+}
+
+private void setRenderThread (CPRenderThread thread)
+{
+  renderThread = thread;
+  frameScheduler.setRenderThread (thread);
+  strokePipeline.setThreaded (thread != null);
+}
+
+private void stopRenderThread ()
+{
+  if (renderThread != null)
+    {
+      renderThread.dispose ();
+      setRenderThread (null);
+      // What it had left is rendered in paint () now
+      repaint ();
+    }
+}
+
+void frameRendered ()
+{
+  frameScheduler.frameRendered ();
+}
+
+void renderThreadFailed (CPRenderThread thread, RuntimeException e)
+{
+  if (thread != renderThread)
+    {
+      return;
+    }
+
+  stopRenderThread ();
+  JOptionPane.showMessageDialog (this, "The canvas couldn't be rendered in the background: " + e, "Render Thread",
+                                 JOptionPane.ERROR_MESSAGE);
+}
+
+// The stroke thread couldn't paint a sample, what it painted of the stroke is kept
+void strokeFailed (RuntimeException e)
+{
+  String left = "";
+  // Unless a new stroke has begun since
+  if (strokePipeline.hasFailed ())
+    {
+      CPMode mode = strokePipeline.getMode ();
+      if (mode != null)
+        {
+          mode.endStroke ();
+        }
+      left = ", " + strokePipeline.getDroppedSamples () + " of its samples were left out";
+    }
+  JOptionPane.showMessageDialog (this, "The stroke couldn't be painted" + left + ": " + e, "Stroke", JOptionPane.ERROR_MESSAGE);
+}
+
+// Drags which only add samples to the stroke queue, they don't need the render lock
+public boolean isQueueingStroke ()
+{
+  return getActiveMode () == strokePipeline.getMode () && strokePipeline.isQueueing ();
+}
+
+// Tablet events don't always come through the event queue of the render thread, they take it themselves
+public ReentrantLock getRenderLock ()
+{
+  return renderLock;
 }
 
 public void loadCanvasSettings ()
@@ -1327,6 +1760,42 @@ public void setShowSelection (boolean showSelection)
   this.showSelection = showSelection;
 }
 
+// The numbers are refreshed by a timer, as the canvas is mostly repainted in parts while drawing
+public void setShowLatencyHud (boolean show)
+{
+  if (latencyHudTimer != null)
+    {
+      latencyHudTimer.stop ();
+      latencyHudTimer = null;
+    }
+  if (show)
+    {
+      latencyHudTimer = new Timer (500, new ActionListener ()
+      {
+        @Override
+        public void actionPerformed (ActionEvent e)
+        {
+          repaint (LATENCY_HUD_RECT);
+        }
+      });
+      latencyHudTimer.start ();
+    }
+  repaint (LATENCY_HUD_RECT);
+}
+
+private void drawLatencyHud (Graphics2D g2d)
+{
+  String[] lines = CPLatencyTrace.getSummary ();
+  g2d.setColor (new Color (0, 0, 0, 180));
+  g2d.fill (LATENCY_HUD_RECT);
+  g2d.setColor (Color.white);
+  g2d.setFont (new Font (Font.MONOSPACED, Font.PLAIN, 12));
+  for (int i = 0; i < lines.length; i++)
+    {
+      g2d.drawString (lines[i], LATENCY_HUD_RECT.x + 6, LATENCY_HUD_RECT.y + 18 + i * 15);
+    }
+}
+
 public void setPalettesShown (boolean palettesShown)
 {
   this.palettesShown = palettesShown;
@@ -1364,6 +1833,12 @@ public abstract class CPMode
     // To not define actions for some functions in every case
   }
 
+  // Ends the stroke in progress, also when it can't be painted further
+  public void endStroke ()
+  {
+    // To not define actions for some functions in every case
+  }
+
   // GUI drawing
   public void paint (Graphics2D g2d)
   {
@@ -1502,7 +1977,7 @@ class CPFreehandMode extends CPMode
         Point2D.Float pf = coordToDocument (p);
 
         dragLeft = true;
-        artwork.beginStroke (pf.x, pf.y, getLastPressure ());
+        strokePipeline.beginStroke (this, artwork, pf.x, pf.y, getLastPressure ());
 
         smoothMouse = (Point2D.Float) pf.clone ();
         setUndoRedoEnabled (false);
@@ -1522,7 +1997,7 @@ class CPFreehandMode extends CPMode
 
     if (dragLeft)
       {
-        artwork.continueStroke (smoothMouse.x, smoothMouse.y, getLastPressure ());
+        strokePipeline.continueStroke (smoothMouse.x, smoothMouse.y, getLastPressure ());
       }
 
     Rectangle r = getBrushPreviewOval (true);
@@ -1542,16 +2017,25 @@ class CPFreehandMode extends CPMode
         setCursor (defaultCursor);
       }
 
-    repaint (r.x, r.y, r.width, r.height);
+    frameScheduler.repaint (r);
   }
 
   @Override
   public void cursorReleaseAction ()
   {
-    if (dragLeft && getButton () == MouseEvent.BUTTON1)
+    if (getButton () == MouseEvent.BUTTON1)
+      {
+        endStroke ();
+      }
+  }
+
+  @Override
+  public void endStroke ()
+  {
+    if (dragLeft)
       {
         dragLeft = false;
-        artwork.endStroke ();
+        strokePipeline.endStroke ();
         setUndoRedoEnabled (true);
         setActiveMode (defaultMode); // yield control to the default mode
       }
@@ -2127,6 +2611,11 @@ void setEnabledForTransform (boolean enabled)
           CPCommandId.PalSwatches, CPCommandId.PalTextures, CPCommandId.PalTool, CPCommandId.LayerToggleAll};
   for (CPCommandId item : viewItems)
     controller.getMainGUI ().setEnabledByCmdId (item, true);
+  if (CPLatencyTrace.ENABLED)
+    {
+      controller.getMainGUI ().setEnabledByCmdId (CPCommandId.LatencyHud, true);
+      controller.getMainGUI ().setEnabledByCmdId (CPCommandId.LatencyExport, true);
+    }
 }
 
 public void applyTransform ()
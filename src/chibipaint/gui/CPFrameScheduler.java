@@ -0,0 +1,203 @@
+/*
+ * ChibiPaintMod
+ *     Copyright (c) 2012-2014 Sergey Semushin
+ *     Copyright (c) 2006-2008 Marc Schefer
+ *
+ *     This file is part of ChibiPaintMod (previously ChibiPaint).
+ *
+ *     ChibiPaintMod is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ChibiPaintMod is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ChibiPaintMod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chibipaint.gui;
+
+import chibipaint.util.CPRect;
+import chibipaint.util.CPRegion;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+
+// Collects repaints and render requests coming with input events and issues them at most once per
+// frame, at the rate set by -Dchibipaint.targetFps (60 by default, 0 for as soon as possible).
+// Events are still handled one by one in between, only their display is paced.
+// Requests may come from the stroke and render threads, the timer itself is only used on the event
+// dispatch thread. A frame which wakes the render thread up is painted once it's done rendering, see
+// frameRendered ().
+
+class CPFrameScheduler implements ActionListener
+{
+
+private final JComponent component;
+private volatile CPRenderThread renderThread;
+private final Timer timer;
+private final long frameInterval; // in nanoseconds
+
+// guarded by this
+private final CPRegion dirtyRegion = new CPRegion ();
+private boolean renderRequested;
+private boolean scheduled;
+private long lastFrame;
+
+private final Runnable paintRendered = new Runnable ()
+{
+  @Override
+  public void run ()
+  {
+    synchronized (CPFrameScheduler.this)
+      {
+        // A tick that only paints is no longer needed, the next update
+        // schedules one again (still paced from lastFrame)
+        if (scheduled && !renderRequested)
+          {
+            timer.stop ();
+            scheduled = false;
+          }
+      }
+    paintDirtyRegion ();
+  }
+};
+
+private final Runnable startTimer = new Runnable ()
+{
+  @Override
+  public void run ()
+  {
+    long delay;
+    synchronized (CPFrameScheduler.this)
+      {
+        delay = lastFrame + frameInterval - System.nanoTime ();
+      }
+    timer.setInitialDelay ((int) Math.max (0, delay / 1000000));
+    timer.start ();
+  }
+};
+
+CPFrameScheduler (JComponent component)
+{
+  this.component = component;
+  int fps = getTargetFps ();
+  frameInterval = fps > 0 ? 1000000000L / fps : 0;
+  timer = new Timer (0, this);
+  timer.setRepeats (false);
+}
+
+private static int getTargetFps ()
+{
+  try
+    {
+      return Integer.getInteger ("chibipaint.targetFps", 60);
+    }
+  catch (SecurityException e)
+    {
+      return 60;
+    }
+}
+
+// Set while the canvas is displayable, see CPRenderThread
+void setRenderThread (CPRenderThread renderThread)
+{
+  this.renderThread = renderThread;
+}
+
+synchronized void repaint (Rectangle area)
+{
+  dirtyRegion.union (new CPRect (area));
+  schedule ();
+}
+
+// Wakes the render thread up at the next frame, it adds the slices it renders with repaint ()
+synchronized void render ()
+{
+  renderRequested = true;
+  schedule ();
+}
+
+// Called by the render thread once it's done with a frame woken up by render (), which is painted then
+// rather than at the next one
+void frameRendered ()
+{
+  SwingUtilities.invokeLater (paintRendered);
+}
+
+private void schedule ()
+{
+  if (scheduled)
+    {
+      return;
+    }
+
+  scheduled = true;
+  if (SwingUtilities.isEventDispatchThread ())
+    {
+      startTimer.run ();
+    }
+  else
+    {
+      SwingUtilities.invokeLater (startTimer);
+    }
+}
+
+@Override
+public void actionPerformed (ActionEvent e)
+{
+  boolean render;
+  synchronized (this)
+    {
+      scheduled = false;
+      lastFrame = System.nanoTime ();
+      render = renderRequested;
+      renderRequested = false;
+    }
+
+  CPRenderThread thread = renderThread;
+  if (render && thread != null)
+    {
+      thread.requestFrame (true);
+    }
+  paintDirtyRegion ();
+}
+
+// The rectangles are painted one by one when they cover much less than their bounds, as repaint () would
+// merge them
+private void paintDirtyRegion ()
+{
+  List<CPRect> rects;
+  CPRect bounds;
+  long area;
+  synchronized (this)
+    {
+      if (dirtyRegion.isEmpty ())
+        {
+          return;
+        }
+      rects = dirtyRegion.getRects ();
+      bounds = dirtyRegion.getBounds ();
+      area = dirtyRegion.getArea ();
+      dirtyRegion.makeEmpty ();
+    }
+
+  if (rects.size () == 1 || area * 2 > (long) bounds.getWidth () * bounds.getHeight ())
+    {
+      component.repaint (bounds.left, bounds.top, bounds.getWidth (), bounds.getHeight ());
+      return;
+    }
+
+  for (CPRect rect : rects)
+    {
+      component.paintImmediately (rect.left, rect.top, rect.getWidth (), rect.getHeight ());
+    }
+}
+}
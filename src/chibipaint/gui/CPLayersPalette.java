@@ -47,6 +47,7 @@ private final CPRenameField renameField;
 
 private final JCheckBox cbSampleAllLayers;
 private final JCheckBox cbLockAlpha;
+private final JCheckBox cbDeepColor;
 private boolean layerMovingAndChangingCurrentEnabled = true;
 private final JScrollPane scrollPane;
 
@@ -92,6 +93,10 @@ public CPLayersPalette (CPCommonController controller)
   cbLockAlpha.setSelected (controller.artwork.isLockAlpha ());
   cbLockAlpha.addItemListener (this);
 
+  cbDeepColor = new JCheckBox ("Deep Color");
+  cbDeepColor.setSelected (controller.artwork.isDeepColor ());
+  cbDeepColor.addItemListener (this);
+
   // Layout
 
   // Add/Remove Layer
@@ -128,11 +133,16 @@ public CPLayersPalette (CPCommonController controller)
   hb5.add (cbLockAlpha);
   hb5.add (Box.createHorizontalGlue ());
 
+  Box hb6 = Box.createHorizontalBox ();
+  hb6.add (cbDeepColor);
+  hb6.add (Box.createHorizontalGlue ());
+
   Box vb = Box.createVerticalBox ();
   vb.add (hb2);
   vb.add (hb3);
   vb.add (hb4);
   vb.add (hb5);
+  vb.add (hb6);
 
   setLayout (new BorderLayout ());
   add (scrollPane, BorderLayout.CENTER);
@@ -186,6 +196,8 @@ public void updateArtworkState ()
   CPArtwork artwork = controller.getArtwork ();
   artwork.setSampleAllLayers (cbSampleAllLayers.isSelected ());
   artwork.setLockAlpha (cbLockAlpha.isSelected ());
+  // Unlike the others it belongs to the document
+  cbDeepColor.setSelected (artwork.isDeepColor ());
 }
 
 @Override
@@ -201,6 +213,10 @@ public void itemStateChanged (ItemEvent e)
     {
       artwork.setLockAlpha (e.getStateChange () == ItemEvent.SELECTED);
     }
+  else if (source == cbDeepColor)
+    {
+      artwork.setDeepColor (e.getStateChange () == ItemEvent.SELECTED);
+    }
 }
 
 void showRenameControl (int layerNb)
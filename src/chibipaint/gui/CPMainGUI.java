@@ -25,6 +25,7 @@ import chibipaint.controller.CPCommandId;
 import chibipaint.controller.CPCommandSettings;
 import chibipaint.controller.CPCommonController;
 import chibipaint.file.CPFile;
+import chibipaint.util.CPLatencyTrace;
 
 import javax.swing.*;
 import java.awt.*;
@@ -393,6 +394,12 @@ void createMainMenu ()
   addCheckBoxMenuItem ("Show Grid", KeyEvent.VK_G, CPCommandId.ShowGrid, "Displays a grid over the image", KeyStroke.getKeyStroke (KeyEvent.VK_G, InputEvent.CTRL_MASK), false);
   addMenuItem ("Grid options...", KeyEvent.VK_D, CPCommandId.GridOptions, "Shows the grid options dialog box");
   addSeparator ();
+  if (CPLatencyTrace.ENABLED)
+    {
+      addCheckBoxMenuItem ("Show Latency HUD", KeyEvent.VK_H, CPCommandId.LatencyHud, "Shows percentiles of the time spent by stroke events in each stage", false);
+      addMenuItem ("Export Latency CSV...", KeyEvent.VK_E, CPCommandId.LatencyExport, "Saves percentiles of the time spent by stroke events in each stage");
+      addSeparator ();
+    }
 
   addSubMenu ("Palettes", KeyEvent.VK_P);
   addMenuItem ("Toggle Palettes", KeyEvent.VK_P, CPCommandId.TogglePalettes, "Hides or shows all palettes", KeyStroke.getKeyStroke (KeyEvent.VK_TAB, 0));
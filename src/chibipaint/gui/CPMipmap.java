@@ -0,0 +1,165 @@
+/*
+ * ChibiPaintMod
+ *     Copyright (c) 2012-2014 Sergey Semushin
+ *     Copyright (c) 2006-2008 Marc Schefer
+ *
+ *     This file is part of ChibiPaintMod (previously ChibiPaint).
+ *
+ *     ChibiPaintMod is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ChibiPaintMod is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ChibiPaintMod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chibipaint.gui;
+
+import chibipaint.util.CPRect;
+import chibipaint.util.CPRegion;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+// Downscaled copies of the fusion used for display when zoomed out, level n being 2^n times smaller.
+// Levels are built when first used and then only updated where the fusion has changed
+
+class CPMipmap
+{
+
+static final int MAX_LEVEL = 6;
+
+private final int[] data;
+private final int width, height;
+private final ArrayList<Level> levels = new ArrayList<Level> ();
+
+private static class Level
+{
+  final int width, height;
+  final int[] data;
+  final BufferedImage image;
+  final CPRegion dirtyRegion;
+
+  Level (int width, int height)
+  {
+    this.width = width;
+    this.height = height;
+    data = new int[width * height];
+    image = CPCanvas.createSharedImage (data, width, height);
+    dirtyRegion = new CPRegion (new CPRect (width, height));
+  }
+}
+
+CPMipmap (int[] data, int width, int height)
+{
+  this.data = data;
+  this.width = width;
+  this.height = height;
+}
+
+// Level with the smallest size still displayed at least 1:1 at this zoom
+static int getLevelForZoom (float zoom)
+{
+  int level = 0;
+  while (level < MAX_LEVEL && zoom * (2 << level) <= 1.f)
+    {
+      level++;
+    }
+  return level;
+}
+
+// Area of level covering r from the full size image
+static CPRect scaleRect (CPRect r, int level)
+{
+  int round = (1 << level) - 1;
+  return new CPRect (r.left >> level, r.top >> level, (r.right + round) >> level, (r.bottom + round) >> level);
+}
+
+void invalidate (CPRect r)
+{
+  for (int i = 0; i < levels.size (); i++)
+    {
+      levels.get (i).dirtyRegion.union (scaleRect (r, i + 1));
+    }
+}
+
+// Image of the level which should be at least 1, its pixels are shared with the mipmap
+BufferedImage getImage (int level)
+{
+  while (levels.size () < level)
+    {
+      int w = levels.isEmpty () ? width : levels.get (levels.size () - 1).width;
+      int h = levels.isEmpty () ? height : levels.get (levels.size () - 1).height;
+      levels.add (new Level ((w + 1) / 2, (h + 1) / 2));
+    }
+
+  // Each level is made from the previous one which has to be up to date first
+  for (int i = 0; i < level; i++)
+    {
+      Level l = levels.get (i);
+      if (l.dirtyRegion.isEmpty ())
+        {
+          continue;
+        }
+
+      int[] srcData = i == 0 ? data : levels.get (i - 1).data;
+      int srcW = i == 0 ? width : levels.get (i - 1).width;
+      int srcH = i == 0 ? height : levels.get (i - 1).height;
+      for (CPRect r : l.dirtyRegion.getRects ())
+        {
+          CPRect rect = new CPRect (r);
+          rect.clip (new CPRect (l.width, l.height));
+          downscale (srcData, srcW, srcH, l.data, l.width, rect);
+        }
+      l.dirtyRegion.makeEmpty ();
+    }
+
+  return levels.get (level - 1).image;
+}
+
+// Each pixel of dst gets the average of 2x2 pixels of src, colors being weighted by their alpha
+private static void downscale (int[] src, int srcW, int srcH, int[] dst, int dstW, CPRect rect)
+{
+  for (int j = rect.top; j < rect.bottom; j++)
+    {
+      int off0 = 2 * j * srcW;
+      int off1 = Math.min (2 * j + 1, srcH - 1) * srcW;
+      int dstOff = j * dstW + rect.left;
+      for (int i = rect.left; i < rect.right; i++, dstOff++)
+        {
+          int x0 = 2 * i;
+          int x1 = Math.min (x0 + 1, srcW - 1);
+          int p0 = src[off0 + x0], p1 = src[off0 + x1], p2 = src[off1 + x0], p3 = src[off1 + x1];
+
+          if ((p0 & p1 & p2 & p3) >>> 24 == 0xff)
+            {
+              // Opaque pixels are averaged with two channels at once, sums of 4 still fit in 10 bits
+              int rb = ((p0 & 0xff00ff) + (p1 & 0xff00ff) + (p2 & 0xff00ff) + (p3 & 0xff00ff) + 0x20002) >>> 2;
+              int g = ((p0 & 0xff00) + (p1 & 0xff00) + (p2 & 0xff00) + (p3 & 0xff00) + 0x200) >>> 2;
+              dst[dstOff] = 0xff000000 | rb & 0xff00ff | g & 0xff00;
+              continue;
+            }
+
+          int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+          int alphaSum = a0 + a1 + a2 + a3;
+          if (alphaSum == 0)
+            {
+              dst[dstOff] = 0;
+              continue;
+            }
+
+          int half = alphaSum / 2;
+          int r = ((p0 >>> 16 & 0xff) * a0 + (p1 >>> 16 & 0xff) * a1 + (p2 >>> 16 & 0xff) * a2 + (p3 >>> 16 & 0xff) * a3 + half) / alphaSum;
+          int g = ((p0 >>> 8 & 0xff) * a0 + (p1 >>> 8 & 0xff) * a1 + (p2 >>> 8 & 0xff) * a2 + (p3 >>> 8 & 0xff) * a3 + half) / alphaSum;
+          int b = ((p0 & 0xff) * a0 + (p1 & 0xff) * a1 + (p2 & 0xff) * a2 + (p3 & 0xff) * a3 + half) / alphaSum;
+          dst[dstOff] = (alphaSum + 2) >>> 2 << 24 | r << 16 | g << 8 | b;
+        }
+    }
+}
+}
@@ -0,0 +1,219 @@
+/*
+ * ChibiPaintMod
+ *     Copyright (c) 2012-2014 Sergey Semushin
+ *     Copyright (c) 2006-2008 Marc Schefer
+ *
+ *     This file is part of ChibiPaintMod (previously ChibiPaint).
+ *
+ *     ChibiPaintMod is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ChibiPaintMod is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ChibiPaintMod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chibipaint.gui;
+
+import javax.swing.*;
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.Window;
+import java.awt.event.MouseEvent;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Renders the canvas off the event dispatch thread, paint () then only has to draw the last frame.
+//
+// Synchronization: the artwork is only changed from the event dispatch thread, by events for the window
+// of the canvas or for windows it owns. Those are dispatched holding the render lock of the canvas, through
+// the event queue pushed here, other events aren't. Neither are drags which only queue stroke samples, the
+// stroke thread paints them holding the lock, see CPStrokePipeline. The render thread holds the same lock for each slice
+// it renders, so it never sees the artwork in the middle of a change and events waiting are dispatched
+// between slices. The canvas takes the lock itself where it uses what's shared with the render thread
+// (update regions, fusion, mipmap), as paint () isn't dispatched by such an event.
+//
+// The thread runs while the canvas is displayable, dispose () stops it and pops the event queue.
+
+class CPRenderThread extends Thread
+{
+
+private final ReentrantLock lock;
+private final CPCanvas canvas;
+private final CPLockingEventQueue eventQueue;
+private boolean frameRequested; // guarded by this
+private boolean paintRequested; // guarded by this
+private volatile boolean disposed;
+
+private CPRenderThread (CPCanvas canvas, ReentrantLock lock)
+{
+  super ("ChibiPaintMod render thread");
+  this.canvas = canvas;
+  this.lock = lock;
+  eventQueue = new CPLockingEventQueue (lock, canvas);
+  setDaemon (true);
+}
+
+// Returns null when disabled or if the event queue can't be replaced, the canvas renders in paint () then.
+// lock should be fair, so that events waiting for a slice to be done are dispatched right after it
+static CPRenderThread start (CPCanvas canvas, ReentrantLock lock)
+{
+  CPRenderThread thread = new CPRenderThread (canvas, lock);
+  try
+    {
+      if (!Boolean.parseBoolean (System.getProperty ("chibipaint.renderThread", "true")))
+        {
+          return null;
+        }
+      Toolkit.getDefaultToolkit ().getSystemEventQueue ().push (thread.eventQueue);
+    }
+  catch (SecurityException e)
+    {
+      return null;
+    }
+  thread.start ();
+  return thread;
+}
+
+// To be called from the event dispatch thread. Slices which are being rendered are finished first
+void dispose ()
+{
+  disposed = true;
+  interrupt ();
+  eventQueue.dispose ();
+}
+
+// With paint the frame is painted as soon as it's rendered, otherwise the slices wait for the next one
+synchronized void requestFrame (boolean paint)
+{
+  frameRequested = true;
+  paintRequested |= paint;
+  notify ();
+}
+
+@Override
+public void run ()
+{
+  while (!disposed)
+    {
+      boolean paint;
+      synchronized (this)
+        {
+          while (!frameRequested)
+            {
+              try
+                {
+                  wait ();
+                }
+              catch (InterruptedException e)
+                {
+                  return;
+                }
+            }
+          frameRequested = false;
+          paint = paintRequested;
+          paintRequested = false;
+        }
+
+      boolean more = true;
+      while (more)
+        {
+          lock.lock ();
+          try
+            {
+              if (disposed)
+                {
+                  return;
+                }
+              more = canvas.renderSlice ();
+            }
+          catch (final RuntimeException e)
+            {
+              // Shown like other errors, the canvas renders by itself from then on
+              SwingUtilities.invokeLater (new Runnable ()
+              {
+                @Override
+                public void run ()
+                {
+                  canvas.renderThreadFailed (CPRenderThread.this, e);
+                }
+              });
+              return;
+            }
+          finally
+            {
+              lock.unlock ();
+            }
+        }
+      if (paint)
+        {
+          canvas.frameRendered ();
+        }
+    }
+}
+
+static class CPLockingEventQueue extends EventQueue
+{
+  private final ReentrantLock lock;
+  private final CPCanvas canvas;
+
+  CPLockingEventQueue (ReentrantLock lock, CPCanvas canvas)
+  {
+    this.lock = lock;
+    this.canvas = canvas;
+  }
+
+  void dispose ()
+  {
+    pop ();
+  }
+
+  @Override
+  protected void dispatchEvent (AWTEvent event)
+  {
+    if (!isForCanvasWindow (event) || event.getID () == MouseEvent.MOUSE_DRAGGED && event.getSource () == canvas && canvas.isQueueingStroke ())
+      {
+        super.dispatchEvent (event);
+        return;
+      }
+
+    lock.lock ();
+    try
+      {
+        super.dispatchEvent (event);
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+  // Input, menus and palettes of the canvas, along with the dialogs they open
+  private boolean isForCanvasWindow (AWTEvent event)
+  {
+    Object source = event.getSource ();
+    if (!(source instanceof Component))
+      {
+        return false;
+      }
+
+    Window canvasWindow = SwingUtilities.getWindowAncestor (canvas);
+    Window window = source instanceof Window ? (Window) source : SwingUtilities.getWindowAncestor ((Component) source);
+    for (; window != null; window = window.getOwner ())
+      {
+        if (window == canvasWindow)
+          {
+            return true;
+          }
+      }
+    return false;
+  }
+}
+}
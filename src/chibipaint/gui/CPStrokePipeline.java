@@ -0,0 +1,266 @@
+/*
+ * ChibiPaintMod
+ *     Copyright (c) 2012-2014 Sergey Semushin
+ *     Copyright (c) 2006-2008 Marc Schefer
+ *
+ *     This file is part of ChibiPaintMod (previously ChibiPaint).
+ *
+ *     ChibiPaintMod is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ChibiPaintMod is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ChibiPaintMod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chibipaint.gui;
+
+import chibipaint.engine.CPArtwork;
+import chibipaint.util.CPLatencyTrace;
+
+import javax.swing.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Paints freehand strokes off the event dispatch thread. Drag events only queue their samples, so they
+// are handled as fast as they come and don't get coalesced by AWT while an expensive dab is painted.
+//
+// Drags which only queue samples are dispatched without the render lock of the canvas, see
+// CPCanvas.isQueueingStroke (). The worker paints the samples it finds in batches holding that lock, which
+// keeps them apart from the fusion, paint () and the other events. A batch ends early when one of them is
+// waiting. endStroke () paints the samples left on the event dispatch thread before ending the stroke, so
+// the undo is always finalized after all of them. Events only queue while the render thread runs,
+// otherwise the samples are painted right away.
+// If the worker fails on a sample, the samples left are dropped and the canvas ends the stroke and shows
+// the error, with the count of samples which weren't painted, on the event dispatch thread.
+//
+// The worker runs between start () and dispose (), while the canvas is displayable.
+
+class CPStrokePipeline implements Runnable
+{
+
+private static class Sample
+{
+  final float x, y, pressure;
+  final long received, origin; // for CPLatencyTrace
+
+  Sample (float x, float y, float pressure)
+  {
+    this.x = x;
+    this.y = y;
+    this.pressure = pressure;
+    received = CPLatencyTrace.getEventReceived ();
+    origin = CPLatencyTrace.getEventOrigin ();
+  }
+}
+
+private final ConcurrentLinkedQueue<Sample> samples = new ConcurrentLinkedQueue<Sample> ();
+private final CPCanvas canvas;
+private final ReentrantLock lock;
+private volatile Thread worker;
+private volatile boolean threaded;
+private volatile CPArtwork artwork;
+// Mode which painted the stroke, it's ended through it after a failure
+private CPCanvas.CPMode mode;
+private volatile boolean failed;
+// Samples of the failed stroke which weren't painted
+private final AtomicInteger dropped = new AtomicInteger ();
+
+CPStrokePipeline (CPCanvas canvas)
+{
+  this.canvas = canvas;
+  lock = canvas.getRenderLock ();
+}
+
+// These are called from the event dispatch thread
+
+// Does nothing when disabled, the samples are painted right away then
+void start ()
+{
+  try
+    {
+      if (worker != null || !Boolean.parseBoolean (System.getProperty ("chibipaint.strokeThread", "true")))
+        {
+          return;
+        }
+    }
+  catch (SecurityException e)
+    {
+      return;
+    }
+
+  worker = new Thread (this, "ChibiPaintMod stroke thread");
+  worker.setDaemon (true);
+  worker.start ();
+}
+
+// The sample being painted is finished first, the ones left are painted by the next events or endStroke ()
+void dispose ()
+{
+  Thread thread = worker;
+  worker = null;
+  if (thread != null)
+    {
+      LockSupport.unpark (thread);
+    }
+}
+
+// Set while the render thread runs
+void setThreaded (boolean threaded)
+{
+  this.threaded = threaded;
+}
+
+// Whether drags of the current stroke only queue their samples
+boolean isQueueing ()
+{
+  return artwork != null && worker != null && threaded;
+}
+
+void beginStroke (CPCanvas.CPMode modeArg, CPArtwork artworkArg, float x, float y, float pressure)
+{
+  failed = false;
+  dropped.set (0);
+  artworkArg.beginStroke (x, y, pressure);
+  mode = modeArg;
+  artwork = artworkArg;
+}
+
+void continueStroke (float x, float y, float pressure)
+{
+  if (failed)
+    {
+      dropped.incrementAndGet ();
+      return;
+    }
+
+  samples.offer (new Sample (x, y, pressure));
+  if (isQueueing ())
+    {
+      LockSupport.unpark (worker);
+    }
+  else
+    {
+      // After these samples, once the worker is gone
+      paintQueued ();
+    }
+}
+
+boolean hasFailed ()
+{
+  return failed;
+}
+
+int getDroppedSamples ()
+{
+  return dropped.get ();
+}
+
+CPCanvas.CPMode getMode ()
+{
+  return mode;
+}
+
+// Also called after a failure, from an event which doesn't hold the lock. Does nothing once the stroke is over
+void endStroke ()
+{
+  lock.lock ();
+  try
+    {
+      if (artwork == null)
+        {
+          return;
+        }
+
+      paintQueued ();
+      samples.clear ();
+      artwork.endStroke ();
+      artwork = null;
+      mode = null;
+    }
+  finally
+    {
+      lock.unlock ();
+    }
+}
+
+private void paintQueued ()
+{
+  lock.lock ();
+  try
+    {
+      Sample sample;
+      while (!failed && (sample = samples.poll ()) != null)
+        {
+          paint (sample);
+        }
+    }
+  finally
+    {
+      lock.unlock ();
+    }
+}
+
+private void paint (Sample sample)
+{
+  long traceStart = CPLatencyTrace.eventStarted ();
+  artwork.continueStroke (sample.x, sample.y, sample.pressure);
+  CPLatencyTrace.strokeContinued (sample.received, sample.origin, traceStart);
+}
+
+@Override
+public void run ()
+{
+  Thread thread = Thread.currentThread ();
+  while (worker == thread)
+    {
+      if (samples.isEmpty ())
+        {
+          LockSupport.park (this);
+          continue;
+        }
+
+      // Polled with the lock held, so that endStroke () can't miss a sample
+      lock.lock ();
+      try
+        {
+          Sample sample;
+          do
+            {
+              sample = samples.poll ();
+              if (sample != null)
+                {
+                  paint (sample);
+                }
+            }
+          while (sample != null && !lock.hasQueuedThreads ());
+        }
+      catch (final RuntimeException e)
+        {
+          dropped.set (samples.size () + 1);
+          failed = true;
+          samples.clear ();
+          SwingUtilities.invokeLater (new Runnable ()
+          {
+            @Override
+            public void run ()
+            {
+              canvas.strokeFailed (e);
+            }
+          });
+        }
+      finally
+        {
+          lock.unlock ();
+        }
+    }
+}
+}
@@ -45,6 +45,20 @@ public CPColorFloat (int color)
   b = (color & 0xff) / 255f;
 }
 
+public void setColor (int color)
+{
+  r = (color >>> 16 & 0xff) / 255f;
+  g = (color >>> 8 & 0xff) / 255f;
+  b = (color & 0xff) / 255f;
+}
+
+public void setColor (CPColorFloat color)
+{
+  r = color.r;
+  g = color.g;
+  b = color.b;
+}
+
 public int toInt ()
 {
   return Math.max (0, Math.min (255, (int) (r * 255f))) << 16 | Math.max (0, Math.min (255, (int) (g * 255f))) << 8
@@ -0,0 +1,306 @@
+/*
+ * ChibiPaintMod
+ *     Copyright (c) 2012-2014 Sergey Semushin
+ *     Copyright (c) 2006-2008 Marc Schefer
+ *
+ *     This file is part of ChibiPaintMod (previously ChibiPaint).
+ *
+ *     ChibiPaintMod is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ChibiPaintMod is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ChibiPaintMod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chibipaint.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Times of the stages a drag event goes through until its pixels are on screen, enabled with
+// -Dchibipaint.latencyTrace=true. Per event stages are summed over the event, per frame ones over the frame.
+// Only the last SAMPLE_COUNT samples of each stage are kept for the percentiles.
+
+public class CPLatencyTrace
+{
+
+public static final boolean ENABLED = getEnabled ();
+
+public enum Stage
+{
+  DISPATCH ("dispatch"), // From the event creation to the start of its handling, in milliseconds precision
+  QUEUE ("stroke queue"), // Waiting for the stroke thread
+  CONTINUE_STROKE ("continueStroke"),
+  PAINT_DAB ("paintDab"), // Including mergeOpacityBuffer when the tool merges on each dab
+  MERGE_OPACITY ("mergeOpacityBuffer"), // Per event while painting, per frame when the fusion merges the stroke
+  FUSION ("fusionLayers"),
+  UPLOAD ("newPixels"), // Mipmap and upload of the changed pixels to the display image
+  DRAW ("drawImage"),
+  TOTAL ("input to photon");
+
+  final String title;
+
+  Stage (String title)
+  {
+    this.title = title;
+  }
+
+  public String getTitle ()
+  {
+    return title;
+  }
+}
+
+private static final int SAMPLE_COUNT = 4096;
+private static final long[][] samples = new long[Stage.values ().length][SAMPLE_COUNT];
+private static final int[] sampleCount = new int[Stage.values ().length];
+
+// Sums of the thread for the stroke sample it's painting, see eventStarted
+private static class ThreadTrace
+{
+  final long[] sums = new long[Stage.values ().length];
+  boolean inEvent;
+}
+
+private static final ThreadLocal<ThreadTrace> threadTrace = new ThreadLocal<ThreadTrace> ()
+{
+  @Override
+  protected ThreadTrace initialValue ()
+  {
+    return new ThreadTrace ();
+  }
+};
+
+// Sums of the work done on any thread for the frame in flight, the one drawn next. The render lock keeps
+// slices from being fused while a frame is drawn, so the work of a frame is never split with the next one
+private static final long[] frameSums = new long[Stage.values ().length];
+// Times the last event was received and created at on the nanoTime scale
+private static long eventReceived;
+private static long eventOrigin;
+
+// Events whose pixels are not on screen yet, as times they were created at on the nanoTime scale.
+// Kept in a ring, when the changes stay off screen for long the oldest events are dropped
+private static final long[] pendingEvents = new long[SAMPLE_COUNT];
+private static int pendingStart;
+private static int pendingCount;
+
+private static boolean getEnabled ()
+{
+  try
+    {
+      return Boolean.getBoolean ("chibipaint.latencyTrace");
+    }
+  catch (SecurityException e)
+    {
+      return false;
+    }
+}
+
+public static long start ()
+{
+  return ENABLED ? System.nanoTime () : 0;
+}
+
+// Adds the time since start to the sum of the stage for the event the thread is painting,
+// or for the frame in flight when it isn't painting one
+public static void add (Stage stage, long start)
+{
+  if (!ENABLED)
+    {
+      return;
+    }
+
+  long time = System.nanoTime () - start;
+  ThreadTrace trace = threadTrace.get ();
+  if (trace.inEvent)
+    {
+      trace.sums[stage.ordinal ()] += time;
+    }
+  else
+    {
+      synchronized (CPLatencyTrace.class)
+        {
+          frameSums[stage.ordinal ()] += time;
+        }
+    }
+}
+
+// when is the time of the event as returned by InputEvent.getWhen ()
+public static synchronized void eventReceived (long when)
+{
+  if (!ENABLED)
+    {
+      return;
+    }
+
+  eventReceived = System.nanoTime ();
+  eventOrigin = eventReceived - Math.max (0, System.currentTimeMillis () - when) * 1000000;
+}
+
+public static synchronized long getEventReceived ()
+{
+  return eventReceived;
+}
+
+public static synchronized long getEventOrigin ()
+{
+  return eventOrigin;
+}
+
+// Called before the stroke is continued to an event, returns the time it starts at
+public static long eventStarted ()
+{
+  if (!ENABLED)
+    {
+      return 0;
+    }
+
+  ThreadTrace trace = threadTrace.get ();
+  Arrays.fill (trace.sums, 0);
+  trace.inEvent = true;
+  return System.nanoTime ();
+}
+
+// Called on the same thread once the stroke has been continued to an event, which then waits to be displayed.
+// received and origin are the times of the event, start the one returned by eventStarted
+public static void strokeContinued (long received, long origin, long start)
+{
+  if (!ENABLED)
+    {
+      return;
+    }
+
+  long now = System.nanoTime ();
+  ThreadTrace trace = threadTrace.get ();
+  trace.inEvent = false;
+  if (received == 0)
+    {
+      return;
+    }
+
+  synchronized (CPLatencyTrace.class)
+    {
+      record (Stage.DISPATCH, received - origin);
+      record (Stage.QUEUE, start - received);
+      record (Stage.CONTINUE_STROKE, now - start);
+      record (Stage.PAINT_DAB, trace.sums[Stage.PAINT_DAB.ordinal ()]);
+      record (Stage.MERGE_OPACITY, trace.sums[Stage.MERGE_OPACITY.ordinal ()]);
+
+      if (pendingCount == SAMPLE_COUNT)
+        {
+          pendingStart = (pendingStart + 1) % SAMPLE_COUNT;
+          pendingCount--;
+        }
+      pendingEvents[(pendingStart + pendingCount) % SAMPLE_COUNT] = origin;
+      pendingCount++;
+    }
+}
+
+// Called at the end of a frame, complete tells whether all of the changes on screen are in it
+public static synchronized void frameDrawn (boolean complete)
+{
+  if (!ENABLED)
+    {
+      return;
+    }
+
+  for (Stage stage : new Stage[]{Stage.MERGE_OPACITY, Stage.FUSION, Stage.UPLOAD, Stage.DRAW})
+    {
+      if (frameSums[stage.ordinal ()] > 0)
+        {
+          record (stage, frameSums[stage.ordinal ()]);
+          frameSums[stage.ordinal ()] = 0;
+        }
+    }
+
+  if (complete)
+    {
+      long now = System.nanoTime ();
+      for (int i = 0; i < pendingCount; i++)
+        {
+          record (Stage.TOTAL, now - pendingEvents[(pendingStart + i) % SAMPLE_COUNT]);
+        }
+      pendingStart = 0;
+      pendingCount = 0;
+    }
+}
+
+private static void record (Stage stage, long nanos)
+{
+  int i = stage.ordinal ();
+  samples[i][sampleCount[i] % SAMPLE_COUNT] = nanos;
+  sampleCount[i]++;
+}
+
+public static synchronized void reset ()
+{
+  Arrays.fill (sampleCount, 0);
+  Arrays.fill (frameSums, 0);
+  pendingStart = 0;
+  pendingCount = 0;
+  eventReceived = 0;
+}
+
+public static synchronized int getSampleCount (Stage stage)
+{
+  return Math.min (sampleCount[stage.ordinal ()], SAMPLE_COUNT);
+}
+
+// Percentiles of the kept samples in milliseconds, by nearest rank, NaN without samples
+public static synchronized double[] getPercentiles (Stage stage, double... percentiles)
+{
+  int count = getSampleCount (stage);
+  long[] sorted = Arrays.copyOf (samples[stage.ordinal ()], count);
+  Arrays.sort (sorted);
+  double[] result = new double[percentiles.length];
+  for (int i = 0; i < percentiles.length; i++)
+    {
+      int rank = (int) Math.ceil (percentiles[i] / 100. * count);
+      result[i] = count == 0 ? Double.NaN : sorted[Math.max (0, rank - 1)] / 1e6;
+    }
+  return result;
+}
+
+// One line per stage, in the order of the stages
+public static String[] getSummary ()
+{
+  Stage[] stages = Stage.values ();
+  String[] lines = new String[stages.length];
+  for (int i = 0; i < stages.length; i++)
+    {
+      double[] p = getPercentiles (stages[i], 50, 95, 99);
+      lines[i] = String.format (Locale.US, "%-20s p50 %7.2f  p95 %7.2f  p99 %7.2f ms  (%d)", stages[i].getTitle (), p[0], p[1], p[2],
+                                getSampleCount (stages[i]));
+    }
+  return lines;
+}
+
+public static void exportCsv (File file) throws IOException
+{
+  PrintWriter writer = new PrintWriter (new FileWriter (file));
+  try
+    {
+      writer.println ("stage,samples,p50_ms,p95_ms,p99_ms,max_ms");
+      for (Stage stage : Stage.values ())
+        {
+          double[] p = getPercentiles (stage, 50, 95, 99, 100);
+          writer.println (String.format (Locale.US, "%s,%d,%.3f,%.3f,%.3f,%.3f", stage.getTitle (), getSampleCount (stage), p[0], p[1], p[2], p[3]));
+        }
+    }
+  finally
+    {
+      writer.close ();
+    }
+}
+}
@@ -67,6 +67,15 @@ public CPRect (Rectangle rectangle)
   this.bottom = (int) (Math.ceil (rectangle.getMaxY ()));
 }
 
+// Same as new CPRect (width, height)
+public void setSize (int width, int height)
+{
+  left = 0;
+  top = 0;
+  right = width;
+  bottom = height;
+}
+
 public void makeEmpty ()
 {
   left = 0;
@@ -204,12 +213,17 @@ public boolean isEmpty ()
   return right <= left || bottom <= top;
 }
 
-void set (CPRect r)
+public void set (CPRect r)
+{
+  set (r.left, r.top, r.right, r.bottom);
+}
+
+public void set (int left, int top, int right, int bottom)
 {
-  left = r.left;
-  top = r.top;
-  right = r.right;
-  bottom = r.bottom;
+  this.left = left;
+  this.top = top;
+  this.right = right;
+  this.bottom = bottom;
 }
 
 @Override
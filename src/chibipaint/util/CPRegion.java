@@ -0,0 +1,263 @@
+/*
+ * ChibiPaintMod
+ *     Copyright (c) 2012-2014 Sergey Semushin
+ *     Copyright (c) 2006-2008 Marc Schefer
+ *
+ *     This file is part of ChibiPaintMod (previously ChibiPaint).
+ *
+ *     ChibiPaintMod is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ChibiPaintMod is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ChibiPaintMod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chibipaint.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Set of disjoint rectangles, used to track dirty areas without covering
+// everything in between like a single union rectangle would.
+// Falls back to the bounding rectangle when it gets too fragmented
+
+public class CPRegion
+{
+
+private static final int MAX_RECTS = 32;
+
+private final ArrayList<CPRect> rects = new ArrayList<CPRect> ();
+private final CPRect bounds = new CPRect ();
+
+// Rectangles dropped from the region and lists reused by union, so that a region which is emptied
+// and filled again on each dab doesn't allocate
+private final ArrayList<CPRect> spare = new ArrayList<CPRect> ();
+private ArrayList<CPRect> pieces = new ArrayList<CPRect> ();
+private ArrayList<CPRect> remaining = new ArrayList<CPRect> ();
+
+public CPRegion ()
+{
+}
+
+public CPRegion (CPRect r)
+{
+  union (r);
+}
+
+public void makeEmpty ()
+{
+  for (int i = 0; i < rects.size (); i++)
+    {
+      recycle (rects.get (i));
+    }
+  rects.clear ();
+  bounds.makeEmpty ();
+}
+
+public boolean isEmpty ()
+{
+  return rects.isEmpty ();
+}
+
+public void union (CPRect r)
+{
+  if (r.isEmpty ())
+    {
+      return;
+    }
+
+  for (int i = 0; i < rects.size (); i++)
+    {
+      if (r.isInside (rects.get (i)))
+        {
+          return;
+        }
+    }
+
+  for (int i = rects.size () - 1; i >= 0; i--)
+    {
+      if (rects.get (i).isInside (r))
+        {
+          recycle (rects.remove (i));
+        }
+    }
+
+  // Only the parts not covered yet are added, so rectangles stay disjoint
+  pieces.clear ();
+  pieces.add (obtain (r.left, r.top, r.right, r.bottom));
+  for (int i = 0; i < rects.size (); i++)
+    {
+      CPRect rect = rects.get (i);
+      remaining.clear ();
+      for (int j = 0; j < pieces.size (); j++)
+        {
+          subtract (pieces.get (j), rect, remaining);
+        }
+      ArrayList<CPRect> swap = pieces;
+      pieces = remaining;
+      remaining = swap;
+    }
+
+  for (int i = 0; i < pieces.size (); i++)
+    {
+      rects.add (pieces.get (i));
+    }
+  pieces.clear ();
+  remaining.clear ();
+  bounds.union (r);
+
+  if (rects.size () > MAX_RECTS)
+    {
+      for (int i = 0; i < rects.size (); i++)
+        {
+          recycle (rects.get (i));
+        }
+      rects.clear ();
+      rects.add (obtain (bounds.left, bounds.top, bounds.right, bounds.bottom));
+    }
+}
+
+public void union (CPRegion region)
+{
+  for (int i = 0; i < region.rects.size (); i++)
+    {
+      union (region.rects.get (i));
+    }
+}
+
+// Parts of the region inside r
+public CPRegion getIntersection (CPRect r)
+{
+  CPRegion result = new CPRegion ();
+  for (CPRect rect : rects)
+    {
+      CPRect clipped = new CPRect (rect);
+      clipped.clip (r);
+      if (!clipped.isEmpty ())
+        {
+          result.rects.add (clipped);
+          result.bounds.union (clipped);
+        }
+    }
+  return result;
+}
+
+// Rectangles are split rather than merged here, so that nothing outside of the region is added back
+public void subtract (CPRect r)
+{
+  if (r.isEmpty ())
+    {
+      return;
+    }
+
+  remaining.clear ();
+  for (int i = 0; i < rects.size (); i++)
+    {
+      subtract (rects.get (i), r, remaining);
+    }
+  rects.clear ();
+  bounds.makeEmpty ();
+  for (int i = 0; i < remaining.size (); i++)
+    {
+      rects.add (remaining.get (i));
+      bounds.union (remaining.get (i));
+    }
+  remaining.clear ();
+}
+
+// Adds parts of r which are outside of cut to result, r itself is recycled if it is split
+private void subtract (CPRect r, CPRect cut, List<CPRect> result)
+{
+  if (cut.left >= r.right || cut.right <= r.left || cut.top >= r.bottom || cut.bottom <= r.top)
+    {
+      result.add (r);
+      return;
+    }
+
+  if (cut.top > r.top)
+    {
+      result.add (obtain (r.left, r.top, r.right, cut.top));
+    }
+  if (cut.bottom < r.bottom)
+    {
+      result.add (obtain (r.left, cut.bottom, r.right, r.bottom));
+    }
+
+  int top = Math.max (r.top, cut.top);
+  int bottom = Math.min (r.bottom, cut.bottom);
+  if (cut.left > r.left)
+    {
+      result.add (obtain (r.left, top, cut.left, bottom));
+    }
+  if (cut.right < r.right)
+    {
+      result.add (obtain (cut.right, top, r.right, bottom));
+    }
+  recycle (r);
+}
+
+private CPRect obtain (int left, int top, int right, int bottom)
+{
+  if (spare.isEmpty ())
+    {
+      return new CPRect (left, top, right, bottom);
+    }
+
+  CPRect rect = spare.remove (spare.size () - 1);
+  rect.set (left, top, right, bottom);
+  return rect;
+}
+
+private void recycle (CPRect rect)
+{
+  if (spare.size () < MAX_RECTS * 4)
+    {
+      spare.add (rect);
+    }
+}
+
+// Copies of the rectangles of the region, they stay valid when the region changes
+public List<CPRect> getRects ()
+{
+  ArrayList<CPRect> result = new ArrayList<CPRect> (rects.size ());
+  for (int i = 0; i < rects.size (); i++)
+    {
+      result.add (new CPRect (rects.get (i)));
+    }
+  return result;
+}
+
+public int getRectCount ()
+{
+  return rects.size ();
+}
+
+// Copies the i-th rectangle to r, for loops that shouldn't allocate. The rectangles of the region itself are
+// recycled by later changes, so they are never handed out
+public void getRect (int i, CPRect r)
+{
+  r.set (rects.get (i));
+}
+
+public CPRect getBounds ()
+{
+  return new CPRect (bounds);
+}
+
+public long getArea ()
+{
+  long area = 0;
+  for (int i = 0; i < rects.size (); i++)
+    {
+      area += (long) rects.get (i).getWidth () * rects.get (i).getHeight ();
+    }
+  return area;
+}
+}
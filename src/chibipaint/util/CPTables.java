@@ -21,32 +21,41 @@
 
 package chibipaint.util;
 
+// Integer divisions used by the blending code. These used to be lookup tables
+// (65026 * 256 ints for divide, ~66 MB), they are now done by multiplying with
+// a fixed-point reciprocal, which gives exactly the same results for the same ranges.
+
 public class CPTables
 {
-private static CPTables ref;
-public final int[] divide;
-public final int[] divideBy255;
 
-public static CPTables getRef ()
+private CPTables ()
 {
-  return ref;
 }
 
-public static void init ()
+// i / 255 for 0 <= i < 65026 * 2 (actually for any non-negative int)
+public static int divideBy255 (int i)
 {
-  ref = new CPTables ();
+  return (int) ((i * 0x80808081L) >>> 39);
 }
 
+// i / j for 0 <= i < 65026, 0 < j < 256
+public static int divide (int i, int j)
+{
+  return (int) ((i * Reciprocals.TABLE[j]) >>> Reciprocals.SHIFT);
+}
 
-private CPTables ()
+// Initialized on first use only
+private static class Reciprocals
 {
-  divide = new int[65026 * 256];
-  for (int i = 0; i < 65026; i++)
-    for (int j = 1; j < 256; j++)
-      divide[i * 256 + j] = i / j;
-
-  divideBy255 = new int[65026 * 2];
-  for (int i = 0; i < 65026 * 2; i++)
-    divideBy255[i] = i / 255;
+  static final int SHIFT = 32;
+  static final long[] TABLE = new long[256];
+
+  static
+    {
+      for (int j = 1; j < 256; j++)
+        {
+          TABLE[j] = ((1L << SHIFT) + j - 1) / j;
+        }
+    }
 }
 }
@@ -34,22 +34,32 @@ public static void connectToCanvas (final CPCanvas c)
 {
   try
     {
+      // Changes the artwork like the canvas input events, so it holds the render lock the same way,
+      // except for drags which only queue stroke samples
       TabletListener eventHandler = new TabletAdapter ()
       {
         @Override
         public void cursorMoved (TabletEvent e)
         {
-          c.setCursorX (e.getX ());
-          c.setCursorY (e.getY ());
-          TabletDevice device = e.getDevice ();
-          c.setLastPressure ((device == null || device.getPressureSupport () != TabletDevice.Support.YES) ? 1.0f : e.getPressure ());
+          c.getRenderLock ().lock ();
+          try
+            {
+              c.setCursorX (e.getX ());
+              c.setCursorY (e.getY ());
+              TabletDevice device = e.getDevice ();
+              c.setLastPressure ((device == null || device.getPressureSupport () != TabletDevice.Support.YES) ? 1.0f : e.getPressure ());
+
+              if (!c.isDontStealFocus ())
+                {
+                  c.requestFocusInWindow ();
+                }
 
-          if (!c.isDontStealFocus ())
+              c.getActiveMode ().cursorMoveAction ();
+            }
+          finally
             {
-              c.requestFocusInWindow ();
+              c.getRenderLock ().unlock ();
             }
-
-          c.getActiveMode ().cursorMoveAction ();
         }
 
         @Override
@@ -60,34 +70,66 @@ public static void connectToCanvas (final CPCanvas c)
         @Override
         public void cursorPressed (TabletEvent e)
         {
-          if (!c.isCursorIn ())
-            return;
-          c.setModifiers (e.getModifiersEx ());
-          c.setCursorX (e.getX ());
-          c.setCursorY (e.getY ());
-          c.setButton (e.getButton ());
-          c.requestFocusInWindow ();
-          c.getActiveMode ().cursorPressAction ();
+          c.getRenderLock ().lock ();
+          try
+            {
+              if (!c.isCursorIn ())
+                return;
+              c.setModifiers (e.getModifiersEx ());
+              c.setCursorX (e.getX ());
+              c.setCursorY (e.getY ());
+              c.setButton (e.getButton ());
+              c.requestFocusInWindow ();
+              c.getActiveMode ().cursorPressAction ();
+            }
+          finally
+            {
+              c.getRenderLock ().unlock ();
+            }
         }
 
         @Override
         public void cursorDragged (TabletEvent e)
         {
-          c.setCursorX (e.getX ());
-          c.setCursorY (e.getY ());
-          TabletDevice device = e.getDevice ();
-          c.setLastPressure ((device == null || device.getPressureSupport () != TabletDevice.Support.YES) ? 1.0f : e.getPressure ());
+          boolean locked = !c.isQueueingStroke ();
+          if (locked)
+            {
+              c.getRenderLock ().lock ();
+            }
+          try
+            {
+              CPLatencyTrace.eventReceived (e.getWhen ());
+              c.setCursorX (e.getX ());
+              c.setCursorY (e.getY ());
+              TabletDevice device = e.getDevice ();
+              c.setLastPressure ((device == null || device.getPressureSupport () != TabletDevice.Support.YES) ? 1.0f : e.getPressure ());
 
 
-          c.getActiveMode ().cursorDragAction ();
+              c.getActiveMode ().cursorDragAction ();
+            }
+          finally
+            {
+              if (locked)
+                {
+                  c.getRenderLock ().unlock ();
+                }
+            }
         }
 
         @Override
         public void cursorReleased (TabletEvent e)
         {
-          c.setModifiers (e.getModifiersEx ());
-          c.setButton (e.getButton ());
-          c.getActiveMode ().cursorReleaseAction ();
+          c.getRenderLock ().lock ();
+          try
+            {
+              c.setModifiers (e.getModifiersEx ());
+              c.setButton (e.getButton ());
+              c.getActiveMode ().cursorReleaseAction ();
+            }
+          finally
+            {
+              c.getRenderLock ().unlock ();
+            }
         }
       };
 
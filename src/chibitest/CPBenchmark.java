@@ -34,6 +34,16 @@ class CPBenchmark {
 			CPBenchmark.blendingBenchmark(args);
 		} else if (args.length > 0 && args[0].equals("dabs")) {
 			CPBenchmark.brushDabsBenchmark(args);
+		} else if (args.length > 0 && args[0].equals("tables")) {
+			CPBenchmark.divisionTablesBenchmark(args);
+		} else if (args.length > 0 && args[0].equals("packed")) {
+			CPBenchmark.packedBlendingBenchmark(args);
+		} else if (args.length > 0 && args[0].equals("deep")) {
+			CPBenchmark.deepColorBenchmark(args);
+		} else if (args.length > 0 && args[0].equals("pendown")) {
+			CPBenchmark.penDownBenchmark(args);
+		} else if (args.length > 0 && args[0].equals("gc")) {
+			CPBenchmark.dabAllocationBenchmark(args);
 		} else {
 			System.out.println("no valid benchmark selected");
 		}
@@ -213,6 +223,373 @@ class CPBenchmark {
 		}
 	}
 
+	// Compares the old division lookup tables with the arithmetic versions from CPTables
+	private static void divisionTablesBenchmark (String[] args) {
+		int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 20;
+
+		System.out.println("Benchmarking division tables, iterations=" + iterations + "\n\n");
+
+		System.out.println("Startup time");
+		System.out.println("============");
+
+		long lastTime = System.nanoTime(), newTime;
+		int[] divide = new int[65026 * 256];
+		for (int i = 0; i < 65026; i++)
+			for (int j = 1; j < 256; j++)
+				divide[i * 256 + j] = i / j;
+
+		int[] divideBy255 = new int[65026 * 2];
+		for (int i = 0; i < 65026 * 2; i++)
+			divideBy255[i] = i / 255;
+		newTime = System.nanoTime();
+		System.out.println("Lookup tables: " + String.valueOf((newTime - lastTime) / 1000000.) + "ms, "
+				+ String.valueOf((divide.length + divideBy255.length) * 4 / (1024 * 1024)) + "MB");
+
+		lastTime = System.nanoTime();
+		CPTables.divide(0, 1);
+		newTime = System.nanoTime();
+		System.out.println("Arithmetic: " + String.valueOf((newTime - lastTime) / 1000000.) + "ms\n");
+
+		System.out.println("Checking results");
+		System.out.println("================");
+
+		int mismatches = 0;
+		for (int i = 0; i < 65026; i++)
+			for (int j = 1; j < 256; j++)
+				if (CPTables.divide(i, j) != divide[i * 256 + j])
+					mismatches++;
+		for (int i = 0; i < 65026 * 2; i++)
+			if (CPTables.divideBy255(i) != divideBy255[i])
+				mismatches++;
+		System.out.println("Mismatches: " + mismatches + "\n");
+
+		// Same access pattern as the normal blending mode: realAlpha = a1 * 255 / newAlpha,
+		// then a division by 255 per channel
+		int count = 1 << 20;
+		int[] alpha1 = new int[count], alpha2 = new int[count], colors = new int[count];
+		Random rnd = new Random(0);
+		for (int i = 0; i < count; i++) {
+			alpha1[i] = rnd.nextInt(256);
+			alpha2[i] = 1 + rnd.nextInt(255);
+			colors[i] = rnd.nextInt(256);
+		}
+
+		System.out.println("Lookup tables");
+		System.out.println("=============");
+
+		int sum = 0;
+		lastTime = System.nanoTime();
+		for (int k = 0; k < iterations; k++) {
+			for (int i = 0; i < count; i++) {
+				int newAlpha = alpha1[i] + alpha2[i] - divideBy255[alpha1[i] * alpha2[i]];
+				int realAlpha = divide[alpha1[i] * 65280 + newAlpha];
+				sum += divideBy255[colors[i] * realAlpha + colors[count - 1 - i] * (255 - realAlpha)];
+			}
+		}
+		newTime = System.nanoTime();
+		System.out.println("Result time: " + String.valueOf((newTime - lastTime) / ((double) iterations * count))
+				+ "ns per pixel\n");
+
+		System.out.println("Arithmetic");
+		System.out.println("==========");
+
+		lastTime = System.nanoTime();
+		for (int k = 0; k < iterations; k++) {
+			for (int i = 0; i < count; i++) {
+				int newAlpha = alpha1[i] + alpha2[i] - CPTables.divideBy255(alpha1[i] * alpha2[i]);
+				int realAlpha = CPTables.divide(alpha1[i] * 255, newAlpha);
+				sum -= CPTables.divideBy255(colors[i] * realAlpha + colors[count - 1 - i] * (255 - realAlpha));
+			}
+		}
+		newTime = System.nanoTime();
+		System.out.println("Result time: " + String.valueOf((newTime - lastTime) / ((double) iterations * count))
+				+ "ns per pixel\n");
+
+		// Both loops compute the same values, so anything else than 0 is a mismatch
+		System.out.println("Checksum: " + sum);
+	}
+
+	// Checks that every blend mode gives the same result with packed kernels on and off,
+	// then compares the speed of the modes which have packed kernels
+	private static void packedBlendingBenchmark (String[] args) {
+		int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 100;
+		int testW = args.length > 2 ? Integer.valueOf(args[2]) : 512;
+		int testH = testW;
+		CPLayer l1 = new CPLayer(testW, testH), l2 = new CPLayer(testW, testH);
+		CPLayer scalar = new CPLayer(testW, testH), packed = new CPLayer(testW, testH);
+		int[] layerAlphas = { 100, 57, 1 };
+		boolean oldPacked = CPLayer.isPackedBlending();
+
+		System.out.println("Benchmarking packed blending " + testW + "x" + testH + ", iterations=" + iterations + "\n\n");
+
+		System.out.println("Checking results");
+		System.out.println("================");
+
+		int mismatches = 0;
+		prepareLayers(l1, l2, 0);
+		for (int mode = CPLayer.LM_NORMAL; mode <= CPLayer.LM_PINLIGHT; mode++) {
+			l1.setBlendMode(mode);
+			for (int layerAlpha : layerAlphas) {
+				l1.setAlpha(layerAlpha);
+				for (int fa = 0; fa < 2; fa++) {
+					scalar.copyFrom(l2);
+					packed.copyFrom(l2);
+					CPLayer.setPackedBlending(false);
+					packedBlendingFuse(l1, scalar, fa == 1);
+					CPLayer.setPackedBlending(true);
+					packedBlendingFuse(l1, packed, fa == 1);
+					if (!Arrays.equals(scalar.getData(), packed.getData())) {
+						System.out.println("Mismatch: mode " + mode + ", alpha " + layerAlpha + ", full alpha "
+								+ (fa == 1 ? "on" : "off"));
+						mismatches++;
+					}
+				}
+			}
+		}
+		l1.setAlpha(100);
+		System.out.println("Mismatches: " + mismatches + "\n");
+
+		// Every pair of channel values for every layer alpha, over a few target alphas
+		System.out.println("Checking all channel pairs");
+		System.out.println("==========================");
+
+		int[] packedModes = { CPLayer.LM_NORMAL, CPLayer.LM_ADD, CPLayer.LM_SUBTRACT, CPLayer.LM_LIGHTEN,
+				CPLayer.LM_DARKEN };
+		int[] targetAlphas = { 0, 1, 128, 254, 255 };
+		CPLayer pairs1 = new CPLayer(256, 256), pairs2 = new CPLayer(256, 256);
+		CPLayer pairsScalar = new CPLayer(256, 256), pairsPacked = new CPLayer(256, 256);
+		mismatches = 0;
+		for (int mode : packedModes) {
+			pairs1.setBlendMode(mode);
+			for (int alpha1 = 0; alpha1 < 256; alpha1++) {
+				fillChannelPairs(pairs1, alpha1, false);
+				for (int alpha2 : targetAlphas) {
+					fillChannelPairs(pairs2, alpha2, true);
+					for (int fa = 0; fa < 2; fa++) {
+						pairsScalar.copyFrom(pairs2);
+						pairsPacked.copyFrom(pairs2);
+						CPLayer.setPackedBlending(false);
+						packedBlendingFuse(pairs1, pairsScalar, fa == 1);
+						CPLayer.setPackedBlending(true);
+						packedBlendingFuse(pairs1, pairsPacked, fa == 1);
+						if (!Arrays.equals(pairsScalar.getData(), pairsPacked.getData())) {
+							System.out.println("Mismatch: mode " + mode + ", alpha " + alpha1 + " over " + alpha2
+									+ ", full alpha " + (fa == 1 ? "on" : "off"));
+							mismatches++;
+						}
+					}
+				}
+			}
+		}
+		System.out.println("Mismatches: " + mismatches + "\n");
+
+		int[] modes = { CPLayer.LM_NORMAL, CPLayer.LM_NORMAL, CPLayer.LM_ADD, CPLayer.LM_SUBTRACT, CPLayer.LM_LIGHTEN,
+				CPLayer.LM_LIGHTEN, CPLayer.LM_DARKEN };
+		boolean[] fullAlpha = { false, true, false, false, false, true, false };
+		String[] names = { "Normal blending mode", "Normal blending mode, full alpha", "Add blending mode",
+				"Subtract blending mode, opaque target", "Lighten blending mode", "Lighten blending mode, full alpha",
+				"Darken blending mode" };
+
+		for (int i = 0; i < modes.length; i++) {
+			System.out.println(names[i]);
+			System.out.println("====================");
+
+			l1.setBlendMode(modes[i]);
+			for (int p = 0; p < 2; p++) {
+				CPLayer.setPackedBlending(p == 1);
+				System.out.println(p == 1 ? "Packed:" : "Scalar:");
+				prepareLayers(l1, l2, 0);
+				// Subtract is only packed over opaque pixels
+				if (modes[i] == CPLayer.LM_SUBTRACT) {
+					int[] data = l2.getData();
+					for (int k = 0; k < data.length; k++) {
+						data[k] |= 0xff000000;
+					}
+				}
+				blendingBench(l1, l2, iterations, fullAlpha[i]);
+			}
+		}
+		CPLayer.setPackedBlending(oldPacked);
+	}
+
+	// Channels of the pixel (i, j) come from i for a layer and from j for a target, so that fusing
+	// the two goes through every pair of values
+	private static void fillChannelPairs (CPLayer l, int alpha, boolean target) {
+		int[] data = l.getData();
+		for (int j = 0; j < 256; j++) {
+			for (int i = 0; i < 256; i++) {
+				int v = target ? j : i;
+				data[i + j * 256] = alpha << 24 | v << 16 | (255 - v) << 8 | (v * 7 & 0xff);
+			}
+		}
+	}
+
+	private static void packedBlendingFuse (CPLayer l, CPLayer target, boolean useFullAlpha) {
+		if (useFullAlpha) {
+			target.setAlpha(50);
+			l.fusionWithFullAlpha(target, target.getSize());
+		} else {
+			l.fusionWith(target, target.getSize());
+		}
+	}
+
+	private static void deepColorBenchmark (String[] args) {
+		int strokes = args.length > 1 ? Integer.valueOf(args[1]) : 300;
+		int alpha = args.length > 2 ? Integer.valueOf(args[2]) : 4;
+
+		System.out.println("Benchmarking deep color painting, strokes=" + strokes + ", alpha=" + alpha + "\n\n");
+
+		// Low opacity white strokes over black, the stroke center should converge to 255
+		for (int i = 0; i < 2; i++) {
+			boolean deep = i == 1;
+			System.out.println("Deep color: " + (deep ? "on" : "off"));
+			System.out.println("===============");
+
+			CPArtwork artwork = new CPArtwork(200, 60);
+			artwork.setDeepColor(deep);
+			artwork.getActiveLayer().clear(0xff000000);
+			artwork.setBrush(new CPBrushInfo(0, 30, alpha, true, false, .1f, false, false, CPBrushInfo.B_ROUND_AA,
+					CPBrushInfo.M_PAINT, 1f, 0f));
+			artwork.setForegroundColor(0xffffffff);
+
+			StringBuilder values = new StringBuilder();
+			double lastTime = System.currentTimeMillis(), newTime;
+			for (int s = 1; s <= strokes; s++) {
+				artwork.beginStroke(20, 30, 1);
+				artwork.continueStroke(180, 30, 1);
+				artwork.endStroke();
+				if (s % 50 == 0) {
+					values.append(artwork.getActiveLayer().getPixel(100, 30) & 0xff).append(' ');
+				}
+			}
+			newTime = System.currentTimeMillis();
+			System.out.println("Center value every 50 strokes: " + values);
+			System.out.println("Result time: " + String.valueOf((newTime - lastTime) / 1000.) + "s "
+					+ String.valueOf((newTime - lastTime) * 1000. / strokes) + "us per stroke\n");
+		}
+	}
+
+	// Short hatching strokes, their cost should not depend on the canvas size
+	private static void penDownBenchmark (String[] args) {
+		int strokes = args.length > 1 ? Integer.valueOf(args[1]) : 200;
+		int maxSize = args.length > 2 ? Integer.valueOf(args[2]) : 4096;
+
+		System.out.println("Benchmarking pen-down latency, strokes=" + strokes + "\n\n");
+
+		for (int size = 512; size <= maxSize; size *= 2) {
+			CPArtwork artwork = new CPArtwork(size, size);
+			artwork.setBrush(new CPBrushInfo(0, 16, 255, true, false, .1f, false, false, CPBrushInfo.B_ROUND_AA,
+					CPBrushInfo.M_PAINT, 1f, 0f));
+			Random rnd = new Random(0);
+
+			long[] beginTimes = new long[strokes];
+			long[] strokeTimes = new long[strokes];
+			// The first strokes allocate the flat buffers
+			for (int s = -10; s < strokes; s++) {
+				float x = rnd.nextInt(size - 40) + 20, y = rnd.nextInt(size - 40) + 20;
+				long start = System.nanoTime();
+				artwork.beginStroke(x, y, 1);
+				long begun = System.nanoTime();
+				artwork.continueStroke(x + 10, y + 10, 1);
+				artwork.endStroke();
+				long end = System.nanoTime();
+				if (s >= 0) {
+					beginTimes[s] = begun - start;
+					strokeTimes[s] = end - start;
+				}
+			}
+			Arrays.sort(beginTimes);
+			Arrays.sort(strokeTimes);
+			System.out.println(size + "x" + size + ": beginStroke median " + beginTimes[strokes / 2] / 1000 + "us, max "
+					+ beginTimes[strokes - 1] / 1000 + "us / whole stroke median " + strokeTimes[strokes / 2] / 1000 + "us");
+		}
+	}
+
+	// Bytes allocated by continueStroke once a stroke is going, for every painting mode. Needs a JVM which
+	// counts allocations per thread (com.sun.management.ThreadMXBean, HotSpot has it)
+	private static void dabAllocationBenchmark (String[] args) {
+		int samples = args.length > 1 ? Integer.valueOf(args[1]) : 20000;
+		String[] modes = {"paint", "erase", "dodge", "burn", "water", "blur", "smudge", "oil"};
+
+		java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("per thread allocation counters not available");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long thread = Thread.currentThread().getId();
+
+		System.out.println("Benchmarking allocations per stroke sample, samples=" + samples + "\n\n");
+
+		CPArtwork[] artworks = new CPArtwork[modes.length];
+		for (int mode = 0; mode < modes.length; mode++) {
+			artworks[mode] = new CPArtwork(1024, 1024);
+			artworks[mode].getActiveLayer().clear(0xff808080);
+			artworks[mode].setBrush(new CPBrushInfo(0, 20, 200, true, false, .1f, true, false, CPBrushInfo.B_ROUND_AA,
+					mode, .8f, .3f));
+			artworks[mode].setForegroundColor(0x3060c0);
+		}
+
+		// Every mode is warmed up first, the JIT would otherwise recompile the shared code while the next
+		// one is measured. The best of a few strokes is kept for the same reason.
+		for (int mode = 0; mode < modes.length; mode++) {
+			allocationStroke(artworks[mode], threads, thread, samples);
+		}
+
+		boolean allocating = false;
+		for (int mode = 0; mode < modes.length; mode++) {
+			long bytes = Long.MAX_VALUE;
+			for (int pass = 0; pass < 3; pass++) {
+				bytes = Math.min(bytes, allocationStroke(artworks[mode], threads, thread, samples));
+			}
+
+			double perSample = (double) bytes / samples;
+			allocating |= perSample >= 1;
+			System.out.println(String.format("%-8s %10.2f B/op %s", modes[mode], perSample, perSample < 1 ? "" : "ALLOCATES"));
+		}
+
+		// The content bounds are extended by every merged row and dab, and read by every stroke
+		CPLayer layer = new CPLayer(1024, 1024);
+		int[] row = new int[64];
+		Arrays.fill(row, 0xff3060c0);
+		CPRect bounds = new CPRect();
+		contentBoundsCalls(layer, row, bounds, samples);
+		long bytes = Long.MAX_VALUE;
+		for (int pass = 0; pass < 3; pass++) {
+			long start = threads.getThreadAllocatedBytes(thread);
+			contentBoundsCalls(layer, row, bounds, samples);
+			bytes = Math.min(bytes, threads.getThreadAllocatedBytes(thread) - start);
+		}
+		double perCall = (double) bytes / samples;
+		allocating |= perCall >= 1;
+		System.out.println(String.format("%-8s %10.2f B/op %s", "bounds", perCall, perCall < 1 ? "" : "ALLOCATES"));
+		System.out.println(allocating ? "\nSome modes allocate on the dab path" : "\nNo allocation on the dab path");
+	}
+
+	private static void contentBoundsCalls (CPLayer layer, int[] row, CPRect bounds, int calls) {
+		for (int i = 0; i < calls; i++) {
+			int x = i * 7 % 960, y = i * 13 % 1024;
+			layer.copyArrayToRow(x, y, row.length, row, 0);
+			layer.setPixel(y, x, 0xff000000);
+			layer.getContentBounds(bounds);
+		}
+	}
+
+	// Bytes allocated by the current thread during the continueStroke calls of a stroke
+	private static long allocationStroke (CPArtwork artwork, com.sun.management.ThreadMXBean threads, long thread,
+			int samples) {
+		artwork.beginStroke(300, 300, 1);
+		long start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < samples; i++) {
+			double t = i * .01;
+			artwork.continueStroke(500 + (float) (200 * Math.sin(t)), 500 + (float) (200 * Math.sin(t * 1.3)),
+					.5f + (float) Math.sin(t * 7) / 2);
+		}
+		long bytes = threads.getThreadAllocatedBytes(thread) - start;
+		artwork.endStroke();
+		return bytes;
+	}
+
 	private static void brushDabsBenchmark (String[] args) {
 		int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 10000;
 		int sizeMin = args.length > 2 ? Integer.valueOf(args[2]) : 1;
@@ -289,7 +666,16 @@ class CPBenchmark {
 	}
 
 	private static void dabBench (int type, boolean useAA, int iterations, int sMin, int sDiff, boolean useTexture) {
+		// Without the mask cache only the last brush is kept, like before it
+		double uncached = dabBench(type, useAA, iterations, sMin, sDiff, useTexture, 0);
+		double cached = dabBench(type, useAA, iterations, sMin, sDiff, useTexture, 8 << 20);
+		System.out.println("Mask cache speedup: " + String.format("%.2f", uncached / cached) + "x\n");
+	}
+
+	private static double dabBench (int type, boolean useAA, int iterations, int sMin, int sDiff, boolean useTexture,
+			int cacheBytes) {
 		CPBrushManager manager = new CPBrushManager();
+		manager.setMaxCacheBytes(cacheBytes);
 		CPBrushInfo brush = new CPBrushInfo();
 
 		brush.type = type;
@@ -311,14 +697,19 @@ class CPBenchmark {
 		@SuppressWarnings("unused")
 		CPBrushManager.CPBrushDab dab;
 
+		// Sizes follow the pressure of a stroke going back and forth, positions move by fractions of a pixel
+		int steps = sDiff * 4 + 1;
 		for (int i = 0; i < iterations; i++) {
-			brush.curSize = i % (sDiff + 1) + sMin;
-			dab = manager.getDab(100.5f, 100.5f, brush);
+			int step = i % (2 * steps);
+			brush.curSize = sMin + (step < steps ? step : 2 * steps - 1 - step) / 4.f;
+			dab = manager.getDab(100.5f + i * .37f % 50, 100.5f + i * .21f % 50, brush);
 		}
 
 		newTime = System.currentTimeMillis();
-		System.out.println("Result time: " + String.valueOf((newTime - lastTime) / 1000.) + "s "
-				+ String.valueOf((newTime - lastTime) * 1000. / (iterations)) + "us per iteration\n");
+		System.out.println((cacheBytes > 0 ? "Cached" : "Uncached") + " time: " + String.valueOf((newTime - lastTime) / 1000.)
+				+ "s " + String.valueOf((newTime - lastTime) * 1000. / (iterations)) + "us per iteration, mask cache hits "
+				+ manager.getCacheHits() + " misses " + manager.getCacheMisses());
+		return newTime - lastTime;
 	}
 
 }